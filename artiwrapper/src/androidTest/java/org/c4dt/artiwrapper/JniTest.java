@@ -2,9 +2,12 @@ package org.c4dt.artiwrapper;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import android.os.Debug;
 import android.util.Log;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -18,15 +21,19 @@ import org.junit.runner.RunWith;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 
 @RunWith(AndroidJUnit4.class)
@@ -96,7 +103,7 @@ public class JniTest {
             containsString("Corrupt cache: required file(s) missing in cache")
         );
 
-        File f = new File(folder.getRoot(), TorLibApi.CONSENSUS_FILENAME);
+        File f = new File(TorLibApi.currentCacheDir(cacheDir), TorLibApi.CONSENSUS_FILENAME);
         assertTrue(f.delete());
 
         try (Client client = new Client(cacheDir)) {
@@ -111,7 +118,7 @@ public class JniTest {
             containsString("Corrupt cache: required file(s) missing in cache")
         );
 
-        File f = new File(folder.getRoot(), TorLibApi.MICRODESCRIPTORS_FILENAME);
+        File f = new File(TorLibApi.currentCacheDir(cacheDir), TorLibApi.MICRODESCRIPTORS_FILENAME);
         assertTrue(f.delete());
 
         try (Client client = new Client(cacheDir)) {
@@ -126,7 +133,7 @@ public class JniTest {
             containsString("Corrupt cache: required file(s) missing in cache")
         );
 
-        File f = new File(folder.getRoot(), TorLibApi.AUTHORITY_FILENAME);
+        File f = new File(TorLibApi.currentCacheDir(cacheDir), TorLibApi.AUTHORITY_FILENAME);
         assertTrue(f.delete());
 
         try (Client client = new Client(cacheDir)) {
@@ -141,7 +148,7 @@ public class JniTest {
             containsString("Corrupt cache: required file(s) missing in cache")
         );
 
-        File f = new File(folder.getRoot(), TorLibApi.CERTIFICATE_FILENAME);
+        File f = new File(TorLibApi.currentCacheDir(cacheDir), TorLibApi.CERTIFICATE_FILENAME);
         assertTrue(f.delete());
 
         try (Client client = new Client(cacheDir)) {
@@ -213,6 +220,39 @@ public class JniTest {
         client.syncTorRequest(dummyMethod, dummyUrl, dummyHeaders, dummyBody);
     }
 
+    @Test
+    public void concurrentSendAndClose() throws InterruptedException, TorLibException {
+        // Requests with an invalid URL fail quickly in the library, which maximizes contention
+        final int nbThreads = 8;
+        Client client = new Client(cacheDir);
+        CountDownLatch done = new CountDownLatch(nbThreads);
+        AtomicReference<String> unexpected = new AtomicReference<>();
+
+        for (int i = 0; i < nbThreads; i++) {
+            new Thread(() -> {
+                try {
+                    for (; ; ) {
+                        try {
+                            client.syncTorRequest(dummyMethod, "not:/valid", dummyHeaders, dummyBody);
+                        } catch (TorLibException e) {
+                            if (e.getMessage().contains("already been closed")) break;
+                            if (!e.getMessage().contains("invalid")) unexpected.set(e.getMessage());
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        Thread.sleep(500);
+        client.close();
+        client.close();
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(null, unexpected.get());
+    }
+
     @Test
     public void syncPost() {
         try {
@@ -413,6 +453,90 @@ public class JniTest {
         assertEquals(200, response3.get().getStatus());
     }
 
+    @Test
+    public void asyncPostFuture() throws Exception {
+        byte[] body = "key1=val1&key2=val2".getBytes();
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Content-Length", Collections.singletonList(String.valueOf(body.length)));
+        headers.put("Content-Type", Collections.singletonList("application/x-www-form-urlencoded"));
+
+        try (Client client = new Client(cacheDir)) {
+            TorRequestFuture<HttpResponse> future = client.sendAsync(
+                    Client.TorRequestMethod.POST, "https://httpbin.org/post", headers, body, 120, TimeUnit.SECONDS);
+            assertEquals(200, future.get().getStatus());
+
+            // A deadline that cannot be met fails the future without waiting for the request
+            future = client.sendAsync(
+                    Client.TorRequestMethod.GET, "https://httpbin.org/delay/10", new HashMap<>(), new byte[]{},
+                    1, TimeUnit.MILLISECONDS);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        }
+    }
+
+    @Test
+    public void createAsyncAndPrewarm() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        TorRequestFuture<Client> future = Client.createAsync(cacheDir, executor);
+
+        try (Client client = future.get(120, TimeUnit.SECONDS)) {
+            assertEquals(1, (int) client.prewarm("example.com").get(120, TimeUnit.SECONDS));
+
+            long start = System.currentTimeMillis();
+            HttpResponse resp = client.syncTorRequest(
+                    Client.TorRequestMethod.GET, "https://example.com", new HashMap<>(), new byte[]{});
+            Log.d(TAG, "First request after prewarm took " + (System.currentTimeMillis() - start) + " ms");
+            assertEquals(200, resp.getStatus());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sharedClients() throws TorLibException {
+        final int nbClients = 4;
+
+        long heapBefore = Debug.getNativeHeapAllocatedSize();
+        long start = System.currentTimeMillis();
+        List<Client> independent = new ArrayList<>();
+        for (int i = 0; i < nbClients; i++) {
+            independent.add(new Client(cacheDir));
+        }
+        long independentMillis = System.currentTimeMillis() - start;
+        long independentHeap = Debug.getNativeHeapAllocatedSize() - heapBefore;
+        for (Client client : independent) {
+            client.close();
+        }
+
+        heapBefore = Debug.getNativeHeapAllocatedSize();
+        start = System.currentTimeMillis();
+        List<Client> shared = new ArrayList<>();
+        for (int i = 0; i < nbClients; i++) {
+            shared.add(Client.shared(cacheDir));
+        }
+        long sharedMillis = System.currentTimeMillis() - start;
+        long sharedHeap = Debug.getNativeHeapAllocatedSize() - heapBefore;
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "%d independent clients: %d ms, %d bytes of native heap",
+                nbClients, independentMillis, independentHeap));
+        Log.d(TAG, String.format(Locale.ENGLISH, "%d shared views: %d ms, %d bytes of native heap",
+                nbClients, sharedMillis, sharedHeap));
+
+        // Closing one view does not affect the others
+        shared.get(0).close();
+        HttpResponse resp = shared.get(1).syncTorRequest(
+                Client.TorRequestMethod.GET, "https://example.com", new HashMap<>(), new byte[]{});
+        assertEquals(200, resp.getStatus());
+
+        for (Client client : shared) {
+            client.close();
+        }
+    }
+
     @Test
     public void syncGet() {
         try {
@@ -434,6 +558,34 @@ public class JniTest {
         }
     }
 
+    @Test
+    public void syncGetStreaming() {
+        try {
+            try (Client client = new Client(cacheDir);
+                 StreamingHttpResponse resp = client.openTorRequest(
+                         Client.TorRequestMethod.GET, "https://httpbin.org/range/100000", new HashMap<>(), new byte[]{},
+                         16 * 1024)) {
+                Log.d(TAG, "Response from streaming GET: ");
+                Log.d(TAG, "   status: " + resp.getStatus());
+                Log.d(TAG, "   version: " + resp.getVersion());
+                Log.d(TAG, "   headers: " + resp.getHeaders());
+
+                assertEquals(200, resp.getStatus());
+
+                byte[] buf = new byte[4096];
+                long total = 0;
+                int nbRead;
+                while ((nbRead = resp.getBody().read(buf)) != -1) {
+                    total += nbRead;
+                }
+                assertEquals(100000, total);
+            }
+        } catch (TorLibException | IOException e) {
+            Log.d(TAG, "!!! Exception: " + e);
+            fail();
+        }
+    }
+
     private TorLibApi.CacheUpdateStatus execUpdateCache() throws InterruptedException {
         final CountDownLatch signal = new CountDownLatch(1);
 
@@ -464,44 +616,78 @@ public class JniTest {
         assertEquals(TorLibApi.CacheUpdateStatus.CACHE_IS_UP_TO_DATE, execUpdateCache());
     }
 
-    @Test
-    public void cacheChurnIsObsolete() throws InterruptedException {
-        Calendar cal = Calendar.getInstance();
-        cal.roll(Calendar.DAY_OF_MONTH, -1);
+    /**
+     * Make a file of the current cache generation obsolete, as recorded by its manifest.
+     */
+    private void expire(String fileName) throws IOException {
+        File generation = new File(TorLibApi.currentCacheDir(cacheDir));
+        CacheManifest manifest = CacheManifest.read(generation);
+        manifest.setValidUntil(fileName, System.currentTimeMillis());
+        manifest.write(generation);
+    }
 
-        File f = new File(cacheDir, TorLibApi.CHURN_FILENAME);
+    /**
+     * Forget the validators and partial files of the previous downloads, so that the next update
+     * downloads the files again instead of revalidating them.
+     */
+    private void clearDownloads() {
+        CacheGenerations.deleteRecursively(new File(cacheDir, CacheUpdater.DOWNLOADS_DIRNAME));
+    }
 
-        assertTrue(f.setLastModified(cal.getTimeInMillis()));
+    @Test
+    public void cacheChurnIsObsolete() throws InterruptedException, IOException {
+        expire(TorLibApi.CHURN_FILENAME);
+        clearDownloads();
         assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_CHURN_FILE, execUpdateCache());
+        assertEquals(TorLibApi.CacheUpdateStatus.CACHE_IS_UP_TO_DATE, execUpdateCache());
 
+        File f = new File(TorLibApi.currentCacheDir(cacheDir), TorLibApi.CHURN_FILENAME);
         assertTrue(f.delete());
         assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_CHURN_FILE, execUpdateCache());
     }
 
     @Test
-    public void cacheMicroDescIsObsolete() throws InterruptedException {
-        // Use UK locale to have Monday as the first day of the week
-        Calendar cal = Calendar.getInstance(Locale.UK);
-
-        // Roll to last day of previous week
-        int currentWeek = cal.get(Calendar.WEEK_OF_MONTH);
-        while (cal.get(Calendar.WEEK_OF_MONTH) == currentWeek) {
-            cal.roll(Calendar.DAY_OF_MONTH, -1);
-        }
-
-        File f = new File(cacheDir, TorLibApi.MICRODESCRIPTORS_FILENAME);
-
-        assertTrue(f.setLastModified(cal.getTimeInMillis()));
+    public void cacheMicroDescIsObsolete() throws InterruptedException, IOException {
+        expire(TorLibApi.MICRODESCRIPTORS_FILENAME);
+        clearDownloads();
         assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, execUpdateCache());
+        assertEquals(TorLibApi.CacheUpdateStatus.CACHE_IS_UP_TO_DATE, execUpdateCache());
 
+        File f = new File(TorLibApi.currentCacheDir(cacheDir), TorLibApi.MICRODESCRIPTORS_FILENAME);
         assertTrue(f.delete());
         assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, execUpdateCache());
     }
 
+    @Test
+    public void cacheIsVerified() {
+        assertTrue(TorLibApi.verifyCache(cacheDir, true));
+    }
+
     @Test
     public void cacheIsMissingFiles() throws InterruptedException {
-        File f = new File(cacheDir, TorLibApi.CERTIFICATE_FILENAME);
+        File f = new File(TorLibApi.currentCacheDir(cacheDir), TorLibApi.CERTIFICATE_FILENAME);
         assertTrue(f.delete());
         assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, execUpdateCache());
     }
+
+    @Test
+    public void clientKeepsGenerationDuringUpdate() throws TorLibException, InterruptedException {
+        try (Client client = new Client(cacheDir)) {
+            File generation = new File(TorLibApi.currentCacheDir(cacheDir));
+
+            // Force a full update, published as a new generation
+            assertTrue(new File(generation, TorLibApi.CERTIFICATE_FILENAME).delete());
+            assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, execUpdateCache());
+            assertNotEquals(generation.getPath(), TorLibApi.currentCacheDir(cacheDir));
+            assertTrue(generation.exists());
+
+            HttpResponse resp = client.syncTorRequest(Client.TorRequestMethod.GET,
+                    "https://example.com", new HashMap<>(), new byte[]{});
+            assertEquals(200, resp.getStatus());
+
+            client.close();
+            // The old generation is collected once no client uses it anymore
+            assertFalse(generation.exists());
+        }
+    }
 }
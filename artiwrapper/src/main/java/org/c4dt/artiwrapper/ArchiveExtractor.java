@@ -0,0 +1,302 @@
+package org.c4dt.artiwrapper;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pipelined extraction of a gzipped tar archive.
+ * <p>
+ * The calling thread reads and decompresses the archive into large reusable buffers, which are
+ * handed over through a bounded queue to a writer thread writing them with a {@link FileChannel}.
+ * Decompression and disk writes thus overlap, and the memory used is bounded by
+ * <code>(queueCapacity + 1) * bufferSize</code>. SHA-256 checksums of the extracted files can be
+ * computed by the writer in the same pass.
+ */
+final class ArchiveExtractor {
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    private final int bufferSize;
+    private final int queueCapacity;
+    private final boolean computeDigests;
+
+    /**
+     * Unit of work handed over to the writer: the start of a file, a buffer of data, the end of
+     * a file, or the end of the archive.
+     */
+    private static final class Chunk {
+        static final Chunk DONE = new Chunk(null, null, null, false);
+
+        final String name;
+        final File file;
+        final ByteBuffer data;
+        final boolean endOfFile;
+
+        private Chunk(String name, File file, ByteBuffer data, boolean endOfFile) {
+            this.name = name;
+            this.file = file;
+            this.data = data;
+            this.endOfFile = endOfFile;
+        }
+
+        static Chunk start(String name, File file) {
+            return new Chunk(name, file, null, false);
+        }
+
+        static Chunk data(ByteBuffer data) {
+            return new Chunk(null, null, data, false);
+        }
+
+        static Chunk end(String name) {
+            return new Chunk(name, null, null, true);
+        }
+    }
+
+    ArchiveExtractor() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_QUEUE_CAPACITY, false);
+    }
+
+    /**
+     * @param bufferSize     the size of the buffers handed over to the writer
+     * @param queueCapacity  the maximum number of filled buffers waiting for the writer
+     * @param computeDigests whether to compute the SHA-256 checksums of the extracted files
+     */
+    ArchiveExtractor(int bufferSize, int queueCapacity, boolean computeDigests) {
+        if (bufferSize <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("bufferSize and queueCapacity must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.queueCapacity = queueCapacity;
+        this.computeDigests = computeDigests;
+    }
+
+    /**
+     * Extract the regular files of a gzipped tar archive into a directory.
+     *
+     * @param in              the archive
+     * @param destDir         the directory where the files are extracted
+     * @param expectedDigests the expected SHA-256 checksums (lowercase hexadecimal) by file name,
+     *                        or null; files absent from the map are not checked
+     * @return the SHA-256 checksums by file name, if computed, or an empty map
+     * @throws IOException the archive cannot be read, a file cannot be written, or a checksum
+     *                     does not match
+     */
+    Map<String, String> extract(InputStream in, File destDir, Map<String, String> expectedDigests)
+            throws IOException {
+        Writer writer = new Writer(computeDigests || expectedDigests != null);
+        Thread writerThread = new Thread(writer, "ArtiExtractor");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        IOException readError = null;
+        try (InputStream buin = new BufferedInputStream(in, bufferSize);
+             InputStream gzin = new GzipCompressorInputStream(buin);
+             TarArchiveInputStream ain = new TarArchiveInputStream(gzin)) {
+            ArchiveEntry entry;
+            while (writer.error == null && (entry = ain.getNextEntry()) != null) {
+                // Skip directories
+                if (entry.isDirectory()) continue;
+
+                String name = entry.getName();
+                while (name.startsWith("./")) {
+                    name = name.substring(2);
+                }
+                writer.put(Chunk.start(name, resolve(destDir, name)));
+                while (writer.error == null) {
+                    ByteBuffer buffer = writer.takeFreeBuffer();
+                    byte[] array = buffer.array();
+                    int nbRead;
+                    while (buffer.hasRemaining() &&
+                            (nbRead = ain.read(array, buffer.position(), buffer.remaining())) != -1) {
+                        buffer.position(buffer.position() + nbRead);
+                    }
+                    boolean endOfEntry = buffer.hasRemaining();
+                    buffer.flip();
+                    writer.put(Chunk.data(buffer));
+                    if (endOfEntry) break;
+                }
+                writer.put(Chunk.end(name));
+            }
+        } catch (IOException e) {
+            readError = e;
+        } catch (InterruptedException e) {
+            readError = new InterruptedIOException("Interrupted while extracting archive");
+            Thread.currentThread().interrupt();
+        } finally {
+            // Let the writer finish, even if this thread was interrupted
+            boolean interrupted = Thread.interrupted();
+            try {
+                writer.put(Chunk.DONE);
+                writerThread.join();
+            } catch (InterruptedException e) {
+                writerThread.interrupt();
+                interrupted = true;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                if (readError == null) {
+                    readError = new InterruptedIOException("Interrupted while extracting archive");
+                }
+            }
+        }
+
+        if (readError != null) {
+            throw readError;
+        }
+        if (writer.error != null) {
+            throw writer.error;
+        }
+
+        if (expectedDigests != null) {
+            for (Map.Entry<String, String> expected : expectedDigests.entrySet()) {
+                String actual = writer.digests.get(expected.getKey());
+                if (actual != null && !actual.equalsIgnoreCase(expected.getValue())) {
+                    throw new IOException("Checksum mismatch for " + expected.getKey());
+                }
+            }
+        }
+        return writer.digests;
+    }
+
+    /**
+     * Get the destination of an archive entry, which must be within the destination directory.
+     */
+    private static File resolve(File destDir, String name) throws IOException {
+        File file = new File(destDir, name);
+        String destPath = destDir.getCanonicalPath() + File.separator;
+        if (!file.getCanonicalPath().startsWith(destPath)) {
+            throw new IOException("Archive entry outside of destination: " + name);
+        }
+        return file;
+    }
+
+    /**
+     * Writer stage, consuming the chunks of the reader.
+     */
+    private final class Writer implements Runnable {
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(queueCapacity + 2);
+        private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(queueCapacity + 1);
+        private int allocatedBuffers;
+
+        private final MessageDigest digest;
+        final Map<String, String> digests = new HashMap<>();
+        volatile IOException error;
+
+        Writer(boolean computeDigests) {
+            if (computeDigests) {
+                try {
+                    digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                digest = null;
+            }
+        }
+
+        /**
+         * Get an empty buffer, allocating it if the pool is not full yet.
+         */
+        ByteBuffer takeFreeBuffer() throws InterruptedIOException {
+            ByteBuffer buffer = freeBuffers.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+            if (allocatedBuffers < queueCapacity + 1) {
+                allocatedBuffers++;
+                return ByteBuffer.allocate(bufferSize);
+            }
+            try {
+                return freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while extracting archive");
+            }
+        }
+
+        void put(Chunk chunk) throws InterruptedException {
+            chunks.put(chunk);
+        }
+
+        @Override
+        public void run() {
+            FileChannel channel = null;
+            try {
+                while (true) {
+                    Chunk chunk = chunks.take();
+                    if (chunk == Chunk.DONE) break;
+                    // After an error, keep consuming so that the reader is not blocked
+                    if (error != null) {
+                        recycle(chunk);
+                        continue;
+                    }
+
+                    try {
+                        if (chunk.file != null) {
+                            File parent = chunk.file.getParentFile();
+                            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                                throw new IOException("Cannot create " + parent);
+                            }
+                            channel = new FileOutputStream(chunk.file).getChannel();
+                            if (digest != null) digest.reset();
+                        } else if (chunk.data != null) {
+                            if (digest != null) digest.update(chunk.data.duplicate());
+                            while (chunk.data.hasRemaining()) {
+                                channel.write(chunk.data);
+                            }
+                        } else if (chunk.endOfFile) {
+                            channel.close();
+                            channel = null;
+                            if (digest != null) digests.put(chunk.name, toHex(digest.digest()));
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    } finally {
+                        recycle(chunk);
+                    }
+                }
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Interrupted while extracting archive");
+            } finally {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // Already failed
+                    }
+                }
+            }
+        }
+
+        private void recycle(Chunk chunk) {
+            if (chunk.data != null) {
+                chunk.data.clear();
+                freeBuffers.offer(chunk.data);
+            }
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package org.c4dt.artiwrapper;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Parsed <code>Cache-Control</code> directives relevant to a private cache (RFC 7234).
+ * The cache never serves stale responses, so that <code>must-revalidate</code> and
+ * <code>max-stale</code> need no handling.
+ */
+final class CacheControl {
+    final boolean noStore;
+    final boolean noCache;
+    final boolean onlyIfCached;
+    /**
+     * Value of <code>max-age</code> in seconds, or -1 if absent.
+     */
+    final long maxAgeSeconds;
+
+    private CacheControl(boolean noStore, boolean noCache, boolean onlyIfCached, long maxAgeSeconds) {
+        this.noStore = noStore;
+        this.noCache = noCache;
+        this.onlyIfCached = onlyIfCached;
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    static CacheControl parse(Headers headers) {
+        boolean noStore = false;
+        boolean noCache = false;
+        boolean onlyIfCached = false;
+        long maxAge = -1;
+
+        for (int i = 0; i < headers.size(); i++) {
+            String name = headers.name(i);
+            if (name.equalsIgnoreCase("Pragma")) {
+                // HTTP/1.0 equivalent of "Cache-Control: no-cache"
+                if (headers.value(i).trim().equalsIgnoreCase("no-cache")) {
+                    noCache = true;
+                }
+                continue;
+            }
+            if (!name.equalsIgnoreCase("Cache-Control")) continue;
+
+            for (String directive : headers.value(i).split(",")) {
+                String d = directive.trim();
+                String value = null;
+                int eq = d.indexOf('=');
+                if (eq >= 0) {
+                    value = d.substring(eq + 1).trim();
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    d = d.substring(0, eq).trim();
+                }
+
+                if (d.equalsIgnoreCase("no-store")) {
+                    noStore = true;
+                } else if (d.equalsIgnoreCase("no-cache")) {
+                    noCache = true;
+                } else if (d.equalsIgnoreCase("only-if-cached")) {
+                    onlyIfCached = true;
+                } else if (d.equalsIgnoreCase("max-age") && value != null) {
+                    try {
+                        maxAge = Math.max(0, Long.parseLong(value));
+                    } catch (NumberFormatException e) {
+                        // An invalid max-age makes the response stale (RFC 7234, section 4.2.1)
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+        return new CacheControl(noStore, noCache, onlyIfCached, maxAge);
+    }
+
+    /**
+     * Parse an HTTP date (RFC 7231, section 7.1.1.1).
+     *
+     * @return the date in milliseconds since the epoch, or -1 if it cannot be parsed
+     */
+    static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        String[] formats = {
+                "EEE, dd MMM yyyy HH:mm:ss zzz",
+                "EEEE, dd-MMM-yy HH:mm:ss zzz",
+                "EEE MMM d HH:mm:ss yyyy",
+        };
+        for (String format : formats) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            dateFormat.setLenient(false);
+            try {
+                return dateFormat.parse(value.trim()).getTime();
+            } catch (ParseException e) {
+                // try next format
+            }
+        }
+        return -1;
+    }
+
+    static String formatDate(long millis) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return dateFormat.format(new Date(millis));
+    }
+}
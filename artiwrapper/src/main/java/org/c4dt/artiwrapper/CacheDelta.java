@@ -0,0 +1,315 @@
+package org.c4dt.artiwrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Difference between two releases of the directory cache.
+ * <p>
+ * A delta transforms the microdescriptors and consensus files identified by their SHA-256
+ * checksums into the files of a newer release:
+ * <ul>
+ *     <li>microdescriptors are removed by checksum, and new ones are appended, the other ones
+ *     being kept in order;</li>
+ *     <li>the consensus is edited line by line;</li>
+ *     <li>other files (e.g. the certificate or the churn file) are replaced entirely.</li>
+ * </ul>
+ * The result is verified against the checksums of the newer release.
+ * <p>
+ * Binary format (big endian, strings as modified UTF-8):
+ * <pre>
+ * int magic, int version
+ * UTF fromMicrodescriptors, UTF fromConsensus, UTF toMicrodescriptors, UTF toConsensus
+ * int count, count * UTF removed microdescriptor checksum
+ * int count, count * (int length, bytes) added microdescriptor
+ * int count, count * (byte op, int lines, [op == INSERT: lines * (int length, bytes)])
+ * int count, count * (UTF name, int length, bytes) replaced file
+ * </pre>
+ */
+final class CacheDelta {
+    static final int MAGIC = 0x4c41444c;
+    static final int VERSION = 1;
+
+    /**
+     * Each microdescriptor starts with this keyword.
+     */
+    static final String MICRODESCRIPTOR_START = "onion-key";
+
+    static final byte COPY = 0;
+    static final byte DELETE = 1;
+    static final byte INSERT = 2;
+
+    /**
+     * Line edit of the consensus. Lines not covered by the edits are copied.
+     */
+    static final class LineEdit {
+        final byte op;
+        final int lines;
+        final List<byte[]> inserted;
+
+        LineEdit(byte op, int lines, List<byte[]> inserted) {
+            this.op = op;
+            this.lines = lines;
+            this.inserted = inserted;
+        }
+    }
+
+    final String fromMicrodescriptors;
+    final String fromConsensus;
+    final String toMicrodescriptors;
+    final String toConsensus;
+    final List<String> removedMicrodescriptors = new ArrayList<>();
+    final List<byte[]> addedMicrodescriptors = new ArrayList<>();
+    final List<LineEdit> consensusEdits = new ArrayList<>();
+    final Map<String, byte[]> replacedFiles = new LinkedHashMap<>();
+
+    CacheDelta(String fromMicrodescriptors, String fromConsensus, String toMicrodescriptors, String toConsensus) {
+        this.fromMicrodescriptors = fromMicrodescriptors;
+        this.fromConsensus = fromConsensus;
+        this.toMicrodescriptors = toMicrodescriptors;
+        this.toConsensus = toConsensus;
+    }
+
+    /**
+     * Check whether the delta leaves the microdescriptors and consensus unchanged.
+     */
+    boolean isEmpty() {
+        return fromMicrodescriptors.equals(toMicrodescriptors) && fromConsensus.equals(toConsensus) &&
+                replacedFiles.isEmpty();
+    }
+
+    static CacheDelta read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unsupported delta format");
+        }
+        CacheDelta delta = new CacheDelta(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            delta.removedMicrodescriptors.add(in.readUTF());
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            delta.addedMicrodescriptors.add(readBytes(in));
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            int lines = in.readInt();
+            if (op != COPY && op != DELETE && op != INSERT || lines < 0) {
+                throw new IOException("Invalid delta edit");
+            }
+            List<byte[]> inserted = new ArrayList<>();
+            if (op == INSERT) {
+                for (int j = 0; j < lines; j++) {
+                    inserted.add(readBytes(in));
+                }
+            }
+            delta.consensusEdits.add(new LineEdit(op, lines, inserted));
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            delta.replacedFiles.put(in.readUTF(), readBytes(in));
+        }
+        return delta;
+    }
+
+    void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(fromMicrodescriptors);
+        out.writeUTF(fromConsensus);
+        out.writeUTF(toMicrodescriptors);
+        out.writeUTF(toConsensus);
+
+        out.writeInt(removedMicrodescriptors.size());
+        for (String digest : removedMicrodescriptors) {
+            out.writeUTF(digest);
+        }
+        out.writeInt(addedMicrodescriptors.size());
+        for (byte[] microdescriptor : addedMicrodescriptors) {
+            writeBytes(out, microdescriptor);
+        }
+        out.writeInt(consensusEdits.size());
+        for (LineEdit edit : consensusEdits) {
+            out.writeByte(edit.op);
+            out.writeInt(edit.lines);
+            for (byte[] line : edit.inserted) {
+                writeBytes(out, line);
+            }
+        }
+        out.writeInt(replacedFiles.size());
+        for (Map.Entry<String, byte[]> file : replacedFiles.entrySet()) {
+            out.writeUTF(file.getKey());
+            writeBytes(out, file.getValue());
+        }
+        out.flush();
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid delta length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Apply the delta to the files of a cache generation, writing the new microdescriptors,
+     * consensus and replaced files into another directory.
+     *
+     * @param fromDir the directory of the current files
+     * @param toDir   the directory where the new files are written
+     * @throws IOException the files cannot be read or written, or the result does not match the
+     *                     expected checksums
+     */
+    void apply(File fromDir, File toDir) throws IOException {
+        String microdescriptors = applyMicrodescriptors(new File(fromDir, TorLibApi.MICRODESCRIPTORS_FILENAME),
+                new File(toDir, TorLibApi.MICRODESCRIPTORS_FILENAME));
+        if (!microdescriptors.equals(toMicrodescriptors)) {
+            throw new IOException("Checksum mismatch for " + TorLibApi.MICRODESCRIPTORS_FILENAME + " after delta");
+        }
+
+        String consensus = applyConsensus(new File(fromDir, TorLibApi.CONSENSUS_FILENAME),
+                new File(toDir, TorLibApi.CONSENSUS_FILENAME));
+        if (!consensus.equals(toConsensus)) {
+            throw new IOException("Checksum mismatch for " + TorLibApi.CONSENSUS_FILENAME + " after delta");
+        }
+
+        for (Map.Entry<String, byte[]> file : replacedFiles.entrySet()) {
+            String name = file.getKey();
+            if (name.contains("/") || name.contains(File.separator) || name.startsWith(".")) {
+                throw new IOException("Invalid file name in delta: " + name);
+            }
+            try (OutputStream out = new FileOutputStream(new File(toDir, name))) {
+                out.write(file.getValue());
+            }
+        }
+    }
+
+    private String applyMicrodescriptors(File from, File to) throws IOException {
+        Set<String> removed = new HashSet<>(removedMicrodescriptors);
+        MessageDigest digest = newDigest();
+        MessageDigest blockDigest = newDigest();
+        byte[] start = MICRODESCRIPTOR_START.getBytes("UTF-8");
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(from), 64 * 1024);
+             OutputStream out = new DigestOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(to), 64 * 1024), digest)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            while (readLine(in, line)) {
+                if (startsWith(line, start) && block.size() > 0) {
+                    writeBlock(block, blockDigest, removed, out);
+                }
+                line.writeTo(block);
+            }
+            writeBlock(block, blockDigest, removed, out);
+
+            for (byte[] microdescriptor : addedMicrodescriptors) {
+                out.write(microdescriptor);
+            }
+        }
+        return ArchiveExtractor.toHex(digest.digest());
+    }
+
+    private static void writeBlock(ByteArrayOutputStream block, MessageDigest blockDigest, Set<String> removed,
+                                   OutputStream out) throws IOException {
+        if (block.size() == 0) return;
+        byte[] bytes = block.toByteArray();
+        block.reset();
+        if (!removed.contains(ArchiveExtractor.toHex(blockDigest.digest(bytes)))) {
+            out.write(bytes);
+        }
+    }
+
+    private String applyConsensus(File from, File to) throws IOException {
+        MessageDigest digest = newDigest();
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(from), 64 * 1024);
+             OutputStream out = new DigestOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(to), 64 * 1024), digest)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (LineEdit edit : consensusEdits) {
+                if (edit.op == INSERT) {
+                    for (byte[] inserted : edit.inserted) {
+                        out.write(inserted);
+                    }
+                    continue;
+                }
+                for (int i = 0; i < edit.lines; i++) {
+                    if (!readLine(in, line)) {
+                        throw new IOException("Delta does not match " + TorLibApi.CONSENSUS_FILENAME);
+                    }
+                    if (edit.op == COPY) {
+                        line.writeTo(out);
+                    }
+                }
+            }
+            // The remaining lines are unchanged
+            while (readLine(in, line)) {
+                line.writeTo(out);
+            }
+        }
+        return ArchiveExtractor.toHex(digest.digest());
+    }
+
+    /**
+     * Read a line, including its terminator if any.
+     *
+     * @return false at the end of the stream
+     */
+    private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int b;
+        while ((b = in.read()) != -1) {
+            line.write(b);
+            if (b == '\n') break;
+        }
+        return line.size() > 0;
+    }
+
+    private static boolean startsWith(ByteArrayOutputStream line, byte[] prefix) {
+        if (line.size() < prefix.length) return false;
+        byte[] bytes = line.toByteArray();
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
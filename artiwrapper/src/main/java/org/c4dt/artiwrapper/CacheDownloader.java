@@ -0,0 +1,299 @@
+package org.c4dt.artiwrapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+
+/**
+ * Conditional and resumable download of a cache resource to a file.
+ * <p>
+ * The validators (<code>ETag</code>, <code>Last-Modified</code>) of the last committed download
+ * are stored next to the target file, and sent with <code>If-None-Match</code> /
+ * <code>If-Modified-Since</code> so that an unchanged resource is answered with
+ * <code>304 Not Modified</code>. The data is first written to a partial file; if a download is
+ * interrupted, the next one resumes it with a <code>Range</code> request, guarded by
+ * <code>If-Range</code> so that a changed resource is downloaded from the start.
+ */
+final class CacheDownloader {
+    static final String PARTIAL_SUFFIX = ".part";
+    static final String VALIDATORS_SUFFIX = ".validators";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+    private static final String PARTIAL_ETAG = "partial-etag";
+    private static final String PARTIAL_LAST_MODIFIED = "partial-last-modified";
+    private static final String PENDING_ETAG = "pending-etag";
+    private static final String PENDING_LAST_MODIFIED = "pending-last-modified";
+
+    private final String urlString;
+    private final File target;
+    private final File partial;
+    private final File validatorsFile;
+
+    private volatile Runnable responseListener;
+    private volatile HttpURLConnection connection;
+    private volatile boolean cancelled;
+
+    /**
+     * @param urlString the URL of the resource
+     * @param target    the file where the resource is downloaded
+     */
+    CacheDownloader(String urlString, File target) {
+        this.urlString = urlString;
+        this.target = target;
+        this.partial = new File(target.getPath() + PARTIAL_SUFFIX);
+        this.validatorsFile = new File(target.getPath() + VALIDATORS_SUFFIX);
+    }
+
+    File getTarget() {
+        return target;
+    }
+
+    String getUrl() {
+        return urlString;
+    }
+
+    /**
+     * Set a listener called when the server starts answering, i.e. when the status of the
+     * response is received.
+     */
+    void setResponseListener(Runnable responseListener) {
+        this.responseListener = responseListener;
+    }
+
+    /**
+     * Abort a running download from another thread. The download fails with an
+     * {@link IOException}, and what was received so far is kept to be resumed.
+     */
+    void cancel() {
+        cancelled = true;
+        HttpURLConnection c = connection;
+        if (c != null) {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Download the resource to the target file.
+     *
+     * @param conditional whether to send the validators of the last committed download
+     * @return false if the server answered that the resource has not been modified
+     * @throws IOException the download failed; it will be resumed by the next call if possible
+     */
+    boolean download(boolean conditional) throws IOException {
+        return download(conditional, true);
+    }
+
+    private boolean download(boolean conditional, boolean mayRetry) throws IOException {
+        Properties validators = loadValidators();
+
+        long offset = 0;
+        String partialValidator = validators.getProperty(PARTIAL_ETAG, validators.getProperty(PARTIAL_LAST_MODIFIED));
+        if (partial.exists()) {
+            if (partialValidator != null && partial.length() > 0) {
+                offset = partial.length();
+            } else {
+                deletePartial(validators);
+            }
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        this.connection = connection;
+        try {
+            if (cancelled) {
+                throw new IOException("Download of " + urlString + " cancelled");
+            }
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", partialValidator);
+            }
+            if (conditional) {
+                String etag = validators.getProperty(ETAG);
+                String lastModified = validators.getProperty(LAST_MODIFIED);
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+
+            int status = connection.getResponseCode();
+            Runnable listener = responseListener;
+            if (listener != null) {
+                listener.run();
+            }
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return false;
+            }
+
+            boolean append;
+            if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0 &&
+                    contentRangeStart(connection.getHeaderField("Content-Range")) == offset) {
+                append = true;
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                append = false;
+            } else if (status == 416 && offset > 0 && mayRetry) {
+                // The partial file does not match the resource anymore: start over
+                deletePartial(validators);
+                connection.disconnect();
+                return download(conditional, false);
+            } else {
+                throw new IOException("Unexpected HTTP status " + status + " for " + urlString);
+            }
+
+            if (!append) {
+                // Record the validators before the data, so that an interrupted download can be resumed
+                deletePartial(validators);
+                setOrRemove(validators, PARTIAL_ETAG, strongETag(connection.getHeaderField("ETag")));
+                setOrRemove(validators, PARTIAL_LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+                storeValidators(validators);
+            }
+
+            try (InputStream in = connection.getInputStream();
+                 OutputStream out = new FileOutputStream(partial, append)) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int nbRead;
+                while ((nbRead = in.read(buf)) != -1) {
+                    out.write(buf, 0, nbRead);
+                }
+            }
+
+            long expectedLength = connection.getContentLength();
+            if (!append && expectedLength >= 0 && partial.length() != expectedLength) {
+                throw new IOException("Truncated download of " + urlString);
+            }
+        } finally {
+            connection.disconnect();
+            this.connection = null;
+        }
+        if (cancelled) {
+            throw new IOException("Download of " + urlString + " cancelled");
+        }
+
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + target);
+        }
+        if (!partial.renameTo(target)) {
+            throw new IOException("Cannot rename " + partial + " to " + target);
+        }
+
+        // Keep the validators of the downloaded data until it is committed
+        setOrRemove(validators, PENDING_ETAG, validators.getProperty(PARTIAL_ETAG));
+        setOrRemove(validators, PENDING_LAST_MODIFIED, validators.getProperty(PARTIAL_LAST_MODIFIED));
+        validators.remove(PARTIAL_ETAG);
+        validators.remove(PARTIAL_LAST_MODIFIED);
+        storeValidators(validators);
+        return true;
+    }
+
+    /**
+     * Record the last download as applied, so that its validators are sent by subsequent
+     * conditional downloads.
+     */
+    void commit() throws IOException {
+        Properties validators = loadValidators();
+        setOrRemove(validators, ETAG, validators.getProperty(PENDING_ETAG));
+        setOrRemove(validators, LAST_MODIFIED, validators.getProperty(PENDING_LAST_MODIFIED));
+        validators.remove(PENDING_ETAG);
+        validators.remove(PENDING_LAST_MODIFIED);
+        storeValidators(validators);
+    }
+
+    /**
+     * Get the entity tag of the last download, which is not committed yet.
+     *
+     * @return the entity tag, or null if unknown
+     */
+    String downloadedETag() throws IOException {
+        return loadValidators().getProperty(PENDING_ETAG);
+    }
+
+    /**
+     * Get the entity tag of the last committed download.
+     *
+     * @return the entity tag, or null if unknown
+     */
+    String committedETag() throws IOException {
+        return loadValidators().getProperty(ETAG);
+    }
+
+    private void deletePartial(Properties validators) throws IOException {
+        if (partial.exists() && !partial.delete()) {
+            throw new IOException("Cannot delete " + partial);
+        }
+        validators.remove(PARTIAL_ETAG);
+        validators.remove(PARTIAL_LAST_MODIFIED);
+    }
+
+    private Properties loadValidators() throws IOException {
+        Properties validators = new Properties();
+        if (validatorsFile.exists()) {
+            try (InputStream in = new FileInputStream(validatorsFile)) {
+                validators.load(in);
+            }
+        }
+        // Validators of another URL are meaningless
+        if (!urlString.equals(validators.getProperty("url"))) {
+            validators.clear();
+            validators.setProperty("url", urlString);
+        }
+        return validators;
+    }
+
+    private void storeValidators(Properties validators) throws IOException {
+        File tmp = new File(validatorsFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            validators.store(out, null);
+        }
+        if (!tmp.renameTo(validatorsFile)) {
+            throw new IOException("Cannot rename " + tmp + " to " + validatorsFile);
+        }
+    }
+
+    private static void setOrRemove(Properties properties, String key, String value) {
+        if (value == null) {
+            properties.remove(key);
+        } else {
+            properties.setProperty(key, value);
+        }
+    }
+
+    /**
+     * If-Range only accepts strong entity tags.
+     */
+    private static String strongETag(String etag) {
+        return etag == null || etag.startsWith("W/") ? null : etag;
+    }
+
+    /**
+     * Extract the first byte position from a <code>Content-Range</code> value
+     * (e.g. "bytes 1024-2047/5000").
+     */
+    static long contentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package org.c4dt.artiwrapper;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Versioned generations of the directory cache.
+ * <p>
+ * A cache directory updated by {@link TorLibApi#updateCache} holds its files in numbered
+ * generation directories under {@value #GENERATIONS_DIRNAME}. A new archive is extracted into a
+ * staging directory, verified, renamed to its generation number, and published by atomically
+ * replacing the {@value #CURRENT_FILENAME} pointer file. Files of a published generation are
+ * never modified in place (only the churn file is atomically replaced by a newer one), so
+ * {@link Client}s created from it are not affected by updates.
+ * <p>
+ * Each {@link Client} holds a {@link Lease} on the generation it was created from. While a process
+ * leases a generation, it holds a shared lock on the generation's {@value #LEASE_SUFFIX} file, so
+ * that other processes using the same cache directory do not delete it. Generations older than
+ * the current one are deleted once they are leased by no process; newer generations (e.g. being
+ * published by another process) are never deleted.
+ * <p>
+ * A cache directory without published generation (e.g. filled by the application) is used as is.
+ */
+final class CacheGenerations {
+    static final String GENERATIONS_DIRNAME = "generations";
+    static final String CURRENT_FILENAME = "current";
+    static final String STAGING_SUFFIX = ".staging";
+    static final String LEASE_SUFFIX = ".lease";
+
+    /**
+     * Files which must be present in a generation; the churn file is optional.
+     */
+    static final String[] REQUIRED_FILENAMES = new String[]{
+            TorLibApi.CONSENSUS_FILENAME,
+            TorLibApi.MICRODESCRIPTORS_FILENAME,
+            TorLibApi.AUTHORITY_FILENAME,
+            TorLibApi.CERTIFICATE_FILENAME,
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Number of leases per generation directory (canonical path).
+     */
+    private static final Map<String, Integer> leases = new HashMap<>();
+
+    /**
+     * Shared lock held by this process on the lease file of each leased generation (canonical path).
+     */
+    private static final Map<String, FileLock> leaseLocks = new HashMap<>();
+
+    private CacheGenerations() {
+    }
+
+    /**
+     * Lease keeping a generation from being deleted.
+     */
+    static final class Lease implements AutoCloseable {
+        private final File cacheDir;
+        private final File directory;
+        private final String key;
+        private boolean closed;
+
+        private Lease(File cacheDir, File directory, String key) {
+            this.cacheDir = cacheDir;
+            this.directory = directory;
+            this.key = key;
+        }
+
+        /**
+         * Get the directory holding the cache files of the leased generation.
+         */
+        File getDirectory() {
+            return directory;
+        }
+
+        @Override
+        public void close() {
+            synchronized (CacheGenerations.class) {
+                if (closed) return;
+                closed = true;
+                if (key == null) return;
+
+                int count = leases.get(key) - 1;
+                if (count > 0) {
+                    leases.put(key, count);
+                    return;
+                }
+                leases.remove(key);
+                release(leaseLocks.remove(key));
+            }
+            collect(cacheDir);
+        }
+    }
+
+    private static File generationsDir(File cacheDir) {
+        return new File(cacheDir, GENERATIONS_DIRNAME);
+    }
+
+    /**
+     * Get the directory holding the current cache files.
+     *
+     * @param cacheDir the cache directory
+     * @return the current generation, or the cache directory itself if no generation is published
+     */
+    static File current(File cacheDir) {
+        File pointer = new File(generationsDir(cacheDir), CURRENT_FILENAME);
+        if (!pointer.exists()) {
+            return cacheDir;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(pointer), UTF_8))) {
+            String name = reader.readLine();
+            if (name != null) {
+                File generation = new File(generationsDir(cacheDir), name.trim());
+                if (generation.isDirectory()) {
+                    return generation;
+                }
+            }
+        } catch (IOException e) {
+            // Fall through
+        }
+        return cacheDir;
+    }
+
+    /**
+     * Lease the current generation of a cache directory.
+     *
+     * @param cacheDir the cache directory path
+     * @return the lease, to be closed when the generation is not used anymore
+     */
+    static Lease acquire(String cacheDir) {
+        File root = new File(cacheDir);
+        synchronized (CacheGenerations.class) {
+            while (true) {
+                File generation = current(root);
+                if (generation.equals(root)) {
+                    return new Lease(root, root, null);
+                }
+                String key = canonicalPath(generation);
+                Integer count = leases.get(key);
+                if (count == null) {
+                    FileLock lock = lockLease(generation);
+                    if (!generation.isDirectory()) {
+                        // Collected by another process before we could lock it
+                        release(lock);
+                        //noinspection ResultOfMethodCallIgnored
+                        leaseFile(generation).delete();
+                        continue;
+                    }
+                    if (lock != null) {
+                        leaseLocks.put(key, lock);
+                    }
+                }
+                leases.put(key, count == null ? 1 : count + 1);
+                return new Lease(root, generation, key);
+            }
+        }
+    }
+
+    private static File leaseFile(File generation) {
+        return new File(generation.getParentFile(), generation.getName() + LEASE_SUFFIX);
+    }
+
+    /**
+     * Take a shared lock on the lease file of a generation, waiting for another process which
+     * may be deleting it.
+     *
+     * @return the lock, or null if the lease file cannot be locked
+     */
+    private static FileLock lockLease(File generation) {
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(leaseFile(generation), "rw").getChannel();
+            return channel.lock(0, Long.MAX_VALUE, true);
+        } catch (IOException | OverlappingFileLockException e) {
+            Log.d(TorLibApi.TAG, "Cannot lock " + leaseFile(generation) + ": " + e);
+            closeQuietly(channel);
+            return null;
+        }
+    }
+
+    private static void release(FileLock lock) {
+        if (lock == null) return;
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // Released anyway when the channel is closed
+        }
+        closeQuietly(lock.channel());
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Create a new, empty staging directory for the next generation.
+     * Leftover staging directories of interrupted updates are deleted.
+     */
+    static File stage(File cacheDir) throws IOException {
+        File generations = generationsDir(cacheDir);
+        if (!generations.isDirectory() && !generations.mkdirs()) {
+            throw new IOException("Cannot create " + generations);
+        }
+
+        long next = 0;
+        File[] children = generations.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                String name = child.getName();
+                if (name.endsWith(STAGING_SUFFIX)) {
+                    deleteRecursively(child);
+                    name = name.substring(0, name.length() - STAGING_SUFFIX.length());
+                }
+                long number = generationNumber(name);
+                next = Math.max(next, number + 1);
+            }
+        }
+
+        File staging = new File(generations, next + STAGING_SUFFIX);
+        if (!staging.mkdir()) {
+            throw new IOException("Cannot create " + staging);
+        }
+        return staging;
+    }
+
+    /**
+     * Stage a directory filled elsewhere in the cache directory, by moving it into place.
+     *
+     * @param cacheDir the cache directory
+     * @param dir      the directory holding the files of the next generation
+     * @return the staging directory, which replaces <code>dir</code>
+     */
+    static File stage(File cacheDir, File dir) throws IOException {
+        File staging = stage(cacheDir);
+        if (!staging.delete() || !dir.renameTo(staging)) {
+            throw new IOException("Cannot move " + dir + " to " + staging);
+        }
+        return staging;
+    }
+
+    /**
+     * Check that a staging directory holds a complete set of cache files.
+     */
+    static void verify(File staging) throws IOException {
+        for (String fileName : REQUIRED_FILENAMES) {
+            File file = new File(staging, fileName);
+            if (!file.isFile() || file.length() == 0) {
+                throw new IOException(String.format("Cache is missing file \"%s\"", fileName));
+            }
+        }
+    }
+
+    /**
+     * Verify and publish a staging directory as the current generation, then delete the old
+     * generations which are not leased anymore. The rename and the pointer swap happen under the
+     * same lock as {@link #collect(File)}, which never sees the new generation half-published.
+     *
+     * @param cacheDir the cache directory
+     * @param staging  the staging directory returned by {@link #stage(File)}
+     * @return the new current generation
+     */
+    static File publish(File cacheDir, File staging) throws IOException {
+        verify(staging);
+
+        String stagingName = staging.getName();
+        String name = stagingName.substring(0, stagingName.length() - STAGING_SUFFIX.length());
+        File generation = new File(staging.getParentFile(), name);
+        synchronized (CacheGenerations.class) {
+            if (!staging.renameTo(generation)) {
+                throw new IOException("Cannot rename " + staging + " to " + generation);
+            }
+
+            File pointer = new File(generationsDir(cacheDir), CURRENT_FILENAME);
+            File tmp = new File(pointer.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write((name + "\n").getBytes(UTF_8));
+                out.flush();
+            }
+            if (!tmp.renameTo(pointer)) {
+                throw new IOException("Cannot rename " + tmp + " to " + pointer);
+            }
+        }
+
+        collect(cacheDir);
+        return generation;
+    }
+
+    /**
+     * Delete the generations older than the current one which are leased by no process.
+     */
+    static void collect(File cacheDir) {
+        File generations = generationsDir(cacheDir);
+        synchronized (CacheGenerations.class) {
+            File current = current(cacheDir);
+            if (current.equals(cacheDir)) return;
+            long currentNumber = generationNumber(current.getName());
+            File[] children = generations.listFiles();
+            if (children == null) return;
+            for (File child : children) {
+                long number = generationNumber(child.getName());
+                if (!child.isDirectory() || number < 0 || number >= currentNumber) continue;
+                if (leases.containsKey(canonicalPath(child))) continue;
+                deleteIfUnused(child);
+            }
+        }
+    }
+
+    /**
+     * Delete a generation unless another process holds a lease on it.
+     */
+    private static void deleteIfUnused(File generation) {
+        File leaseFile = leaseFile(generation);
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(leaseFile, "rw").getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                Log.d(TorLibApi.TAG, "Generation " + generation.getName() + " is leased by another process");
+                return;
+            }
+            deleteRecursively(generation);
+            //noinspection ResultOfMethodCallIgnored
+            leaseFile.delete();
+        } catch (IOException | OverlappingFileLockException e) {
+            Log.d(TorLibApi.TAG, "Cannot lock " + leaseFile + ": " + e);
+        } finally {
+            // Closing the channel releases the lock
+            closeQuietly(channel);
+        }
+    }
+
+    private static long generationNumber(String name) {
+        try {
+            return Long.parseLong(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
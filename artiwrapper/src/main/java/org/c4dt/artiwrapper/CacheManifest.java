@@ -0,0 +1,243 @@
+package org.c4dt.artiwrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of the files of a cache generation, written by {@link TorLibApi#updateCache}.
+ * <p>
+ * For each file, the manifest records its size, its SHA-256 checksum, and the period during
+ * which it is considered current. Freshness checks read only the manifest, instead of trusting
+ * the modification times of the files, and sizes and checksums allow detecting truncated or
+ * corrupted files.
+ */
+final class CacheManifest {
+    static final String FILENAME = "manifest.bin";
+
+    private static final int MAGIC = 0x4c41434d;
+    private static final int VERSION = 1;
+
+    /**
+     * Manifest entry of a cache file.
+     */
+    static final class FileEntry {
+        final String name;
+        final long size;
+        final String sha256;
+        final long validAfter;
+        final long validUntil;
+
+        FileEntry(String name, long size, String sha256, long validAfter, long validUntil) {
+            this.name = name;
+            this.size = size;
+            this.sha256 = sha256;
+            this.validAfter = validAfter;
+            this.validUntil = validUntil;
+        }
+
+        boolean isFresh(long now) {
+            return validAfter <= now && now < validUntil;
+        }
+    }
+
+    private final String sourceETag;
+    private final Map<String, FileEntry> files = new LinkedHashMap<>();
+
+    CacheManifest(String sourceETag) {
+        this.sourceETag = sourceETag;
+    }
+
+    /**
+     * Create the manifest of a freshly extracted archive. The churn file is current until the end
+     * of the day of <code>validFrom</code>, and the other files until the end of its week (see
+     * {@link #endOfDay(long)} and {@link #endOfWeek(long)}).
+     *
+     * @param dir        the directory of the extracted files
+     * @param digests    the SHA-256 checksums of the extracted files by name
+     * @param sourceETag the entity tag of the archive, or null
+     * @param now        the time of the download
+     * @param validFrom  the time for which the archive was downloaded: <code>now</code>, or the
+     *                   start of the next period when the archive is downloaded ahead of it
+     */
+    static CacheManifest forArchive(File dir, Map<String, String> digests, String sourceETag, long now,
+                                    long validFrom) {
+        CacheManifest manifest = new CacheManifest(sourceETag);
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            String name = digest.getKey();
+            long validUntil = name.equals(TorLibApi.CHURN_FILENAME) ? endOfDay(validFrom) : endOfWeek(validFrom);
+            manifest.put(new FileEntry(name, new File(dir, name).length(), digest.getValue(), now, validUntil));
+        }
+        return manifest;
+    }
+
+    String getSourceETag() {
+        return sourceETag;
+    }
+
+    FileEntry get(String name) {
+        return files.get(name);
+    }
+
+    Collection<FileEntry> entries() {
+        return files.values();
+    }
+
+    void put(FileEntry entry) {
+        files.put(entry.name, entry);
+    }
+
+    /**
+     * Change the end of the validity of a file.
+     */
+    void setValidUntil(String name, long validUntil) {
+        FileEntry entry = files.get(name);
+        if (entry != null) {
+            files.put(name, new FileEntry(name, entry.size, entry.sha256, entry.validAfter, validUntil));
+        }
+    }
+
+    /**
+     * Check whether a file is listed, current, and has the expected size.
+     */
+    boolean isFresh(File dir, String name, long now) {
+        FileEntry entry = files.get(name);
+        return entry != null && entry.isFresh(now) && isIntact(dir, entry);
+    }
+
+    /**
+     * Quick integrity check of a file, comparing only its size.
+     */
+    static boolean isIntact(File dir, FileEntry entry) {
+        File file = new File(dir, entry.name);
+        return file.isFile() && file.length() == entry.size;
+    }
+
+    /**
+     * Full integrity check of the listed files, comparing their sizes and checksums.
+     *
+     * @return the names of the missing or corrupted files
+     */
+    List<String> verify(File dir) throws IOException {
+        List<String> corrupted = new ArrayList<>();
+        for (FileEntry entry : files.values()) {
+            if (!isIntact(dir, entry) || !entry.sha256.equalsIgnoreCase(sha256(new File(dir, entry.name)))) {
+                corrupted.add(entry.name);
+            }
+        }
+        return corrupted;
+    }
+
+    /**
+     * Read the manifest of a directory.
+     *
+     * @return the manifest, or null if it is missing or unreadable
+     */
+    static CacheManifest read(File dir) {
+        File file = new File(dir, FILENAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String etag = in.readUTF();
+            CacheManifest manifest = new CacheManifest(etag.isEmpty() ? null : etag);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                manifest.put(new FileEntry(in.readUTF(), in.readLong(), in.readUTF(), in.readLong(), in.readLong()));
+            }
+            return manifest;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Atomically write the manifest to a directory.
+     */
+    void write(File dir) throws IOException {
+        File file = new File(dir, FILENAME);
+        File tmp = new File(dir, FILENAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(sourceETag == null ? "" : sourceETag);
+            out.writeInt(files.size());
+            for (FileEntry entry : files.values()) {
+                out.writeUTF(entry.name);
+                out.writeLong(entry.size);
+                out.writeUTF(entry.sha256);
+                out.writeLong(entry.validAfter);
+                out.writeLong(entry.validUntil);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int nbRead;
+            while ((nbRead = in.read(buf)) != -1) {
+                digest.update(buf, 0, nbRead);
+            }
+        }
+        return ArchiveExtractor.toHex(digest.digest());
+    }
+
+    /**
+     * Get the start of the day following a time.
+     */
+    static long endOfDay(long millis) {
+        Calendar cal = Calendar.getInstance(Locale.UK);
+        cal.setTimeInMillis(millis);
+        truncateToDay(cal);
+        cal.add(Calendar.DAY_OF_YEAR, 1);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Get the start of the week following a time, weeks starting on Monday.
+     */
+    static long endOfWeek(long millis) {
+        // Use UK locale to have Monday as the first day of the week
+        Calendar cal = Calendar.getInstance(Locale.UK);
+        cal.setTimeInMillis(millis);
+        truncateToDay(cal);
+        cal.set(Calendar.DAY_OF_WEEK, cal.getFirstDayOfWeek());
+        cal.add(Calendar.WEEK_OF_YEAR, 1);
+        return cal.getTimeInMillis();
+    }
+
+    private static void truncateToDay(Calendar cal) {
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+    }
+}
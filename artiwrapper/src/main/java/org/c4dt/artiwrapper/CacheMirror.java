@@ -0,0 +1,60 @@
+package org.c4dt.artiwrapper;
+
+/**
+ * Source of the directory cache releases, see
+ * {@link TorLibApi#updateCache(String, java.util.List, TorLibApi.TorLibCallback)}.
+ * <p>
+ * Among several mirrors, the one tried first is drawn at random in proportion to its weight,
+ * corrected by the latency observed on previous downloads.
+ */
+public final class CacheMirror {
+    /**
+     * The C4DT releases on GitHub.
+     */
+    public static final CacheMirror C4DT = new CacheMirror(TorLibApi.DIRECTORY_CACHE_C4DT, TorLibApi.CHURN_CACHE_C4DT, 1);
+
+    private final String archiveUrl;
+    private final String churnUrl;
+    private final int weight;
+
+    /**
+     * @param archiveUrl the URL of the full archive
+     * @param churnUrl   the URL of the churn file
+     * @param weight     the relative share of the downloads for this mirror, at least 1
+     */
+    public CacheMirror(String archiveUrl, String churnUrl, int weight) {
+        if (archiveUrl == null || churnUrl == null) {
+            throw new IllegalArgumentException("Mirror URLs must not be null");
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight < 1: " + weight);
+        }
+        this.archiveUrl = archiveUrl;
+        this.churnUrl = churnUrl;
+        this.weight = weight;
+    }
+
+    public String getArchiveUrl() {
+        return archiveUrl;
+    }
+
+    public String getChurnUrl() {
+        return churnUrl;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Name of the directory holding the downloads from this mirror.
+     */
+    String downloadsDirName() {
+        return String.format("%08x", archiveUrl.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "CacheMirror{" + archiveUrl + ", weight=" + weight + "}";
+    }
+}
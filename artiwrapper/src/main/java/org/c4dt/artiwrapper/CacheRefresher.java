@@ -0,0 +1,376 @@
+package org.c4dt.artiwrapper;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background refresher of a directory cache.
+ * <p>
+ * Instead of updating the cache when the application starts, which delays the creation of the
+ * first {@link Client} after each week or day boundary, the refresher updates the cache ahead of
+ * the time at which it stops being current (see {@link TorLibApi#updateCache}). Refreshes are
+ * spread randomly over {@link #getMaxJitterMillis()} before that time, so that many devices do
+ * not request the releases at the same moment. If a refresh cannot bring the cache up to date
+ * before that time, it is retried after it, but no later than {@link #getMaxStalenessMillis()};
+ * failed refreshes are retried with an exponential backoff.
+ * <p>
+ * At startup, a cache for which {@link #isUsable()} returns true can be used right away, while
+ * the refresher brings it up to date in the background.
+ */
+public class CacheRefresher {
+    public static final long DEFAULT_LEAD_TIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final long DEFAULT_MAX_JITTER_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    public static final long DEFAULT_MAX_STALENESS_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    static final long MIN_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Listener of the refreshes. Methods are called on a thread of the scheduler, or on the
+     * thread calling {@link #start()} or {@link #refreshNow()} for scheduling events.
+     */
+    public interface Listener {
+        /**
+         * A refresh is scheduled.
+         *
+         * @param delayMillis the delay before the refresh
+         */
+        void onRefreshScheduled(long delayMillis);
+
+        /**
+         * A refresh succeeded.
+         *
+         * @param status what was done
+         */
+        void onRefreshCompleted(TorLibApi.CacheUpdateStatus status);
+
+        /**
+         * A refresh failed.
+         *
+         * @param e                the cause of the failure
+         * @param retryDelayMillis the delay before the next attempt
+         */
+        void onRefreshFailed(Exception e, long retryDelayMillis);
+
+        /**
+         * The cache is no longer current for more than the maximum staleness.
+         * Called once until the cache is up to date again.
+         *
+         * @param stalenessMillis the time since the cache is no longer current
+         */
+        void onStalenessBudgetExceeded(long stalenessMillis);
+    }
+
+    private final File cacheDir;
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+
+    private volatile List<CacheMirror> mirrors;
+    private volatile String deltaUrl;
+    private volatile Listener listener;
+    private volatile long leadTimeMillis = DEFAULT_LEAD_TIME_MILLIS;
+    private volatile long maxJitterMillis = DEFAULT_MAX_JITTER_MILLIS;
+    private volatile long maxStalenessMillis = DEFAULT_MAX_STALENESS_MILLIS;
+
+    private boolean started;
+    private ScheduledFuture<?> nextRefresh;
+    // Expiry time for which a refresh was already done ahead
+    private long refreshedAheadOf = -1;
+    private int failures;
+    private boolean budgetExceededReported;
+
+    /**
+     * Create a refresher of a cache directory, using the C4DT releases.
+     *
+     * @param cacheDir  the cache directory, as passed to {@link TorLibApi#updateCache}
+     * @param scheduler the executor on which refreshes are scheduled and run
+     */
+    public CacheRefresher(String cacheDir, ScheduledExecutorService scheduler) {
+        this(new File(cacheDir), scheduler, TorLibApi.DIRECTORY_CACHE_C4DT, TorLibApi.CHURN_CACHE_C4DT, new Random());
+    }
+
+    CacheRefresher(File cacheDir, ScheduledExecutorService scheduler, String archiveUrl, String churnUrl,
+                   Random random) {
+        this.cacheDir = cacheDir;
+        this.scheduler = scheduler;
+        this.mirrors = Collections.singletonList(new CacheMirror(archiveUrl, churnUrl, 1));
+        this.random = random;
+    }
+
+    /**
+     * Set the mirrors from which the cache is refreshed, see
+     * {@link TorLibApi#updateCache(String, List, TorLibApi.TorLibCallback)}.
+     *
+     * @param mirrors the mirrors, by default only {@link CacheMirror#C4DT}
+     */
+    public void setMirrors(List<CacheMirror> mirrors) {
+        if (mirrors.isEmpty()) {
+            throw new IllegalArgumentException("No cache mirror");
+        }
+        this.mirrors = new ArrayList<>(mirrors);
+    }
+
+    /**
+     * Set the listener of the refreshes.
+     *
+     * @param listener the listener, or null
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the base URL of the deltas between releases, see {@link TorLibApi#setDeltaUrl(String)}.
+     *
+     * @param deltaUrl the base URL of the deltas, or null (default) to always download the full archive
+     */
+    public void setDeltaUrl(String deltaUrl) {
+        this.deltaUrl = deltaUrl;
+    }
+
+    /**
+     * Get how long before the cache expires a refresh is done, jitter excluded.
+     *
+     * @return the lead time in milliseconds
+     */
+    public long getLeadTimeMillis() {
+        return leadTimeMillis;
+    }
+
+    /**
+     * Set how long before the cache expires a refresh is done, jitter excluded.
+     * Takes effect for the next scheduled refresh.
+     *
+     * @param leadTimeMillis the lead time in milliseconds
+     */
+    public void setLeadTimeMillis(long leadTimeMillis) {
+        if (leadTimeMillis < 0) {
+            throw new IllegalArgumentException("leadTimeMillis < 0: " + leadTimeMillis);
+        }
+        this.leadTimeMillis = leadTimeMillis;
+    }
+
+    /**
+     * Get the maximum random delay added to the lead time.
+     *
+     * @return the maximum jitter in milliseconds
+     */
+    public long getMaxJitterMillis() {
+        return maxJitterMillis;
+    }
+
+    /**
+     * Set the maximum random delay added to the lead time.
+     * Takes effect for the next scheduled refresh.
+     *
+     * @param maxJitterMillis the maximum jitter in milliseconds
+     */
+    public void setMaxJitterMillis(long maxJitterMillis) {
+        if (maxJitterMillis < 0) {
+            throw new IllegalArgumentException("maxJitterMillis < 0: " + maxJitterMillis);
+        }
+        this.maxJitterMillis = maxJitterMillis;
+    }
+
+    /**
+     * Get how long the cache may be used after it expired.
+     *
+     * @return the maximum staleness in milliseconds
+     */
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    /**
+     * Set how long the cache may be used after it expired. Once this budget is exceeded, refreshes
+     * are no longer delayed by a jitter.
+     *
+     * @param maxStalenessMillis the maximum staleness in milliseconds
+     */
+    public void setMaxStalenessMillis(long maxStalenessMillis) {
+        if (maxStalenessMillis < 0) {
+            throw new IllegalArgumentException("maxStalenessMillis < 0: " + maxStalenessMillis);
+        }
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /**
+     * Get the time since the cache is no longer current.
+     *
+     * @return the staleness in milliseconds, 0 if the cache is current, or
+     * {@link Long#MAX_VALUE} if cache files are missing
+     */
+    public long getStalenessMillis() {
+        long expiry = CacheUpdater.expiryTime(cacheDir);
+        if (expiry == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, System.currentTimeMillis() - expiry);
+    }
+
+    /**
+     * Check whether the cache can be used to create a {@link Client} without waiting for a
+     * refresh, i.e. whether all the files are present and the cache is within the staleness budget.
+     *
+     * @return true if the cache is usable
+     */
+    public boolean isUsable() {
+        return getStalenessMillis() <= maxStalenessMillis;
+    }
+
+    /**
+     * Start refreshing the cache. The first refresh is scheduled right away if the cache is
+     * not current.
+     */
+    public void start() {
+        long delay;
+        synchronized (this) {
+            if (started) return;
+            started = true;
+            delay = nextDelay(System.currentTimeMillis());
+        }
+        schedule(delay);
+    }
+
+    /**
+     * Stop refreshing the cache. A refresh which is running is completed.
+     */
+    public synchronized void stop() {
+        started = false;
+        if (nextRefresh != null) {
+            nextRefresh.cancel(false);
+            nextRefresh = null;
+        }
+    }
+
+    /**
+     * Refresh the cache as soon as possible, e.g. after a failure of the network.
+     * Does nothing if the refresher is not started.
+     */
+    public void refreshNow() {
+        synchronized (this) {
+            failures = 0;
+        }
+        schedule(0);
+    }
+
+    private void schedule(long delayMillis) {
+        synchronized (this) {
+            if (!started) return;
+            if (nextRefresh != null) {
+                nextRefresh.cancel(false);
+            }
+            nextRefresh = scheduler.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        Log.d(TorLibApi.TAG, "Cache refresh scheduled in " + delayMillis + " ms");
+        Listener l = listener;
+        if (l != null) {
+            l.onRefreshScheduled(delayMillis);
+        }
+    }
+
+    /**
+     * Compute the delay before the next refresh.
+     */
+    synchronized long nextDelay(long now) {
+        long expiry = CacheUpdater.expiryTime(cacheDir);
+        if (expiry <= now) {
+            // Expired: refresh soon, within the staleness budget
+            long staleness = now - expiry;
+            if (staleness >= maxStalenessMillis) {
+                return 0;
+            }
+            return jitter(Math.min(maxJitterMillis, maxStalenessMillis - staleness));
+        }
+
+        if (expiry == refreshedAheadOf) {
+            // Already refreshed ahead: nothing newer was available, try again once expired
+            return expiry - now + jitter(Math.min(maxJitterMillis, maxStalenessMillis));
+        }
+        long refreshAt = expiry - leadTimeMillis - jitter(maxJitterMillis);
+        if (refreshAt > now) {
+            return refreshAt - now;
+        }
+        return jitter(Math.min(maxJitterMillis, expiry - now));
+    }
+
+    private long jitter(long maxMillis) {
+        if (maxMillis <= 0) return 0;
+        return (long) (random.nextDouble() * maxMillis);
+    }
+
+    private synchronized long retryDelay() {
+        failures++;
+        long delay = MIN_RETRY_DELAY_MILLIS << Math.min(failures - 1, 30);
+        delay = Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+        // Full jitter over the upper half, so that retries of many devices spread out
+        return delay / 2 + jitter(delay / 2);
+    }
+
+    void refresh() {
+        synchronized (this) {
+            if (!started) return;
+        }
+        long now = System.currentTimeMillis();
+        long expiry = CacheUpdater.expiryTime(cacheDir);
+        boolean ahead = expiry > now;
+        CacheUpdater updater = new CacheUpdater(mirrors, deltaUrl, MirrorStats.SHARED);
+
+        Listener l = listener;
+        try {
+            // Ahead of the expiry, update what will be obsolete by then
+            TorLibApi.CacheUpdateStatus status = updater.updateShared(cacheDir, ahead ? expiry : now);
+            Log.d(TorLibApi.TAG, "Cache refreshed: " + status);
+
+            long delay;
+            synchronized (this) {
+                failures = 0;
+                if (ahead) {
+                    refreshedAheadOf = expiry;
+                }
+                now = System.currentTimeMillis();
+                delay = nextDelay(now);
+                if (CacheUpdater.expiryTime(cacheDir) > now) {
+                    budgetExceededReported = false;
+                } else {
+                    // Still expired after a successful refresh: do not retry in a loop
+                    delay = Math.max(delay, MIN_RETRY_DELAY_MILLIS);
+                }
+            }
+            if (l != null) {
+                l.onRefreshCompleted(status);
+            }
+            checkStaleness();
+            schedule(delay);
+        } catch (Exception e) {
+            Log.d(TorLibApi.TAG, "Cache refresh failed: " + e);
+            long delay = retryDelay();
+            if (l != null) {
+                l.onRefreshFailed(e, delay);
+            }
+            checkStaleness();
+            schedule(delay);
+        }
+    }
+
+    private void checkStaleness() {
+        long staleness = getStalenessMillis();
+        synchronized (this) {
+            if (staleness <= maxStalenessMillis || budgetExceededReported) return;
+            budgetExceededReported = true;
+        }
+        Log.w(TorLibApi.TAG, "Cache staleness budget exceeded");
+        Listener l = listener;
+        if (l != null) {
+            l.onStalenessBudgetExceeded(staleness);
+        }
+    }
+}
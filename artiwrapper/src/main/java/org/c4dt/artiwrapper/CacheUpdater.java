@@ -0,0 +1,749 @@
+package org.c4dt.artiwrapper;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Update of a directory cache from the releases, on behalf of {@link TorLibApi#updateCache}.
+ * <p>
+ * Depending on the state of the cache, nothing, the churn file only, a delta or the full archive
+ * is downloaded. New archives and deltas are published as a new cache generation (see
+ * {@link CacheGenerations}). The archive and churn file are downloaded from the fastest of the
+ * mirrors, see {@link HedgedDownload}.
+ */
+final class CacheUpdater {
+    /**
+     * Directory within the cache directory where downloads are kept until they are applied, so
+     * that an interrupted download can be resumed.
+     */
+    static final String DOWNLOADS_DIRNAME = "downloads";
+    static final String ARCHIVE_FILENAME = "directory-cache.tgz";
+    static final String DELTA_FILENAME = "directory-cache.delta";
+    /**
+     * Directory next to a downloaded archive where it is extracted, before it becomes the next
+     * cache generation.
+     */
+    static final String EXTRACTED_DIRNAME = "extracted";
+    /**
+     * File locked during updates, so that processes sharing a cache directory update it one at
+     * a time.
+     */
+    static final String LOCK_FILENAME = "update.lock";
+
+    /**
+     * Updates running in this process, by canonical path of their cache directory.
+     */
+    private static final Map<String, Flight> FLIGHTS = new HashMap<>();
+
+    /**
+     * Update of a cache directory, whose result is shared by all the callers which asked for
+     * an update while it was running.
+     */
+    static final class Flight {
+        private final List<TorLibApi.TorLibCallback<TorLibApi.CacheUpdateStatus>> callbacks = new ArrayList<>();
+        private boolean done;
+        private TorLibApi.CacheUpdateStatus status;
+        private Exception error;
+
+        void addCallback(TorLibApi.TorLibCallback<TorLibApi.CacheUpdateStatus> callback) {
+            synchronized (this) {
+                if (!done) {
+                    callbacks.add(callback);
+                    return;
+                }
+            }
+            callback.onComplete(result());
+        }
+
+        synchronized TorLibApi.CacheUpdateStatus await() throws IOException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw (RuntimeException) error;
+            }
+            return status;
+        }
+
+        void complete(TorLibApi.CacheUpdateStatus status, Exception error) {
+            List<TorLibApi.TorLibCallback<TorLibApi.CacheUpdateStatus>> toNotify;
+            synchronized (this) {
+                this.status = status;
+                this.error = error;
+                done = true;
+                notifyAll();
+                toNotify = new ArrayList<>(callbacks);
+                callbacks.clear();
+            }
+            for (TorLibApi.TorLibCallback<TorLibApi.CacheUpdateStatus> callback : toNotify) {
+                callback.onComplete(result());
+            }
+        }
+
+        private synchronized TorLibApi.TorRequestResult<TorLibApi.CacheUpdateStatus> result() {
+            return error == null ? new TorLibApi.TorRequestResult.Success<>(status) :
+                    new TorLibApi.TorRequestResult.Error<>(error);
+        }
+    }
+
+    private final List<CacheMirror> mirrors;
+    private final String deltaUrl;
+    private final MirrorStats stats;
+    private final Random random = new Random();
+
+    /**
+     * @param archiveUrl the URL of the full archive
+     * @param churnUrl   the URL of the churn file
+     * @param deltaUrl   the base URL of the deltas (see {@link #deltaUrl(String, String)}), or null
+     *                   to always download the full archive
+     */
+    CacheUpdater(String archiveUrl, String churnUrl, String deltaUrl) {
+        this(Collections.singletonList(new CacheMirror(archiveUrl, churnUrl, 1)), deltaUrl, MirrorStats.SHARED);
+    }
+
+    /**
+     * @param mirrors  the mirrors of the archive and churn file
+     * @param deltaUrl the base URL of the deltas (see {@link #deltaUrl(String, String)}), or null
+     *                 to always download the full archive
+     * @param stats    the latency statistics of the mirrors
+     */
+    CacheUpdater(List<CacheMirror> mirrors, String deltaUrl, MirrorStats stats) {
+        if (mirrors.isEmpty()) {
+            throw new IllegalArgumentException("No cache mirror");
+        }
+        this.mirrors = new ArrayList<>(mirrors);
+        this.deltaUrl = deltaUrl;
+        this.stats = stats;
+    }
+
+    static final class CacheState {
+        final boolean missingFiles;
+        final boolean udescIsCurrent;
+        final boolean churnFileIsCurrent;
+        /**
+         * The time at which the state was examined. Files downloaded to bring the cache up to
+         * date are current for the period containing it.
+         */
+        final long time;
+
+        CacheState(boolean missingFiles, boolean udescIsCurrent, boolean churnFileIsCurrent, long time) {
+            this.missingFiles = missingFiles;
+            this.udescIsCurrent = udescIsCurrent;
+            this.churnFileIsCurrent = churnFileIsCurrent;
+            this.time = time;
+        }
+
+        boolean isUpToDate() {
+            return udescIsCurrent && churnFileIsCurrent;
+        }
+    }
+
+    static CacheState getCacheState(File destDir) {
+        return getCacheState(destDir, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the state of the cache files at a given time, e.g. to anticipate their expiry.
+     */
+    static CacheState getCacheState(File destDir, long millis) {
+        File cacheFiles = CacheGenerations.current(destDir);
+
+        // Files written by updateCache(): rely on the manifest instead of the modification times
+        CacheManifest manifest = CacheManifest.read(cacheFiles);
+        if (manifest != null) {
+            return getCacheState(manifest, cacheFiles, millis);
+        }
+
+        // Use UK locale to have Monday as the first day of the week
+        Calendar now = Calendar.getInstance(Locale.UK);
+        now.setTimeInMillis(millis);
+
+        int currentYear = now.get(Calendar.YEAR);
+        int currentDayOfYear = now.get(Calendar.DAY_OF_YEAR);
+        int currentWeekOfYear = now.get(Calendar.WEEK_OF_YEAR);
+
+        boolean udescIsCurrent = false;
+        boolean churnFileIsCurrent = false;
+
+        boolean missingFiles = false;
+        // Churn file is optional, hence not required
+        for (String fileName : CacheGenerations.REQUIRED_FILENAMES) {
+            if (!new File(cacheFiles, fileName).exists()) {
+                Log.d(TorLibApi.TAG, String.format("Cache is missing file \"%s\"", fileName));
+                missingFiles = true;
+            }
+        }
+
+        if (!missingFiles) {
+            File udescFile = new File(cacheFiles, TorLibApi.MICRODESCRIPTORS_FILENAME);
+            Calendar udescTime = Calendar.getInstance(Locale.UK);
+            udescTime.setTimeInMillis(udescFile.lastModified());
+            if ((currentYear == udescTime.get(Calendar.YEAR)) &&
+                    (currentWeekOfYear == udescTime.get(Calendar.WEEK_OF_YEAR))) {
+                udescIsCurrent = true;
+
+                File churnFile = new File(cacheFiles, TorLibApi.CHURN_FILENAME);
+                if (churnFile.exists()) {
+                    Calendar churnTime = Calendar.getInstance(Locale.UK);
+                    churnTime.setTimeInMillis(churnFile.lastModified());
+                    if ((currentYear == churnTime.get(Calendar.YEAR)) &&
+                            (currentDayOfYear == churnTime.get(Calendar.DAY_OF_YEAR))) {
+                        churnFileIsCurrent = true;
+                    }
+                } else {
+                    Log.d(TorLibApi.TAG, "Churn file does not exist");
+                }
+            }
+        }
+
+        return new CacheState(missingFiles, udescIsCurrent, churnFileIsCurrent, millis);
+    }
+
+    private static CacheState getCacheState(CacheManifest manifest, File cacheFiles, long now) {
+        boolean missingFiles = false;
+        // Churn file is optional, hence not required
+        for (String fileName : CacheGenerations.REQUIRED_FILENAMES) {
+            // Quick integrity check: a missing or truncated file requires a full download
+            CacheManifest.FileEntry entry = manifest.get(fileName);
+            if (entry == null || !CacheManifest.isIntact(cacheFiles, entry)) {
+                Log.d(TorLibApi.TAG, String.format("Cache is missing file \"%s\"", fileName));
+                missingFiles = true;
+            }
+        }
+
+        boolean udescIsCurrent = !missingFiles && manifest.get(TorLibApi.MICRODESCRIPTORS_FILENAME).isFresh(now);
+        boolean churnFileIsCurrent = udescIsCurrent && manifest.isFresh(cacheFiles, TorLibApi.CHURN_FILENAME, now);
+        return new CacheState(missingFiles, udescIsCurrent, churnFileIsCurrent, now);
+    }
+
+    /**
+     * Get the time at which the cache files stop being up to date, i.e. the start of the next
+     * day for the churn file, or of the next week for the other files.
+     *
+     * @return the expiry time, which is 0 if required files are missing
+     */
+    static long expiryTime(File destDir) {
+        File cacheFiles = CacheGenerations.current(destDir);
+
+        CacheManifest manifest = CacheManifest.read(cacheFiles);
+        if (manifest != null) {
+            for (String fileName : CacheGenerations.REQUIRED_FILENAMES) {
+                CacheManifest.FileEntry entry = manifest.get(fileName);
+                if (entry == null || !CacheManifest.isIntact(cacheFiles, entry)) {
+                    return 0;
+                }
+            }
+            CacheManifest.FileEntry udesc = manifest.get(TorLibApi.MICRODESCRIPTORS_FILENAME);
+            CacheManifest.FileEntry churn = manifest.get(TorLibApi.CHURN_FILENAME);
+            if (churn == null || !CacheManifest.isIntact(cacheFiles, churn)) {
+                // Without churn file, the cache is not current since it was downloaded
+                return udesc.validAfter;
+            }
+            return Math.min(udesc.validUntil, churn.validUntil);
+        }
+
+        for (String fileName : CacheGenerations.REQUIRED_FILENAMES) {
+            if (!new File(cacheFiles, fileName).exists()) {
+                return 0;
+            }
+        }
+        long udescTime = new File(cacheFiles, TorLibApi.MICRODESCRIPTORS_FILENAME).lastModified();
+        File churnFile = new File(cacheFiles, TorLibApi.CHURN_FILENAME);
+        if (!churnFile.exists()) {
+            return udescTime;
+        }
+        return Math.min(CacheManifest.endOfWeek(udescTime), CacheManifest.endOfDay(churnFile.lastModified()));
+    }
+
+    /**
+     * Examine the current files, and download what is needed to bring them up to date.
+     *
+     * @param destDir the cache directory
+     * @return what was done
+     */
+    TorLibApi.CacheUpdateStatus update(File destDir) throws IOException {
+        CacheState cacheState = getCacheState(destDir);
+        if (cacheState.isUpToDate()) {
+            Log.d(TorLibApi.TAG, "Churn file is current -- cache is already up to date");
+            return TorLibApi.CacheUpdateStatus.CACHE_IS_UP_TO_DATE;
+        }
+        return update(destDir, cacheState);
+    }
+
+    private static String flightKey(File destDir) {
+        try {
+            return destDir.getCanonicalPath();
+        } catch (IOException e) {
+            return destDir.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Register a new update of a cache directory, unless one is already running.
+     *
+     * @return the running update, or null if the new one was registered
+     */
+    private static Flight joinFlight(String key, Flight flight) {
+        synchronized (FLIGHTS) {
+            Flight running = FLIGHTS.get(key);
+            if (running != null) {
+                return running;
+            }
+            FLIGHTS.put(key, flight);
+            return null;
+        }
+    }
+
+    private void runFlight(String key, Flight flight, File destDir, long stateTime) {
+        TorLibApi.CacheUpdateStatus status = null;
+        Exception error = null;
+        try {
+            status = updateLocked(destDir, stateTime);
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        } finally {
+            synchronized (FLIGHTS) {
+                FLIGHTS.remove(key);
+            }
+        }
+        flight.complete(status, error);
+    }
+
+    /**
+     * Update a cache directory on an executor. If an update of the directory is already running
+     * in this process, no new update is started, and the callback receives the result of the
+     * running update.
+     *
+     * @param destDir  the cache directory
+     * @param executor the executor running the update
+     * @param callback the callback which will be called when the update is done
+     */
+    void updateAsync(final File destDir, Executor executor,
+                     TorLibApi.TorLibCallback<TorLibApi.CacheUpdateStatus> callback) {
+        final String key = flightKey(destDir);
+        final Flight flight = new Flight();
+        Flight running = joinFlight(key, flight);
+        if (running != null) {
+            Log.d(TorLibApi.TAG, "Cache update already running -- waiting for its result");
+            running.addCallback(callback);
+            return;
+        }
+
+        flight.addCallback(callback);
+        try {
+            executor.execute(() -> runFlight(key, flight, destDir, System.currentTimeMillis()));
+        } catch (RuntimeException e) {
+            synchronized (FLIGHTS) {
+                FLIGHTS.remove(key);
+            }
+            flight.complete(null, e);
+        }
+    }
+
+    /**
+     * Update a cache directory on the calling thread, or wait for the result of the update of
+     * the directory which is already running in this process.
+     *
+     * @param destDir   the cache directory
+     * @param stateTime the time at which the files must be up to date, see
+     *                  {@link #getCacheState(File, long)}
+     * @return what was done
+     */
+    TorLibApi.CacheUpdateStatus updateShared(File destDir, long stateTime) throws IOException {
+        String key = flightKey(destDir);
+        Flight flight = new Flight();
+        Flight running = joinFlight(key, flight);
+        if (running != null) {
+            Log.d(TorLibApi.TAG, "Cache update already running -- waiting for its result");
+            return running.await();
+        }
+        runFlight(key, flight, destDir, stateTime);
+        return flight.await();
+    }
+
+    /**
+     * Update a cache directory while holding its lock file. Other processes updating the same
+     * directory wait for the lock; as the files are examined once the lock is held, an update
+     * completed by another process in the meantime is not done again.
+     */
+    private TorLibApi.CacheUpdateStatus updateLocked(File destDir, long stateTime) throws IOException {
+        if (!destDir.isDirectory() && !destDir.mkdirs()) {
+            throw new IOException("Cannot create " + destDir);
+        }
+        try (RandomAccessFile lockFile = new RandomAccessFile(new File(destDir, LOCK_FILENAME), "rw");
+             FileChannel channel = lockFile.getChannel()) {
+            // Released when the channel is closed
+            channel.lock();
+
+            CacheState cacheState = getCacheState(destDir, Math.max(stateTime, System.currentTimeMillis()));
+            if (cacheState.isUpToDate()) {
+                Log.d(TorLibApi.TAG, "Cache is already up to date");
+                return TorLibApi.CacheUpdateStatus.CACHE_IS_UP_TO_DATE;
+            }
+            return update(destDir, cacheState);
+        }
+    }
+
+    /**
+     * Download what is needed to bring the files up to date, given their state. When the state
+     * is examined ahead of the expiry of the files, new files are current for the next period.
+     *
+     * @param destDir    the cache directory
+     * @param cacheState the state of the cache, which is not up to date
+     * @return what was done
+     */
+    TorLibApi.CacheUpdateStatus update(File destDir, CacheState cacheState) throws IOException {
+        if (cacheState.udescIsCurrent) {
+            Log.d(TorLibApi.TAG, "Microdescriptors file is current -- download churn file only");
+            return fetchChurnFile(destDir, cacheState.time);
+        }
+
+        if (!cacheState.missingFiles && deltaUrl != null) {
+            Log.d(TorLibApi.TAG, "Microdescriptors file is not current -- try to apply a delta");
+            TorLibApi.CacheUpdateStatus status = applyDelta(destDir, cacheState.time);
+            if (status != null) {
+                return status;
+            }
+        }
+
+        Log.d(TorLibApi.TAG, "Microdescriptors file is not current -- download full cache");
+        return fetchFullCache(destDir, !cacheState.missingFiles, cacheState.time);
+    }
+
+    private static File downloadsDir(File destDir) throws IOException {
+        return mkdirs(new File(destDir, DOWNLOADS_DIRNAME));
+    }
+
+    private static File mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Prepare the download of a file from all the mirrors. Each mirror has its own downloads
+     * directory, so that validators and partial downloads are kept by mirror.
+     *
+     * @param archive  whether to download the archive, or the churn file
+     * @param verifier the verification of the downloaded file, or null
+     */
+    private HedgedDownload hedgedDownload(File destDir, boolean archive, HedgedDownload.Verifier verifier)
+            throws IOException {
+        List<CacheDownloader> downloaders = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (CacheMirror mirror : mirrors) {
+            File dir = mkdirs(new File(downloadsDir(destDir), mirror.downloadsDirName()));
+            downloaders.add(archive ?
+                    new CacheDownloader(mirror.getArchiveUrl(), new File(dir, ARCHIVE_FILENAME)) :
+                    new CacheDownloader(mirror.getChurnUrl(), new File(dir, TorLibApi.CHURN_FILENAME)));
+            weights.add(mirror.getWeight());
+        }
+        return new HedgedDownload(downloaders, weights, stats, verifier, random);
+    }
+
+    /**
+     * Extract a downloaded archive next to it. This also verifies the archive, so that a
+     * corrupted download from one mirror does not win over a valid one from another mirror.
+     *
+     * @return the SHA-256 checksums of the extracted files, by file name
+     */
+    private static Map<String, String> extractArchive(File archive) throws IOException {
+        File extracted = new File(archive.getParentFile(), EXTRACTED_DIRNAME);
+        CacheGenerations.deleteRecursively(extracted);
+        try (InputStream fin = new FileInputStream(archive)) {
+            return new ArchiveExtractor(ArchiveExtractor.DEFAULT_BUFFER_SIZE,
+                    ArchiveExtractor.DEFAULT_QUEUE_CAPACITY, true).extract(fin, mkdirs(extracted), null);
+        } catch (IOException e) {
+            CacheGenerations.deleteRecursively(extracted);
+            throw e;
+        }
+    }
+
+    /**
+     * Download the churn cache file.
+     *
+     * @param destDir   the cache directory
+     * @param validFrom the time for which a new churn file is downloaded, see
+     *                  {@link CacheManifest#forArchive}
+     */
+    TorLibApi.CacheUpdateStatus fetchChurnFile(File destDir, long validFrom) throws IOException {
+        File churnFile = new File(CacheGenerations.current(destDir), TorLibApi.CHURN_FILENAME);
+        HedgedDownload.Result result = hedgedDownload(destDir, false, null).download(churnFile.exists());
+        CacheDownloader downloader = result.downloader;
+
+        if (!result.modified) {
+            Log.d(TorLibApi.TAG, "Churn file not modified");
+            // The current churn file is as recent as a new download, but not newer
+            long now = System.currentTimeMillis();
+            churnFile.setLastModified(now);
+            recordChurnFile(churnFile, now);
+            return TorLibApi.CacheUpdateStatus.CACHE_IS_UP_TO_DATE;
+        }
+
+        // The churn file is replaced atomically, so that clients never read a partial file
+        if (!downloader.getTarget().renameTo(churnFile)) {
+            throw new IOException("Cannot rename " + downloader.getTarget() + " to " + churnFile);
+        }
+        recordChurnFile(churnFile, Math.max(validFrom, System.currentTimeMillis()));
+        downloader.commit();
+        return TorLibApi.CacheUpdateStatus.DOWNLOADED_CHURN_FILE;
+    }
+
+    /**
+     * Record a new or revalidated churn file in the manifest of its generation, if any.
+     *
+     * @param validFrom the time whose day the churn file is current for
+     */
+    private static void recordChurnFile(File churnFile, long validFrom) throws IOException {
+        File generation = churnFile.getParentFile();
+        CacheManifest manifest = CacheManifest.read(generation);
+        if (manifest == null) return;
+
+        long now = System.currentTimeMillis();
+        manifest.put(new CacheManifest.FileEntry(TorLibApi.CHURN_FILENAME, churnFile.length(),
+                CacheManifest.sha256(churnFile), now, CacheManifest.endOfDay(validFrom)));
+        manifest.write(generation);
+    }
+
+    /**
+     * Record that the current files are as recent as the latest release, then bring the churn
+     * file up to date. The current files are not newer than the latest release, so they stay
+     * current for this week only.
+     */
+    private TorLibApi.CacheUpdateStatus revalidate(File destDir, long validFrom) throws IOException {
+        File generation = CacheGenerations.current(destDir);
+        long now = System.currentTimeMillis();
+        new File(generation, TorLibApi.MICRODESCRIPTORS_FILENAME).setLastModified(now);
+        CacheManifest manifest = CacheManifest.read(generation);
+        if (manifest != null) {
+            for (CacheManifest.FileEntry entry : manifest.entries()) {
+                if (entry.name.equals(TorLibApi.CHURN_FILENAME)) continue;
+                manifest.setValidUntil(entry.name, CacheManifest.endOfWeek(now));
+            }
+            manifest.write(generation);
+        }
+        return fetchChurnFile(destDir, validFrom);
+    }
+
+    /**
+     * Download the full cache files.
+     * The archive is expected to be a gzipped tar archive containing all the files within the
+     * root directory. Each mirror's download is extracted as soon as it completes, and the first
+     * one extracted without error becomes a new cache generation, which is then published.
+     *
+     * @param destDir     the cache directory
+     * @param conditional whether the archive may be skipped if it was not modified
+     * @param validFrom   the time for which the archive is downloaded, see
+     *                    {@link CacheManifest#forArchive}
+     */
+    TorLibApi.CacheUpdateStatus fetchFullCache(File destDir, boolean conditional, long validFrom)
+            throws IOException {
+        final Map<File, Map<String, String>> extracted = new ConcurrentHashMap<>();
+        HedgedDownload.Result result = hedgedDownload(destDir, true,
+                archive -> extracted.put(archive, extractArchive(archive))).download(conditional);
+        CacheDownloader downloader = result.downloader;
+
+        if (!result.modified) {
+            Log.d(TorLibApi.TAG, "Archive not modified -- cache is up to date, except maybe for the churn file");
+            return revalidate(destDir, validFrom);
+        }
+
+        File archive = downloader.getTarget();
+        for (File other : extracted.keySet()) {
+            if (!other.equals(archive)) {
+                CacheGenerations.deleteRecursively(new File(other.getParentFile(), EXTRACTED_DIRNAME));
+            }
+        }
+        Map<String, String> digests = extracted.get(archive);
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            Log.d(TorLibApi.TAG, "Extracted file: " + digest.getKey() + " (SHA-256 " + digest.getValue() + ")");
+        }
+        File staging = CacheGenerations.stage(destDir, new File(archive.getParentFile(), EXTRACTED_DIRNAME));
+        try {
+            long now = System.currentTimeMillis();
+            CacheManifest.forArchive(staging, digests, downloader.downloadedETag(), now,
+                    Math.max(validFrom, now)).write(staging);
+
+            File generation = CacheGenerations.publish(destDir, staging);
+            Log.d(TorLibApi.TAG, "Published cache generation " + generation.getName());
+        } catch (IOException e) {
+            CacheGenerations.deleteRecursively(staging);
+            throw e;
+        }
+
+        downloader.commit();
+        if (!archive.delete()) {
+            Log.d(TorLibApi.TAG, "Cannot delete archive " + archive);
+        }
+        return TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE;
+    }
+
+    /**
+     * Get the URL of the delta from the given microdescriptors and consensus files. Deltas are
+     * identified by the checksums of the files they apply to, so that they can be served as
+     * static files.
+     *
+     * @param microdescriptors the SHA-256 checksum of the current microdescriptors
+     * @param consensus        the SHA-256 checksum of the current consensus
+     */
+    String deltaUrl(String microdescriptors, String consensus) {
+        return deltaUrl + "/" + microdescriptors + "-" + consensus + ".delta";
+    }
+
+    /**
+     * Update the microdescriptors and consensus with a delta from the current files.
+     *
+     * @return what was done, or null if no delta could be applied
+     */
+    private TorLibApi.CacheUpdateStatus applyDelta(File destDir, long validFrom) {
+        File generation = CacheGenerations.current(destDir);
+        CacheManifest manifest = CacheManifest.read(generation);
+        if (manifest == null || generation.equals(destDir)) {
+            Log.d(TorLibApi.TAG, "No cache manifest -- cannot apply a delta");
+            return null;
+        }
+        CacheManifest.FileEntry microdescriptors = manifest.get(TorLibApi.MICRODESCRIPTORS_FILENAME);
+        CacheManifest.FileEntry consensus = manifest.get(TorLibApi.CONSENSUS_FILENAME);
+        if (microdescriptors == null || consensus == null) {
+            return null;
+        }
+
+        File staging = null;
+        try {
+            CacheDownloader downloader = new CacheDownloader(deltaUrl(microdescriptors.sha256, consensus.sha256),
+                    new File(downloadsDir(destDir), DELTA_FILENAME));
+            downloader.download(false);
+
+            CacheDelta delta;
+            try (InputStream in = new FileInputStream(downloader.getTarget())) {
+                delta = CacheDelta.read(in);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            downloader.getTarget().delete();
+
+            if (!delta.fromMicrodescriptors.equals(microdescriptors.sha256) ||
+                    !delta.fromConsensus.equals(consensus.sha256)) {
+                throw new IOException("Delta does not apply to the current files");
+            }
+            if (delta.isEmpty()) {
+                Log.d(TorLibApi.TAG, "Empty delta -- cache is up to date, except maybe for the churn file");
+                return revalidate(destDir, validFrom);
+            }
+
+            staging = CacheGenerations.stage(destDir);
+            delta.apply(generation, staging);
+            copyMissingFiles(generation, staging);
+            CacheManifest newManifest = manifestAfterDelta(manifest, delta, staging, validFrom);
+            newManifest.write(staging);
+
+            File newGeneration = CacheGenerations.publish(destDir, staging);
+            staging = null;
+            Log.d(TorLibApi.TAG, "Published cache generation " + newGeneration.getName() + " from delta");
+
+            long freshAt = Math.max(validFrom, System.currentTimeMillis());
+            if (!newManifest.isFresh(newGeneration, TorLibApi.CHURN_FILENAME, freshAt)) {
+                try {
+                    fetchChurnFile(destDir, validFrom);
+                } catch (IOException e) {
+                    Log.d(TorLibApi.TAG, "Cannot update churn file after delta: " + e);
+                }
+            }
+            return TorLibApi.CacheUpdateStatus.APPLIED_DELTA;
+        } catch (IOException e) {
+            Log.d(TorLibApi.TAG, "Cannot apply delta -- falling back to the full archive: " + e);
+            if (staging != null) {
+                CacheGenerations.deleteRecursively(staging);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Copy the files of the previous generation which are not changed by a delta.
+     */
+    private static void copyMissingFiles(File fromDir, File toDir) throws IOException {
+        File[] files = fromDir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + fromDir);
+        }
+        for (File file : files) {
+            if (!file.isFile() || file.getName().equals(CacheManifest.FILENAME)) continue;
+            File dest = new File(toDir, file.getName());
+            if (dest.exists()) continue;
+
+            try (FileChannel in = new FileInputStream(file).getChannel();
+                 FileChannel out = new FileOutputStream(dest).getChannel()) {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+        }
+    }
+
+    private static CacheManifest manifestAfterDelta(CacheManifest manifest, CacheDelta delta, File staging,
+                                                    long validFrom) throws IOException {
+        long now = System.currentTimeMillis();
+        validFrom = Math.max(validFrom, now);
+        CacheManifest newManifest = new CacheManifest(null);
+        File[] files = staging.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + staging);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || name.equals(CacheManifest.FILENAME)) continue;
+
+            CacheManifest.FileEntry previous = manifest.get(name);
+            if (name.equals(TorLibApi.CHURN_FILENAME) && !delta.replacedFiles.containsKey(name)) {
+                // Unchanged churn file: same validity as before
+                if (previous != null) {
+                    newManifest.put(previous);
+                }
+                continue;
+            }
+
+            String sha256;
+            if (name.equals(TorLibApi.MICRODESCRIPTORS_FILENAME)) {
+                sha256 = delta.toMicrodescriptors;
+            } else if (name.equals(TorLibApi.CONSENSUS_FILENAME)) {
+                sha256 = delta.toConsensus;
+            } else {
+                sha256 = CacheManifest.sha256(file);
+            }
+            long validUntil = name.equals(TorLibApi.CHURN_FILENAME) ?
+                    CacheManifest.endOfDay(validFrom) : CacheManifest.endOfWeek(validFrom);
+            newManifest.put(new CacheManifest.FileEntry(name, file.length(), sha256, now, validUntil));
+        }
+        return newManifest;
+    }
+}
@@ -0,0 +1,278 @@
+package org.c4dt.artiwrapper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+/**
+ * Queue of the calls waiting in a {@link Dispatcher}: by effective priority class, then earliest
+ * deadline first, then in FIFO order.
+ * <p>
+ * Each effective priority class has a heap ordered by deadline, so that taking the next call
+ * costs O(log n). Aging is applied lazily by {@link #age(long, long)}: the calls of a class are
+ * also kept in FIFO order per base priority, so that only the calls which moved up a class are
+ * looked at. Removed calls are left behind in the heaps and FIFOs and skipped when they reach
+ * the head; the structures are rebuilt when they hold too many of them.
+ * <p>
+ * This class is not thread-safe: it is guarded by the lock of the dispatcher.
+ */
+final class CallQueue {
+    private static final int CLASSES = Client.RequestPriority.values().length;
+
+    /**
+     * Order within a class: earliest deadline first, then FIFO.
+     */
+    private static final Comparator<Dispatcher.AsyncCall> ORDER = (a, b) -> {
+        if (a.hasDeadline != b.hasDeadline) {
+            return a.hasDeadline ? -1 : 1;
+        }
+        if (a.hasDeadline && a.deadlineNanos != b.deadlineNanos) {
+            return Long.signum(a.deadlineNanos - b.deadlineNanos);
+        }
+        return Long.compare(a.sequence, b.sequence);
+    };
+
+    /**
+     * Heap of the calls of each effective priority class.
+     */
+    private final List<PriorityQueue<Dispatcher.AsyncCall>> heaps = new ArrayList<>();
+    /**
+     * Calls in FIFO order, per base priority and effective priority class.
+     */
+    private final List<Deque<Dispatcher.AsyncCall>> fifos = new ArrayList<>();
+    private final int[] counts = new int[CLASSES];
+    /**
+     * Calls taken out of their heap by {@link #skip()}, still queued.
+     */
+    private final List<Dispatcher.AsyncCall> skipped = new ArrayList<>();
+
+    private int size;
+    /**
+     * Number of entries in the heaps and FIFOs, including the removed calls.
+     */
+    private int entries;
+    private long nextSequence;
+
+    CallQueue() {
+        for (int cls = 0; cls < CLASSES; cls++) {
+            heaps.add(new PriorityQueue<>(11, ORDER));
+        }
+        for (int i = 0; i < CLASSES * CLASSES; i++) {
+            fifos.add(new ArrayDeque<>());
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(Dispatcher.AsyncCall call, long nowNanos, long agingNanos) {
+        if (call.queuedClass >= 0) {
+            throw new IllegalStateException("Call is already queued");
+        }
+        call.sequence = nextSequence++;
+        insert(call, call.effectivePriority(nowNanos, agingNanos));
+        size++;
+    }
+
+    /**
+     * Remove a call from the queue.
+     *
+     * @return false if the call was not queued
+     */
+    boolean remove(Dispatcher.AsyncCall call) {
+        if (call.queuedClass < 0) {
+            return false;
+        }
+        unlink(call);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Get the next call to be run, without removing it.
+     *
+     * @return the call, or null if there is none
+     */
+    Dispatcher.AsyncCall peek() {
+        for (int cls = 0; cls < CLASSES; cls++) {
+            Dispatcher.AsyncCall call = liveHead(heaps.get(cls), cls);
+            if (call != null) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove and return the next call to be run.
+     *
+     * @return the call, or null if there is none
+     */
+    Dispatcher.AsyncCall poll() {
+        Dispatcher.AsyncCall call = peek();
+        if (call != null) {
+            heaps.get(call.queuedClass).poll();
+            entries--;
+            unlink(call);
+        }
+        return call;
+    }
+
+    /**
+     * Leave the next call in the queue, but out of the way of {@link #peek()} and {@link #poll()}
+     * until {@link #unskip()} is called.
+     */
+    void skip() {
+        Dispatcher.AsyncCall call = peek();
+        if (call != null) {
+            heaps.get(call.queuedClass).poll();
+            entries--;
+            skipped.add(call);
+        }
+    }
+
+    /**
+     * Give the skipped calls back their place in the queue.
+     */
+    void unskip() {
+        for (Dispatcher.AsyncCall call : skipped) {
+            heaps.get(call.queuedClass).add(call);
+            entries++;
+        }
+        skipped.clear();
+        compactIfNeeded();
+    }
+
+    /**
+     * Remove the calls whose deadline has passed.
+     *
+     * @param expired the list to which the removed calls are added
+     */
+    void pollExpired(long nowNanos, List<Dispatcher.AsyncCall> expired) {
+        for (int cls = 0; cls < CLASSES; cls++) {
+            PriorityQueue<Dispatcher.AsyncCall> heap = heaps.get(cls);
+            Dispatcher.AsyncCall call;
+            // Calls with a deadline come first, earliest deadline first
+            while ((call = liveHead(heap, cls)) != null && call.isExpired(nowNanos)) {
+                heap.poll();
+                entries--;
+                unlink(call);
+                expired.add(call);
+            }
+        }
+    }
+
+    /**
+     * Move the calls which have waited long enough up to their effective priority class.
+     */
+    void age(long nowNanos, long agingNanos) {
+        if (agingNanos <= 0) {
+            return;
+        }
+        for (int base = 1; base < CLASSES; base++) {
+            // Lowest class first, so that the FIFOs stay in order when calls move several classes
+            for (int cls = 1; cls <= base; cls++) {
+                Deque<Dispatcher.AsyncCall> fifo = fifo(base, cls);
+                Dispatcher.AsyncCall call;
+                while ((call = liveHead(fifo, cls)) != null) {
+                    int effective = call.effectivePriority(nowNanos, agingNanos);
+                    if (effective >= cls) {
+                        // The following calls are younger
+                        break;
+                    }
+                    fifo.pollFirst();
+                    entries--;
+                    counts[cls]--;
+                    // The entry left in the heap of the former class is skipped from now on
+                    insert(call, effective);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the oldest call of the lowest effective priority class.
+     *
+     * @return the call, or null if there is none
+     */
+    Dispatcher.AsyncCall lowest(long nowNanos, long agingNanos) {
+        age(nowNanos, agingNanos);
+        for (int cls = CLASSES - 1; cls >= 0; cls--) {
+            if (counts[cls] == 0) continue;
+            Dispatcher.AsyncCall oldest = null;
+            for (int base = cls; base < CLASSES; base++) {
+                Dispatcher.AsyncCall call = liveHead(fifo(base, cls), cls);
+                if (call != null && (oldest == null || call.sequence < oldest.sequence)) {
+                    oldest = call;
+                }
+            }
+            return oldest;
+        }
+        return null;
+    }
+
+    private Deque<Dispatcher.AsyncCall> fifo(int base, int cls) {
+        return fifos.get(base * CLASSES + cls);
+    }
+
+    private void insert(Dispatcher.AsyncCall call, int cls) {
+        call.queuedClass = cls;
+        heaps.get(cls).add(call);
+        fifo(call.priority.ordinal(), cls).addLast(call);
+        entries += 2;
+        counts[cls]++;
+    }
+
+    private void unlink(Dispatcher.AsyncCall call) {
+        counts[call.queuedClass]--;
+        call.queuedClass = -1;
+        size--;
+    }
+
+    /**
+     * Get the first call of a heap or FIFO which is still queued in the given class, dropping the
+     * entries of removed or moved calls.
+     */
+    private Dispatcher.AsyncCall liveHead(Queue<Dispatcher.AsyncCall> queue, int cls) {
+        Dispatcher.AsyncCall call;
+        while ((call = queue.peek()) != null && call.queuedClass != cls) {
+            queue.poll();
+            entries--;
+        }
+        return call;
+    }
+
+    /**
+     * Rebuild the heaps and FIFOs once most of their entries are left behind by removed calls.
+     */
+    private void compactIfNeeded() {
+        if (!skipped.isEmpty() || entries <= 4 * size + 64) {
+            return;
+        }
+        List<Dispatcher.AsyncCall> live = new ArrayList<>(size);
+        for (int cls = 0; cls < CLASSES; cls++) {
+            for (Dispatcher.AsyncCall call : heaps.get(cls)) {
+                if (call.queuedClass == cls) {
+                    live.add(call);
+                }
+            }
+            heaps.get(cls).clear();
+            counts[cls] = 0;
+        }
+        for (Deque<Dispatcher.AsyncCall> fifo : fifos) {
+            fifo.clear();
+        }
+        entries = 0;
+
+        Collections.sort(live, (a, b) -> Long.compare(a.sequence, b.sequence));
+        for (Dispatcher.AsyncCall call : live) {
+            insert(call, call.queuedClass);
+        }
+    }
+}
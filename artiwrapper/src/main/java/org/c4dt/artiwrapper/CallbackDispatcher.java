@@ -0,0 +1,169 @@
+package org.c4dt.artiwrapper;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatcher delivering the results of asynchronous requests to their callbacks, on an executor
+ * separate from the one running the requests, see {@link Client#setCallbackDispatcher}.
+ * <p>
+ * This keeps slow callbacks (parsing, database writes) from holding the request threads. The
+ * executor can be e.g. a pool, or the main thread of an app
+ * (<code>new Handler(Looper.getMainLooper())::post</code>).
+ * <p>
+ * With a maximum batch size above 1, callbacks completing while earlier ones are still waiting
+ * for the executor are delivered together in a single task, in completion order. This reduces
+ * the number of tasks posted to a busy executor, but runs the callbacks of a batch one after the
+ * other.
+ */
+public class CallbackDispatcher {
+    /**
+     * No batching: each callback is a separate task.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1;
+
+    private final Executor executor;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private final Deque<PendingCallback> pendingCallbacks = new ArrayDeque<>();
+    private boolean batchScheduled;
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+    private static final class PendingCallback {
+        final Runnable callback;
+        final long dispatchedNanos = System.nanoTime();
+
+        PendingCallback(Runnable callback) {
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Create a new callback dispatcher.
+     *
+     * @param executor the executor on which callbacks are run
+     */
+    public CallbackDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Get the maximum number of callbacks delivered in a single task.
+     *
+     * @return the maximum batch size
+     */
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the maximum number of callbacks delivered in a single task.
+     *
+     * @param maxBatchSize the maximum batch size, 1 to disable batching
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize < 1: " + maxBatchSize);
+        }
+        synchronized (this) {
+            this.maxBatchSize = maxBatchSize;
+        }
+    }
+
+    /**
+     * Get the number of callbacks waiting for the executor.
+     *
+     * @return the number of pending callbacks
+     */
+    public synchronized int pendingCallbacksCount() {
+        return pendingCallbacks.size();
+    }
+
+    /**
+     * Get the distribution of the time callbacks waited for the executor, in nanoseconds.
+     */
+    public LatencyHistogram.Snapshot getQueueWait() {
+        return queueWait.snapshot();
+    }
+
+    /**
+     * Get the distribution of the time spent running the callbacks, in nanoseconds.
+     */
+    public LatencyHistogram.Snapshot getRunTime() {
+        return runTime.snapshot();
+    }
+
+    /**
+     * Get the distribution of the number of callbacks delivered per task.
+     */
+    public LatencyHistogram.Snapshot getBatchSizes() {
+        return batchSizes.snapshot();
+    }
+
+    /**
+     * Schedule a callback on the executor.
+     */
+    void dispatch(Runnable callback) {
+        boolean schedule;
+        synchronized (this) {
+            pendingCallbacks.add(new PendingCallback(callback));
+            // Without batching each callback gets its own task, so that a pool runs them in parallel
+            schedule = maxBatchSize == 1 || !batchScheduled;
+            batchScheduled = true;
+        }
+        if (schedule) {
+            execute();
+        }
+    }
+
+    private void execute() {
+        try {
+            executor.execute(this::runBatch);
+        } catch (RejectedExecutionException e) {
+            Log.w(Client.TAG, "Callback executor rejected the callbacks, running them on the request thread: " + e);
+            runBatch();
+        }
+    }
+
+    private void runBatch() {
+        List<PendingCallback> batch = new ArrayList<>();
+        boolean leftovers;
+        synchronized (this) {
+            while (batch.size() < maxBatchSize && !pendingCallbacks.isEmpty()) {
+                batch.add(pendingCallbacks.poll());
+            }
+            // Callbacks completing from now on need a new task, unless some are left for the next
+            // batch, which is then scheduled once this one has run
+            leftovers = maxBatchSize > 1 && !pendingCallbacks.isEmpty();
+            batchScheduled = leftovers;
+        }
+
+        if (!batch.isEmpty()) {
+            batchSizes.record(batch.size());
+        }
+        for (PendingCallback pending : batch) {
+            long start = System.nanoTime();
+            queueWait.record(start - pending.dispatchedNanos);
+            try {
+                pending.callback.run();
+            } catch (RuntimeException e) {
+                Log.e(Client.TAG, "Callback failed: " + e);
+            } finally {
+                runTime.record(System.nanoTime() - start);
+            }
+        }
+
+        if (leftovers) {
+            execute();
+        }
+    }
+}
@@ -2,19 +2,39 @@ package org.c4dt.artiwrapper;
 
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Client API to execute Tor requests.
+ * A client can be shared between threads without external synchronization.
  */
 public class Client implements AutoCloseable {
     static final String TAG = "ArtiClient";
 
-    private final Executor executor;
-    private long client;
+    /**
+     * Default maximum number of body bytes fetched per request by
+     * {@link #openTorRequest(TorRequestMethod, String, Map, byte[])}.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+
+    private final Dispatcher dispatcher;
+    private final Transport transport;
+    private volatile ResponseCache responseCache;
+    private volatile RequestCoalescer requestCoalescer;
+    private volatile ClientMetricsListener metricsListener;
+    private volatile CallbackDispatcher callbackDispatcher;
+
+    /**
+     * Cache generation used by each native client, released when the client is freed.
+     */
+    private static final Map<Long, CacheGenerations.Lease> generationLeases = new ConcurrentHashMap<>();
 
     /**
      * Enumeration type for an HTTP method.
@@ -27,6 +47,21 @@ public class Client implements AutoCloseable {
         DELETE,
     }
 
+    /**
+     * Priority class of an asynchronous request, see {@link Dispatcher}.
+     */
+    public enum RequestPriority {
+        /**
+         * Requests a user is waiting for.
+         */
+        INTERACTIVE,
+        NORMAL,
+        /**
+         * Requests nobody is waiting for, e.g. background synchronization.
+         */
+        BACKGROUND,
+    }
+
     static {
         try {
             System.loadLibrary("lightarti_rest");
@@ -38,19 +73,21 @@ public class Client implements AutoCloseable {
 
     /**
      * Create a new Tor client, which is then used to send requests to the library.
-     * The default executor used for asynchronous requests is a single thread executor.
+     * Asynchronous requests are run in parallel by a new {@link Dispatcher} with the default limits.
      * The <code>cacheDir</code> argument is used in two ways:
      * <ul>
      *     <li>by the library for the creation of temporary files</li>
      *     <li>to pass several files to the library (see {@link TorLibApi#CACHE_FILENAMES})</li>
      * </ul>
      * These files must be copied to the given directory before creating a Client.
+     * If the directory is updated by {@link TorLibApi#updateCache}, the client uses the
+     * generation of the files which is current at creation time.
      *
      * @param cacheDir the cache directory path
      */
     public Client(String cacheDir)
             throws TorLibException {
-        this(Executors.newSingleThreadExecutor(), cacheDir);
+        this(new Dispatcher(), cacheDir);
     }
 
     /**
@@ -61,13 +98,306 @@ public class Client implements AutoCloseable {
      *     <li>to pass several files to the library (see {@link TorLibApi#CACHE_FILENAMES})</li>
      * </ul>
      * These files must be copied to the given directory before creating a Client.
+     * If the directory is updated by {@link TorLibApi#updateCache}, the client uses the
+     * generation of the files which is current at creation time.
      *
      * @param executor the executor used for asynchronous requests
      */
     public Client(Executor executor, String cacheDir)
             throws TorLibException {
-        this.executor = executor;
-        this.client = create(cacheDir);
+        this(new Dispatcher(executor), cacheDir);
+    }
+
+    /**
+     * Create a new Tor client, which is then used to send requests to the library.
+     * The <code>cacheDir</code> argument is used in two ways:
+     * <ul>
+     *     <li>by the library for the creation of temporary files</li>
+     *     <li>to pass several files to the library (see {@link TorLibApi#CACHE_FILENAMES})</li>
+     * </ul>
+     * These files must be copied to the given directory before creating a Client.
+     * If the directory is updated by {@link TorLibApi#updateCache}, the client uses the
+     * generation of the files which is current at creation time.
+     *
+     * @param dispatcher the dispatcher used for asynchronous requests
+     */
+    public Client(Dispatcher dispatcher, String cacheDir)
+            throws TorLibException {
+        this(dispatcher, cacheDir, false);
+    }
+
+    private Client(Dispatcher dispatcher, String cacheDir, boolean shared)
+            throws TorLibException {
+        this.dispatcher = dispatcher;
+        if (shared) {
+            final String key = ClientRegistry.key(cacheDir);
+            this.transport = new NativeTransport(new NativeHandle(ClientRegistry.acquire(key, () -> createNative(cacheDir)), handle -> {
+                if (ClientRegistry.release(key)) {
+                    Log.d(TAG, "About to free shared client: " + handle);
+                    freeNative(handle);
+                }
+            }));
+        } else {
+            this.transport = new NativeTransport(new NativeHandle(createNative(cacheDir), handle -> {
+                Log.d(TAG, "About to free client: " + handle);
+                freeNative(handle);
+            }));
+        }
+    }
+
+    /**
+     * Create a client sending its requests through the given transport instead of the library,
+     * e.g. a {@link LoopbackTransport} for tests and benchmarks.
+     */
+    Client(Dispatcher dispatcher, Transport transport) {
+        this.dispatcher = dispatcher;
+        this.transport = transport;
+    }
+
+    /**
+     * Transport sending the requests through the Arti library.
+     */
+    private final class NativeTransport implements Transport {
+        private final NativeHandle client;
+
+        NativeTransport(NativeHandle client) {
+            this.client = client;
+        }
+
+        @Override
+        public HttpResponse send(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body)
+                throws TorLibException {
+            long handle = client.acquire();
+            try {
+                return Client.this.send(handle, method.name(), url, headers, body);
+            } finally {
+                client.release();
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return client.isClosed();
+        }
+
+        @Override
+        public boolean close() {
+            return client.close();
+        }
+    }
+
+    /**
+     * Create a native client on the current generation of the cache directory, which is kept
+     * until the client is freed.
+     */
+    private long createNative(String cacheDir) throws TorLibException {
+        CacheGenerations.Lease lease = cacheDir == null ? null : CacheGenerations.acquire(cacheDir);
+        long handle;
+        try {
+            handle = create(lease == null ? null : lease.getDirectory().getPath());
+        } catch (TorLibException | RuntimeException e) {
+            if (lease != null) lease.close();
+            throw e;
+        }
+        if (lease != null) {
+            generationLeases.put(handle, lease);
+        }
+        return handle;
+    }
+
+    private void freeNative(long handle) {
+        free(handle);
+        CacheGenerations.Lease lease = generationLeases.remove(handle);
+        if (lease != null) {
+            lease.close();
+        }
+    }
+
+    /**
+     * Get a view on the Tor client shared by all the views of the same cache directory.
+     * The directory is loaded only once, by the first view, and the library memory is freed
+     * when the last view is closed. Each view has its own dispatcher and settings, and must be
+     * closed independently.
+     *
+     * @param cacheDir the cache directory path (see {@link #Client(String)})
+     * @return a new view on the shared client
+     */
+    public static Client shared(String cacheDir)
+            throws TorLibException {
+        return shared(new Dispatcher(), cacheDir);
+    }
+
+    /**
+     * Get a view on the Tor client shared by all the views of the same cache directory.
+     * See {@link #shared(String)}.
+     *
+     * @param dispatcher the dispatcher used for asynchronous requests of this view
+     * @param cacheDir   the cache directory path (see {@link #Client(String)})
+     * @return a new view on the shared client
+     */
+    public static Client shared(Dispatcher dispatcher, String cacheDir)
+            throws TorLibException {
+        return new Client(dispatcher, cacheDir, true);
+    }
+
+    /**
+     * Create a new Tor client in the background.
+     * Loading the directory from <code>cacheDir</code> takes time, which this method keeps off the
+     * calling thread. The returned future completes once the client is ready to send requests.
+     *
+     * @param cacheDir the cache directory path (see {@link #Client(String)})
+     * @param executor the executor on which the client is created
+     * @return the future receiving the new client
+     */
+    public static TorRequestFuture<Client> createAsync(String cacheDir, Executor executor) {
+        final TorRequestFuture<Client> future = new TorRequestFuture<>();
+        executor.execute(() -> {
+            if (future.isDone()) return;
+            try {
+                Client client = new Client(cacheDir);
+                if (!future.complete(client)) {
+                    // Cancelled while the client was being created
+                    client.close();
+                }
+            } catch (Exception e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Warm up the connections to the given hosts, so that the first real requests to them do not
+     * pay for the circuit construction. A HEAD request is sent to the root of each host, through
+     * the dispatcher. Hosts can also be given as URLs (e.g. <code>"http://example.com/"</code>).
+     *
+     * @param hosts the hosts to connect to
+     * @return the future receiving the number of hosts which were reached
+     */
+    public TorRequestFuture<Integer> prewarm(String... hosts) {
+        final TorRequestFuture<Integer> future = new TorRequestFuture<>();
+        if (hosts.length == 0) {
+            future.complete(0);
+            return future;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(hosts.length);
+        final AtomicInteger reached = new AtomicInteger();
+        for (String host : hosts) {
+            String url = host.contains("://") ? host : "https://" + host + "/";
+            sendAsync(TorRequestMethod.HEAD, url, new HashMap<>(), new byte[0]).whenComplete(result -> {
+                if (result instanceof TorLibApi.TorRequestResult.Success) {
+                    reached.incrementAndGet();
+                } else {
+                    Log.d(TAG, "Failed to prewarm " + url + ": " +
+                            ((TorLibApi.TorRequestResult.Error<HttpResponse>) result).getError());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    future.complete(reached.get());
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Get the dispatcher running the asynchronous requests of this client.
+     *
+     * @return the dispatcher
+     */
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Set the cache used for the responses of this client, or null to disable caching.
+     * A cache can be shared between clients.
+     *
+     * @param responseCache the response cache
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Get the cache used for the responses of this client.
+     *
+     * @return the response cache, or null if caching is disabled
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Set the coalescer used to merge identical concurrent requests of this client, or null to
+     * disable coalescing.
+     *
+     * @param requestCoalescer the request coalescer
+     */
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * Get the coalescer used to merge identical concurrent requests of this client.
+     *
+     * @return the request coalescer, or null if coalescing is disabled
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Set the listener receiving the metrics of each request of this client, or null to disable
+     * metrics. A listener can be shared between clients.
+     *
+     * @param metricsListener the metrics listener
+     */
+    public void setMetricsListener(ClientMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Get the listener receiving the metrics of each request of this client.
+     *
+     * @return the metrics listener, or null if metrics are disabled
+     */
+    public ClientMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Set the dispatcher delivering the results of {@link #asyncTorRequest} and
+     * {@link #asyncTorUpload} to their callbacks, or null to run the callbacks on the thread
+     * which ran the request.
+     * The futures of {@link #sendAsync} are still completed on the thread which ran the request.
+     *
+     * @param callbackDispatcher the callback dispatcher
+     */
+    public void setCallbackDispatcher(CallbackDispatcher callbackDispatcher) {
+        this.callbackDispatcher = callbackDispatcher;
+    }
+
+    /**
+     * Get the dispatcher delivering the results of asynchronous requests to their callbacks.
+     *
+     * @return the callback dispatcher, or null if callbacks run on the thread which ran the request
+     */
+    public CallbackDispatcher getCallbackDispatcher() {
+        return callbackDispatcher;
+    }
+
+    /**
+     * Deliver the result of an asynchronous request to its callback.
+     */
+    private void deliver(final TorLibApi.TorLibCallback<HttpResponse> callback,
+                         final TorLibApi.TorRequestResult<HttpResponse> result) {
+        CallbackDispatcher callbacks = callbackDispatcher;
+        if (callbacks == null) {
+            callback.onComplete(result);
+        } else {
+            callbacks.dispatch(() -> callback.onComplete(result));
+        }
     }
 
     /**
@@ -82,16 +412,124 @@ public class Client implements AutoCloseable {
     public void asyncTorRequest(
             Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
             final TorLibApi.TorLibCallback<HttpResponse> callback) {
-        executor.execute(() -> {
-            try {
-                HttpResponse response = syncTorRequest(method, url, headers, body);
-                callback.onComplete(new TorLibApi.TorRequestResult.Success<>(response));
-            } catch (Exception e) {
-                callback.onComplete(new TorLibApi.TorRequestResult.Error<>(e));
+        asyncTorRequest(method, url, headers, body, RequestPriority.NORMAL, 0, TimeUnit.MILLISECONDS, callback);
+    }
+
+    /**
+     * Perform an asynchronous request with a priority and a deadline.
+     * If the deadline has passed when the request would be started, it is dropped instead of
+     * being sent, and the callback receives a {@link java.util.concurrent.TimeoutException}.
+     * A request which is already running is not interrupted.
+     *
+     * @param method   the HTTP method for the request
+     * @param url      the URL for the request
+     * @param headers  the headers for the request
+     * @param body     the body for the request
+     * @param priority the priority class of the request
+     * @param timeout  the time allowed for the request to start, or 0 for no deadline
+     * @param unit     the unit of <code>timeout</code>
+     * @param callback the callback which will receive the request result
+     */
+    public void asyncTorRequest(
+            Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
+            RequestPriority priority, long timeout, TimeUnit unit,
+            final TorLibApi.TorLibCallback<HttpResponse> callback) {
+        dispatcher.enqueue(new Dispatcher.AsyncCall(url, priority, unit.toNanos(timeout)) {
+            @Override
+            public void run() {
+                HttpResponse response;
+                try {
+                    response = syncTorRequest(method, url, headers, body, queueWaitNanos());
+                } catch (Exception e) {
+                    deliver(callback, new TorLibApi.TorRequestResult.Error<>(e));
+                    return;
+                }
+                deliver(callback, new TorLibApi.TorRequestResult.Success<>(response));
+            }
+
+            @Override
+            void reject(Exception e) {
+                deliver(callback, new TorLibApi.TorRequestResult.Error<>(e));
             }
         });
     }
 
+    /**
+     * Perform an asynchronous request, returning a future for its result.
+     *
+     * @param method  the HTTP method for the request
+     * @param url     the URL for the request
+     * @param headers the headers for the request
+     * @param body    the body for the request
+     * @return the future receiving the request response
+     */
+    public TorRequestFuture<HttpResponse> sendAsync(
+            Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body) {
+        return sendAsync(method, url, headers, body, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Perform an asynchronous request with a deadline, returning a future for its result.
+     * If the request has not completed when the deadline is reached, the future fails with a
+     * {@link java.util.concurrent.TimeoutException}, and the request is dropped if it has not
+     * been started yet.
+     *
+     * @param method  the HTTP method for the request
+     * @param url     the URL for the request
+     * @param headers the headers for the request
+     * @param body    the body for the request
+     * @param timeout the time allowed for the request, or 0 for no deadline
+     * @param unit    the unit of <code>timeout</code>
+     * @return the future receiving the request response
+     */
+    public TorRequestFuture<HttpResponse> sendAsync(
+            Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
+            long timeout, TimeUnit unit) {
+        return sendAsync(method, url, headers, body, RequestPriority.NORMAL, timeout, unit);
+    }
+
+    /**
+     * Perform an asynchronous request with a priority and a deadline, returning a future for its
+     * result. See {@link #sendAsync(TorRequestMethod, String, Map, byte[], long, TimeUnit)}.
+     *
+     * @param method   the HTTP method for the request
+     * @param url      the URL for the request
+     * @param headers  the headers for the request
+     * @param body     the body for the request
+     * @param priority the priority class of the request
+     * @param timeout  the time allowed for the request, or 0 for no deadline
+     * @param unit     the unit of <code>timeout</code>
+     * @return the future receiving the request response
+     */
+    public TorRequestFuture<HttpResponse> sendAsync(
+            Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
+            RequestPriority priority, long timeout, TimeUnit unit) {
+        final TorRequestFuture<HttpResponse> future = new TorRequestFuture<>();
+        final Dispatcher.AsyncCall call = new Dispatcher.AsyncCall(url, priority, unit.toNanos(timeout)) {
+            @Override
+            public void run() {
+                // Cancelled or timed out while queued
+                if (future.isDone()) return;
+                try {
+                    future.complete(syncTorRequest(method, url, headers, body, queueWaitNanos()));
+                } catch (Exception e) {
+                    future.fail(e);
+                }
+            }
+
+            @Override
+            void reject(Exception e) {
+                future.fail(e);
+            }
+        };
+        future.setOnAbort(() -> dispatcher.cancel(call));
+        if (timeout > 0) {
+            future.setDeadline(timeout, unit);
+        }
+        dispatcher.enqueue(call);
+        return future;
+    }
+
     /**
      * Perform a synchronous (blocking) request.
      *
@@ -104,24 +542,216 @@ public class Client implements AutoCloseable {
      */
     public HttpResponse syncTorRequest(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body)
             throws TorLibException {
-        if (this.client == 0) {
+        return syncTorRequest(method, url, headers, body, -1);
+    }
+
+    /**
+     * @param queueWaitNanos the time the request waited in the dispatcher, or -1 if it was not queued
+     */
+    HttpResponse syncTorRequest(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
+                                long queueWaitNanos)
+            throws TorLibException {
+        ClientMetricsListener listener = metricsListener;
+        if (listener == null) {
+            return dispatch(method, url, headers, body, null);
+        }
+
+        RequestMetrics metrics = new RequestMetrics(method, url, queueWaitNanos, body == null ? 0 : body.length);
+        long start = System.nanoTime();
+        try {
+            HttpResponse response = dispatch(method, url, headers, body, metrics);
+            metrics.status = response.getStatus();
+            metrics.responseBytes = response.getBody() == null ? 0 : response.getBody().length;
+            return response;
+        } catch (TorLibException | RuntimeException e) {
+            metrics.error = e;
+            throw e;
+        } finally {
+            metrics.totalNanos = System.nanoTime() - start;
+            try {
+                listener.onRequestCompleted(metrics);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Metrics listener failed: " + e);
+            }
+        }
+    }
+
+    private HttpResponse dispatch(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
+                                  RequestMetrics metrics)
+            throws TorLibException {
+        if (transport.isClosed()) {
             throw new TorLibException("Client has already been closed");
         }
         if (method == null) {
             throw new TorLibException("Invalid method: Null pointer");
         }
-        return send(this.client, method.name(), url, headers, body);
+        RequestCoalescer coalescer = requestCoalescer;
+        if (coalescer != null) {
+            return coalescer.execute(method, url, headers, body, () -> executeCached(method, url, headers, body, metrics));
+        }
+        return executeCached(method, url, headers, body, metrics);
+    }
+
+    private HttpResponse executeCached(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
+                                       RequestMetrics metrics)
+            throws TorLibException {
+        ResponseCache cache = responseCache;
+        if (cache != null) {
+            return cache.execute(method, url, headers, h -> execute(method, url, h, body, metrics));
+        }
+        return execute(method, url, headers, body, metrics);
+    }
+
+    private HttpResponse execute(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
+                                 RequestMetrics metrics)
+            throws TorLibException {
+        long start = System.nanoTime();
+        try {
+            return transport.send(method, url, headers, body);
+        } finally {
+            if (metrics != null) {
+                metrics.sendNanos = System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Perform an asynchronous request whose body is read when the request is executed.
+     * The whole body is then buffered in memory, see {@link RequestBody}.
+     *
+     * @param method   the HTTP method for the request
+     * @param url      the URL for the request
+     * @param headers  the headers for the request
+     * @param body     the body for the request
+     * @param callback the callback which will receive the request result
+     */
+    public void asyncTorUpload(
+            Client.TorRequestMethod method, String url, Map<String, List<String>> headers, RequestBody body,
+            final TorLibApi.TorLibCallback<HttpResponse> callback) {
+        asyncTorUpload(method, url, headers, body, RequestPriority.NORMAL, 0, TimeUnit.MILLISECONDS, callback);
+    }
+
+    /**
+     * Perform an asynchronous request whose body is read when the request is executed, with a
+     * priority and a deadline. See
+     * {@link #asyncTorRequest(TorRequestMethod, String, Map, byte[], RequestPriority, long, TimeUnit, TorLibApi.TorLibCallback)}.
+     *
+     * @param method   the HTTP method for the request
+     * @param url      the URL for the request
+     * @param headers  the headers for the request
+     * @param body     the body for the request
+     * @param priority the priority class of the request
+     * @param timeout  the time allowed for the request to start, or 0 for no deadline
+     * @param unit     the unit of <code>timeout</code>
+     * @param callback the callback which will receive the request result
+     */
+    public void asyncTorUpload(
+            Client.TorRequestMethod method, String url, Map<String, List<String>> headers, RequestBody body,
+            RequestPriority priority, long timeout, TimeUnit unit,
+            final TorLibApi.TorLibCallback<HttpResponse> callback) {
+        dispatcher.enqueue(new Dispatcher.AsyncCall(url, priority, unit.toNanos(timeout)) {
+            @Override
+            public void run() {
+                HttpResponse response;
+                try {
+                    response = syncTorUpload(method, url, headers, body, queueWaitNanos());
+                } catch (Exception e) {
+                    deliver(callback, new TorLibApi.TorRequestResult.Error<>(e));
+                    return;
+                }
+                deliver(callback, new TorLibApi.TorRequestResult.Success<>(response));
+            }
+
+            @Override
+            void reject(Exception e) {
+                deliver(callback, new TorLibApi.TorRequestResult.Error<>(e));
+            }
+        });
+    }
+
+    /**
+     * Perform a synchronous (blocking) request whose body is read from a {@link RequestBody}
+     * (e.g. a file). The whole body is buffered in memory before the request is sent.
+     *
+     * @param method  the HTTP method for the request
+     * @param url     the URL for the request
+     * @param headers the headers for the request
+     * @param body    the body for the request
+     * @return the request response
+     * @throws TorLibException an error occurred while reading the body or during the request execution
+     */
+    public HttpResponse syncTorUpload(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, RequestBody body)
+            throws TorLibException {
+        return syncTorUpload(method, url, headers, body, -1);
+    }
+
+    private HttpResponse syncTorUpload(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, RequestBody body,
+                                       long queueWaitNanos)
+            throws TorLibException {
+        if (body == null) {
+            throw new TorLibException("Invalid body: Null pointer");
+        }
+        byte[] bytes;
+        try {
+            bytes = body.toByteArray();
+        } catch (IOException e) {
+            throw new TorLibException("Cannot read request body: " + e.getMessage(), e);
+        }
+        return syncTorRequest(method, url, headers, bytes, queueWaitNanos);
+    }
+
+    /**
+     * Perform a synchronous (blocking) request, returning as soon as the status and headers
+     * are available. The body is then read from {@link StreamingHttpResponse#getBody()}.
+     * This is meant for large bodies from servers which support range requests, see
+     * {@link StreamingHttpResponse}. The default chunk size {@link #DEFAULT_CHUNK_SIZE} is used.
+     *
+     * @param method  the HTTP method for the request
+     * @param url     the URL for the request
+     * @param headers the headers for the request
+     * @param body    the body for the request
+     * @return the request response, with a streamed body
+     * @throws TorLibException an error occurred during the request execution
+     */
+    public StreamingHttpResponse openTorRequest(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body)
+            throws TorLibException {
+        return openTorRequest(method, url, headers, body, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Perform a synchronous (blocking) request, returning as soon as the status and headers
+     * are available. The body is then read from {@link StreamingHttpResponse#getBody()}.
+     * For GET requests, the body is fetched using range requests of at most
+     * <code>chunkSize</code> bytes each, a few of them in parallel. This bounds the memory used
+     * by the response only if the server supports range requests; otherwise the whole body is
+     * buffered, as with {@link #syncTorRequest(TorRequestMethod, String, Map, byte[])}.
+     *
+     * @param method    the HTTP method for the request
+     * @param url       the URL for the request
+     * @param headers   the headers for the request, or null for none
+     * @param body      the body for the request
+     * @param chunkSize the maximum number of body bytes fetched per request
+     * @return the request response, with a streamed body
+     * @throws TorLibException an error occurred during the request execution
+     */
+    public StreamingHttpResponse openTorRequest(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body,
+                                                int chunkSize)
+            throws TorLibException {
+        return StreamingHttpResponse.open(this, method, url, headers, body, chunkSize);
     }
 
     /**
      * Close this client and free the associated memory.
      * Subsequent request calls performed using this client will fail.
+     * Requests which are in flight when the client is closed complete normally, and the
+     * memory is freed once the last of them has returned.
+     * This method can safely be called concurrently with requests, and more than once.
      */
     @Override
     public void close() {
-        Log.d(TAG, "About to free client: " + this.client);
-        free(this.client);
-        this.client = 0;
+        if (!transport.close()) {
+            Log.d(TAG, "Client has already been closed");
+        }
     }
 
     // Native methods
@@ -0,0 +1,18 @@
+package org.c4dt.artiwrapper;
+
+/**
+ * Listener receiving the metrics of each request of a {@link Client}, see
+ * {@link Client#setMetricsListener(ClientMetricsListener)}.
+ * <p>
+ * The listener is called on the thread which ran the request, once it has completed and before
+ * its result is delivered. It must therefore return quickly, and be safe to call from several
+ * threads at once. {@link HistogramMetricsListener} aggregates the metrics into percentiles.
+ */
+public interface ClientMetricsListener {
+    /**
+     * Called when a request completes, successfully or not.
+     *
+     * @param metrics the metrics of the request
+     */
+    void onRequestCompleted(RequestMetrics metrics);
+}
@@ -0,0 +1,142 @@
+package org.c4dt.artiwrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the native clients shared between the {@link Client} views returned by
+ * {@link Client#shared(String)}, with one native client per cache directory.
+ * <p>
+ * Each view holds one reference on the native client of its directory. The native client is
+ * created with the first view, and must be freed by the caller of {@link #release(String)}
+ * which dropped the last reference. It is created outside of the registry lock: views of the
+ * same directory wait for it, views of other directories do not.
+ */
+final class ClientRegistry {
+    /**
+     * Action creating the native client for a cache directory.
+     */
+    interface Factory {
+        long create() throws TorLibException;
+    }
+
+    /**
+     * Native client of a directory, which may still be being created.
+     */
+    private static final class Entry {
+        /**
+         * Guarded by the registry lock.
+         */
+        int views;
+
+        private boolean done;
+        private long handle;
+        private Exception error;
+
+        synchronized void complete(long handle, Exception error) {
+            this.done = true;
+            this.handle = handle;
+            this.error = error;
+            notifyAll();
+        }
+
+        synchronized long await() throws TorLibException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw new TorLibException(error.getMessage(), error);
+            }
+            return handle;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new HashMap<>();
+
+    private ClientRegistry() {
+    }
+
+    /**
+     * Get the registry key of a cache directory, so that different paths to the same directory
+     * share the same native client.
+     */
+    static String key(String cacheDir) {
+        if (cacheDir == null) {
+            return null;
+        }
+        try {
+            return new File(cacheDir).getCanonicalPath();
+        } catch (IOException e) {
+            return new File(cacheDir).getAbsolutePath();
+        }
+    }
+
+    /**
+     * Take a reference on the native client of a cache directory, creating it if needed.
+     *
+     * @return the native client handle
+     */
+    static long acquire(String key, Factory factory) throws TorLibException {
+        Entry entry;
+        boolean create = false;
+        synchronized (ClientRegistry.class) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+                create = true;
+            }
+            entry.views++;
+        }
+        if (!create) {
+            return entry.await();
+        }
+
+        try {
+            long handle = factory.create();
+            entry.complete(handle, null);
+            return handle;
+        } catch (TorLibException | RuntimeException e) {
+            synchronized (ClientRegistry.class) {
+                entries.remove(key);
+            }
+            entry.complete(0, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop a reference on the native client of a cache directory.
+     *
+     * @return true if this was the last reference, in which case the caller must free the client
+     */
+    static synchronized boolean release(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            throw new IllegalStateException("No shared client for " + key);
+        }
+        if (--entry.views > 0) {
+            return false;
+        }
+        entries.remove(key);
+        return true;
+    }
+
+    /**
+     * Get the number of open views on the native client of a cache directory.
+     */
+    static synchronized int viewCount(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? 0 : entry.views;
+    }
+}
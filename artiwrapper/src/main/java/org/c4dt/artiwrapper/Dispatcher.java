@@ -0,0 +1,648 @@
+package org.c4dt.artiwrapper;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatcher running asynchronous requests in parallel.
+ * <p>
+ * At most {@link #getMaxRequests()} requests run at the same time, and at most
+ * {@link #getMaxRequestsPerHost()} of them target the same host. Further requests wait in a
+ * queue until a slot is freed.
+ * <p>
+ * Queued requests are served by {@link Client.RequestPriority}, and within a priority class by
+ * earliest deadline first, then in FIFO order. To keep low priority requests from starving, a
+ * queued request moves up one class for every {@link #getAgingMillis()} it has waited.
+ * Requests whose deadline has passed are dropped, with a {@link TimeoutException}, before they
+ * are run.
+ * <p>
+ * The queue holds at most {@link #getMaxQueuedRequests()} requests. When it is full, new
+ * requests are handled according to the {@link OverflowPolicy}, so that an overload degrades
+ * into failed requests or slower producers rather than an ever-growing latency. A
+ * {@link PressureListener} is notified when the queue fills up.
+ */
+public class Dispatcher {
+    public static final int DEFAULT_MAX_REQUESTS = 16;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+    /**
+     * No limit on the number of queued requests.
+     */
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = Integer.MAX_VALUE;
+    public static final long DEFAULT_MAX_BLOCK_MILLIS = 10 * 1000;
+    public static final long DEFAULT_AGING_MILLIS = 5 * 1000;
+
+    /**
+     * Handling of a new request when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Fail the new request with a {@link RejectedExecutionException}.
+         */
+        REJECT,
+        /**
+         * Fail the oldest queued request of the lowest effective priority class with a
+         * {@link RejectedExecutionException}, and queue the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Block the caller until the queue has room, for at most {@link #getMaxBlockMillis()},
+         * then fail the new request with a {@link RejectedExecutionException}.
+         */
+        BLOCK,
+        /**
+         * Run the new request on the calling thread, even beyond the limits of running requests.
+         */
+        CALLER_RUNS,
+    }
+
+    /**
+     * Listener notified when the queue of a dispatcher fills up and drains.
+     * It is called on the thread changing the queue, without holding any lock.
+     */
+    public interface PressureListener {
+        /**
+         * Called when the number of queued requests reaches 3/4 of the maximum.
+         *
+         * @param queuedCalls    the number of queued requests
+         * @param maxQueuedCalls the maximum number of queued requests
+         */
+        void onPressure(int queuedCalls, int maxQueuedCalls);
+
+        /**
+         * Called when the number of queued requests drops back to half of the maximum, after
+         * {@link #onPressure(int, int)}.
+         *
+         * @param queuedCalls the number of queued requests
+         */
+        void onPressureRelieved(int queuedCalls);
+    }
+
+    private final Executor executor;
+
+    private int maxRequests = DEFAULT_MAX_REQUESTS;
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    private int maxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    private long maxBlockMillis = DEFAULT_MAX_BLOCK_MILLIS;
+    private long agingMillis = DEFAULT_AGING_MILLIS;
+    private volatile PressureListener pressureListener;
+
+    private final CallQueue readyCalls = new CallQueue();
+    private final Map<String, Integer> runningCallsPerHost = new HashMap<>();
+    private int runningCalls;
+
+    private boolean underPressure;
+    private int peakQueuedCalls;
+    private long rejectedCalls;
+    private long droppedCalls;
+    private long callerRunsCalls;
+    private long expiredCalls;
+
+    /**
+     * Asynchronous call scheduled by the dispatcher.
+     */
+    abstract static class AsyncCall implements Runnable {
+        final String host;
+        final long createdNanos = System.nanoTime();
+        final Client.RequestPriority priority;
+        /**
+         * The {@link System#nanoTime()} after which the call is dropped, if it has a deadline.
+         */
+        final long deadlineNanos;
+        final boolean hasDeadline;
+
+        /**
+         * Priority class in which the call is queued, or -1 if it is not queued.
+         * Guarded by the dispatcher lock, like {@link #sequence}.
+         */
+        int queuedClass = -1;
+        long sequence;
+
+        AsyncCall(String url) {
+            this(url, Client.RequestPriority.NORMAL, 0);
+        }
+
+        /**
+         * @param timeoutNanos the time allowed for the call, or 0 for no deadline
+         */
+        AsyncCall(String url, Client.RequestPriority priority, long timeoutNanos) {
+            this.host = hostOf(url);
+            this.priority = priority == null ? Client.RequestPriority.NORMAL : priority;
+            this.hasDeadline = timeoutNanos > 0;
+            this.deadlineNanos = createdNanos + timeoutNanos;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return hasDeadline && nowNanos - deadlineNanos >= 0;
+        }
+
+        /**
+         * Get the priority class of the call, raised by one for every <code>agingNanos</code>
+         * the call has waited; lower is served first.
+         */
+        int effectivePriority(long nowNanos, long agingNanos) {
+            long raise = agingNanos > 0 ? (nowNanos - createdNanos) / agingNanos : 0;
+            return (int) Math.max(0, priority.ordinal() - raise);
+        }
+
+        /**
+         * Get the time elapsed since the call was created, i.e. the time it waited before running.
+         */
+        long queueWaitNanos() {
+            return System.nanoTime() - createdNanos;
+        }
+
+        /**
+         * Called instead of {@link #run()} if the call cannot be executed.
+         */
+        abstract void reject(Exception e);
+    }
+
+    /**
+     * Create a new dispatcher, running requests on its own pool of daemon threads.
+     */
+    public Dispatcher() {
+        this(new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new DispatcherThreadFactory()));
+    }
+
+    /**
+     * Create a new dispatcher.
+     *
+     * @param executor the executor on which requests are run
+     */
+    public Dispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Get the maximum number of requests running at the same time.
+     *
+     * @return the maximum number of running requests
+     */
+    public synchronized int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Set the maximum number of requests running at the same time.
+     * Requests which are already running are not affected.
+     *
+     * @param maxRequests the maximum number of running requests
+     */
+    public void setMaxRequests(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+        }
+        synchronized (this) {
+            this.maxRequests = maxRequests;
+        }
+        promoteCalls();
+    }
+
+    /**
+     * Get the maximum number of requests to the same host running at the same time.
+     *
+     * @return the maximum number of running requests per host
+     */
+    public synchronized int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * Set the maximum number of requests to the same host running at the same time.
+     * Requests which are already running are not affected.
+     *
+     * @param maxRequestsPerHost the maximum number of running requests per host
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+        }
+        synchronized (this) {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+        }
+        promoteCalls();
+    }
+
+    /**
+     * Get the maximum number of requests waiting for a slot.
+     *
+     * @return the maximum number of queued requests
+     */
+    public synchronized int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    /**
+     * Set the maximum number of requests waiting for a slot. Requests which are already queued
+     * are not affected.
+     *
+     * @param maxQueuedRequests the maximum number of queued requests
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        if (maxQueuedRequests < 1) {
+            throw new IllegalArgumentException("maxQueuedRequests < 1: " + maxQueuedRequests);
+        }
+        synchronized (this) {
+            this.maxQueuedRequests = maxQueuedRequests;
+            // Blocked callers may now have room
+            notifyAll();
+        }
+        checkPressure();
+    }
+
+    /**
+     * Get the handling of new requests when the queue is full.
+     *
+     * @return the overflow policy
+     */
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set the handling of new requests when the queue is full.
+     *
+     * @param overflowPolicy the overflow policy
+     */
+    public synchronized void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy == null");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Get how long a caller waits for room in the queue with {@link OverflowPolicy#BLOCK}.
+     *
+     * @return the maximum blocking time
+     */
+    public synchronized long getMaxBlockMillis() {
+        return maxBlockMillis;
+    }
+
+    /**
+     * Set how long a caller waits for room in the queue with {@link OverflowPolicy#BLOCK}.
+     *
+     * @param maxBlockMillis the maximum blocking time
+     */
+    public synchronized void setMaxBlockMillis(long maxBlockMillis) {
+        if (maxBlockMillis < 0) {
+            throw new IllegalArgumentException("maxBlockMillis < 0: " + maxBlockMillis);
+        }
+        this.maxBlockMillis = maxBlockMillis;
+    }
+
+    /**
+     * Get the time after which a queued request moves up one priority class.
+     *
+     * @return the aging time
+     */
+    public synchronized long getAgingMillis() {
+        return agingMillis;
+    }
+
+    /**
+     * Set the time after which a queued request moves up one priority class.
+     *
+     * @param agingMillis the aging time, or 0 to disable aging
+     */
+    public void setAgingMillis(long agingMillis) {
+        if (agingMillis < 0) {
+            throw new IllegalArgumentException("agingMillis < 0: " + agingMillis);
+        }
+        synchronized (this) {
+            this.agingMillis = agingMillis;
+        }
+        promoteCalls();
+    }
+
+    /**
+     * Set the listener notified when the queue fills up, or null.
+     *
+     * @param pressureListener the pressure listener
+     */
+    public void setPressureListener(PressureListener pressureListener) {
+        this.pressureListener = pressureListener;
+    }
+
+    /**
+     * Get the listener notified when the queue fills up.
+     *
+     * @return the pressure listener, or null
+     */
+    public PressureListener getPressureListener() {
+        return pressureListener;
+    }
+
+    /**
+     * Get the number of requests waiting for a slot.
+     *
+     * @return the queue depth
+     */
+    public synchronized int queuedCallsCount() {
+        return readyCalls.size();
+    }
+
+    /**
+     * Get the number of requests currently running.
+     *
+     * @return the number of in-flight requests
+     */
+    public synchronized int runningCallsCount() {
+        return runningCalls;
+    }
+
+    /**
+     * Get the largest number of requests which waited for a slot at the same time.
+     *
+     * @return the peak queue depth
+     */
+    public synchronized int peakQueuedCallsCount() {
+        return peakQueuedCalls;
+    }
+
+    /**
+     * Get the number of new requests which failed because the queue was full, with
+     * {@link OverflowPolicy#REJECT} or {@link OverflowPolicy#BLOCK}.
+     *
+     * @return the number of rejected requests
+     */
+    public synchronized long rejectedCallsCount() {
+        return rejectedCalls;
+    }
+
+    /**
+     * Get the number of queued requests which failed to make room for new ones, with
+     * {@link OverflowPolicy#DROP_OLDEST}.
+     *
+     * @return the number of dropped requests
+     */
+    public synchronized long droppedCallsCount() {
+        return droppedCalls;
+    }
+
+    /**
+     * Get the number of requests dropped because their deadline passed before they were run.
+     *
+     * @return the number of expired requests
+     */
+    public synchronized long expiredCallsCount() {
+        return expiredCalls;
+    }
+
+    /**
+     * Get the number of requests run on the calling thread, with {@link OverflowPolicy#CALLER_RUNS}.
+     *
+     * @return the number of requests run by their callers
+     */
+    public synchronized long callerRunsCallsCount() {
+        return callerRunsCalls;
+    }
+
+    void enqueue(AsyncCall call) {
+        AsyncCall rejected = null;
+        AsyncCall dropped = null;
+        boolean runHere = false;
+        synchronized (this) {
+            long agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+            if (readyCalls.size() < maxQueuedRequests) {
+                readyCalls.add(call, System.nanoTime(), agingNanos);
+            } else {
+                switch (overflowPolicy) {
+                    case REJECT:
+                        rejected = call;
+                        break;
+                    case DROP_OLDEST:
+                        dropped = readyCalls.lowest(System.nanoTime(), agingNanos);
+                        readyCalls.remove(dropped);
+                        droppedCalls++;
+                        readyCalls.add(call, System.nanoTime(), agingNanos);
+                        break;
+                    case BLOCK:
+                        if (awaitRoom()) {
+                            readyCalls.add(call, System.nanoTime(), agingNanos);
+                        } else {
+                            rejected = call;
+                        }
+                        break;
+                    case CALLER_RUNS:
+                        callerRunsCalls++;
+                        started(call);
+                        runHere = true;
+                        break;
+                }
+            }
+            if (rejected != null) {
+                rejectedCalls++;
+            }
+            peakQueuedCalls = Math.max(peakQueuedCalls, readyCalls.size());
+        }
+
+        if (rejected != null) {
+            rejected.reject(new RejectedExecutionException("Dispatcher queue is full"));
+        }
+        if (dropped != null) {
+            dropped.reject(new RejectedExecutionException("Dropped from the full dispatcher queue"));
+        }
+        if (runHere) {
+            try {
+                call.run();
+            } finally {
+                finished(call);
+            }
+            return;
+        }
+        checkPressure();
+        promoteCalls();
+    }
+
+    /**
+     * Wait until the queue has room, for at most {@link #getMaxBlockMillis()}.
+     *
+     * @return false if the queue is still full
+     */
+    private boolean awaitRoom() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+        while (readyCalls.size() >= maxQueuedRequests) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Notify the pressure listener if the queue crossed a threshold.
+     */
+    private void checkPressure() {
+        PressureListener listener = pressureListener;
+        int queued;
+        int max;
+        boolean pressure;
+        synchronized (this) {
+            queued = readyCalls.size();
+            max = maxQueuedRequests;
+            if (!underPressure && queued > 0 && queued >= max - max / 4) {
+                underPressure = true;
+            } else if (underPressure && queued <= max / 2) {
+                underPressure = false;
+            } else {
+                return;
+            }
+            pressure = underPressure;
+        }
+        if (listener == null) {
+            return;
+        }
+        if (pressure) {
+            listener.onPressure(queued, max);
+        } else {
+            listener.onPressureRelieved(queued);
+        }
+    }
+
+    /**
+     * Remove a call from the ready queue, if it has not been started yet.
+     *
+     * @return true if the call was removed
+     */
+    boolean cancel(AsyncCall call) {
+        boolean removed;
+        synchronized (this) {
+            removed = readyCalls.remove(call);
+            if (removed) {
+                notifyAll();
+            }
+        }
+        if (removed) {
+            checkPressure();
+        }
+        return removed;
+    }
+
+    /**
+     * Move calls from the ready queue to the executor, as long as the limits allow it, and drop
+     * the calls whose deadline has passed.
+     * The executor and the rejected calls are called outside of the lock.
+     */
+    private void promoteCalls() {
+        List<AsyncCall> toRun = new ArrayList<>();
+        List<AsyncCall> expired = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            readyCalls.age(now, TimeUnit.MILLISECONDS.toNanos(agingMillis));
+            readyCalls.pollExpired(now, expired);
+            AsyncCall call;
+            while (runningCalls < maxRequests && (call = readyCalls.peek()) != null) {
+                Integer perHost = runningCallsPerHost.get(call.host);
+                if (perHost != null && perHost >= maxRequestsPerHost) {
+                    readyCalls.skip();
+                    continue;
+                }
+                readyCalls.poll();
+                started(call);
+                toRun.add(call);
+            }
+            readyCalls.unskip();
+            if (!toRun.isEmpty() || !expired.isEmpty()) {
+                expiredCalls += expired.size();
+                // Blocked callers may now have room
+                notifyAll();
+            }
+        }
+        if (!toRun.isEmpty() || !expired.isEmpty()) {
+            checkPressure();
+        }
+
+        for (AsyncCall call : expired) {
+            call.reject(new TimeoutException("Request deadline exceeded before it was sent"));
+        }
+        for (AsyncCall call : toRun) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        // The deadline may have passed while waiting for a thread
+                        if (call.isExpired(System.nanoTime())) {
+                            synchronized (this) {
+                                expiredCalls++;
+                            }
+                            call.reject(new TimeoutException("Request deadline exceeded before it was sent"));
+                        } else {
+                            call.run();
+                        }
+                    } finally {
+                        finished(call);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                finished(call);
+                call.reject(e);
+            }
+        }
+    }
+
+    /**
+     * Count a call as running. Called with the lock held.
+     */
+    private void started(AsyncCall call) {
+        Integer perHost = runningCallsPerHost.get(call.host);
+        runningCallsPerHost.put(call.host, perHost == null ? 1 : perHost + 1);
+        runningCalls++;
+    }
+
+    private void finished(AsyncCall call) {
+        synchronized (this) {
+            int count = runningCallsPerHost.get(call.host);
+            if (count == 1) {
+                runningCallsPerHost.remove(call.host);
+            } else {
+                runningCallsPerHost.put(call.host, count - 1);
+            }
+            runningCalls--;
+        }
+        promoteCalls();
+    }
+
+    static String hostOf(String url) {
+        if (url == null) {
+            return "";
+        }
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private static class DispatcherThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ArtiDispatcher-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.c4dt.artiwrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable list of HTTP header fields, stored as a single flat array of name/value pairs.
+ * <p>
+ * Names are compared case-insensitively. The <code>Map</code> representation used by the
+ * library API is only built when {@link #toMultimap()} is called, and then kept.
+ */
+public final class Headers {
+    private static final String[] EMPTY = new String[0];
+
+    private final String[] namesAndValues;
+    private volatile Map<String, List<String>> multimap;
+
+    private Headers(String[] namesAndValues) {
+        this.namesAndValues = namesAndValues;
+    }
+
+    /**
+     * Create headers from name/value pairs, e.g. <code>Headers.of("Accept", "*&#47;*")</code>.
+     *
+     * @param namesAndValues alternating header names and values
+     * @return the headers
+     */
+    public static Headers of(String... namesAndValues) {
+        if (namesAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected alternating header names and values");
+        }
+        String[] copy = namesAndValues.clone();
+        for (String s : copy) {
+            if (s == null) {
+                throw new IllegalArgumentException("Headers cannot be null");
+            }
+        }
+        return new Headers(copy);
+    }
+
+    /**
+     * Create headers from their <code>Map</code> representation.
+     *
+     * @param map the header values, by name
+     * @return the headers
+     */
+    public static Headers of(Map<String, List<String>> map) {
+        int count = 0;
+        for (List<String> values : map.values()) {
+            count += values == null ? 0 : values.size();
+        }
+        String[] namesAndValues = new String[2 * count];
+        int i = 0;
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            if (entry.getValue() == null) continue;
+            for (String value : entry.getValue()) {
+                namesAndValues[i++] = entry.getKey();
+                namesAndValues[i++] = value;
+            }
+        }
+        return new Headers(namesAndValues);
+    }
+
+    /**
+     * Get the number of header fields.
+     *
+     * @return the number of name/value pairs
+     */
+    public int size() {
+        return namesAndValues.length / 2;
+    }
+
+    /**
+     * Get the name of a header field.
+     *
+     * @param index the index of the field
+     * @return the field name
+     */
+    public String name(int index) {
+        return namesAndValues[2 * index];
+    }
+
+    /**
+     * Get the value of a header field.
+     *
+     * @param index the index of the field
+     * @return the field value
+     */
+    public String value(int index) {
+        return namesAndValues[2 * index + 1];
+    }
+
+    /**
+     * Get the first value of a header.
+     *
+     * @param name the header name (case-insensitive)
+     * @return the first value, or null if the header is absent
+     */
+    public String get(String name) {
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (name.equalsIgnoreCase(namesAndValues[i])) {
+                return namesAndValues[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get all the values of a header.
+     *
+     * @param name the header name (case-insensitive)
+     * @return the values, in order (empty if the header is absent)
+     */
+    public List<String> values(String name) {
+        List<String> result = null;
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (name.equalsIgnoreCase(namesAndValues[i])) {
+                if (result == null) {
+                    result = new ArrayList<>(2);
+                }
+                result.add(namesAndValues[i + 1]);
+            }
+        }
+        return result == null ? Collections.<String>emptyList() : Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Get a builder initialized with these headers.
+     *
+     * @return the builder
+     */
+    public Builder newBuilder() {
+        Builder builder = new Builder();
+        builder.namesAndValues.addAll(Arrays.asList(namesAndValues));
+        return builder;
+    }
+
+    /**
+     * Get the <code>Map</code> representation of these headers, as used by the library API.
+     * The map is built on the first call.
+     *
+     * @return an unmodifiable map of the header values, by name
+     */
+    public Map<String, List<String>> toMultimap() {
+        Map<String, List<String>> result = multimap;
+        if (result == null) {
+            result = Collections.unmodifiableMap(newMultimap());
+            multimap = result;
+        }
+        return result;
+    }
+
+    /**
+     * Build a new, mutable <code>Map</code> representation of these headers.
+     */
+    Map<String, List<String>> newMultimap() {
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            List<String> values = map.get(namesAndValues[i]);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                map.put(namesAndValues[i], values);
+            }
+            values.add(namesAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Headers && Arrays.equals(namesAndValues, ((Headers) other).namesAndValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(namesAndValues);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            sb.append(namesAndValues[i]).append(": ").append(namesAndValues[i + 1]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builder for {@link Headers}.
+     */
+    public static final class Builder {
+        private final List<String> namesAndValues = new ArrayList<>(20);
+
+        /**
+         * Add a header field, keeping the existing values with the same name.
+         */
+        public Builder add(String name, String value) {
+            if (name == null || value == null) {
+                throw new IllegalArgumentException("Headers cannot be null");
+            }
+            namesAndValues.add(name);
+            namesAndValues.add(value);
+            return this;
+        }
+
+        /**
+         * Set a header field, replacing the existing values with the same name.
+         */
+        public Builder set(String name, String value) {
+            removeAll(name);
+            return add(name, value);
+        }
+
+        /**
+         * Remove all the values of a header.
+         */
+        public Builder removeAll(String name) {
+            for (int i = namesAndValues.size() - 2; i >= 0; i -= 2) {
+                if (name.equalsIgnoreCase(namesAndValues.get(i))) {
+                    namesAndValues.remove(i + 1);
+                    namesAndValues.remove(i);
+                }
+            }
+            return this;
+        }
+
+        public Headers build() {
+            return new Headers(namesAndValues.isEmpty() ? EMPTY : namesAndValues.toArray(EMPTY));
+        }
+    }
+}
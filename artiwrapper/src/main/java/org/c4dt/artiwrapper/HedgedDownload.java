@@ -0,0 +1,213 @@
+package org.c4dt.artiwrapper;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download of a cache resource available on several mirrors.
+ * <p>
+ * The download starts on one mirror, chosen by {@link MirrorStats#order}. If that mirror has not
+ * answered within its hedging delay, a second download is started on the next mirror, and the
+ * first download which completes and passes the verification is kept; the other one is
+ * cancelled. A mirror which fails is replaced by the next one right away.
+ */
+final class HedgedDownload {
+    /**
+     * At most this many downloads run at the same time.
+     */
+    static final int MAX_PARALLEL_DOWNLOADS = 2;
+
+    /**
+     * Verification of a downloaded file, before it is accepted.
+     */
+    interface Verifier {
+        void verify(File file) throws IOException;
+    }
+
+    private final List<CacheDownloader> downloaders;
+    private final List<Integer> weights;
+    private final MirrorStats stats;
+    private final Verifier verifier;
+    private final Random random;
+
+    private static final class Event {
+        final Attempt attempt;
+        final boolean answered;
+        final IOException error;
+
+        Event(Attempt attempt, boolean answered, IOException error) {
+            this.attempt = attempt;
+            this.answered = answered;
+            this.error = error;
+        }
+    }
+
+    private final class Attempt implements Runnable {
+        final CacheDownloader downloader;
+        final boolean conditional;
+        final BlockingQueue<Event> events;
+        final long startMillis = System.currentTimeMillis();
+        volatile long answerMillis = -1;
+        volatile boolean modified;
+
+        Attempt(CacheDownloader downloader, boolean conditional, BlockingQueue<Event> events) {
+            this.downloader = downloader;
+            this.conditional = conditional;
+            this.events = events;
+        }
+
+        @Override
+        public void run() {
+            downloader.setResponseListener(() -> {
+                answerMillis = System.currentTimeMillis() - startMillis;
+                events.add(new Event(this, true, null));
+            });
+            try {
+                modified = downloader.download(conditional);
+                if (modified && verifier != null) {
+                    verifier.verify(downloader.getTarget());
+                }
+                events.add(new Event(this, false, null));
+            } catch (IOException e) {
+                events.add(new Event(this, false, e));
+            } catch (RuntimeException e) {
+                events.add(new Event(this, false, new IOException(e)));
+            }
+        }
+    }
+
+    /**
+     * @param downloaders the downloader of the resource on each mirror, with distinct targets
+     * @param weights     the weights of the mirrors
+     * @param stats       the latency statistics of the mirrors, updated by the download
+     * @param verifier    the verification of the downloaded files, or null
+     */
+    HedgedDownload(List<CacheDownloader> downloaders, List<Integer> weights, MirrorStats stats, Verifier verifier,
+                   Random random) {
+        if (downloaders.isEmpty() || downloaders.size() != weights.size()) {
+            throw new IllegalArgumentException("One weight is needed for each downloader");
+        }
+        this.downloaders = downloaders;
+        this.weights = weights;
+        this.stats = stats;
+        this.verifier = verifier;
+        this.random = random;
+    }
+
+    /**
+     * Result of a download.
+     */
+    static final class Result {
+        /**
+         * The downloader which completed first; {@link CacheDownloader#commit()} must be called on
+         * it once the file is applied.
+         */
+        final CacheDownloader downloader;
+        /**
+         * False if the mirror answered that the resource was not modified.
+         */
+        final boolean modified;
+
+        Result(CacheDownloader downloader, boolean modified) {
+            this.downloader = downloader;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Download the resource.
+     *
+     * @param conditional whether the downloads are conditional, see {@link CacheDownloader#download(boolean)}
+     * @return the result of the download which completed first
+     * @throws IOException all the mirrors failed
+     */
+    Result download(boolean conditional) throws IOException {
+        List<String> urls = new ArrayList<>();
+        for (CacheDownloader downloader : downloaders) {
+            urls.add(downloader.getUrl());
+        }
+        List<Integer> order = stats.order(urls, weights, random);
+
+        BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+        List<Attempt> running = new ArrayList<>();
+        int next = 0;
+        IOException lastError = null;
+        long hedgeAt = Long.MAX_VALUE;
+
+        try {
+            while (true) {
+                // Start a download if there is no other one, or if the running one is too slow
+                boolean hedge = System.currentTimeMillis() >= hedgeAt;
+                if (next < order.size() && (running.isEmpty() || (hedge && running.size() < MAX_PARALLEL_DOWNLOADS))) {
+                    CacheDownloader downloader = downloaders.get(order.get(next++));
+                    if (!running.isEmpty()) {
+                        Log.d(TorLibApi.TAG, "No answer yet -- hedging download on " + downloader.getUrl());
+                    }
+                    Attempt attempt = new Attempt(downloader, conditional, events);
+                    running.add(attempt);
+                    Thread thread = new Thread(attempt, "ArtiHedgedDownload");
+                    thread.setDaemon(true);
+                    thread.start();
+                    hedgeAt = next < order.size() ?
+                            System.currentTimeMillis() + stats.hedgeDelayMillis(downloader.getUrl()) : Long.MAX_VALUE;
+                    continue;
+                }
+                if (running.isEmpty()) {
+                    throw lastError != null ? lastError : new IOException("No mirror available");
+                }
+
+                long timeout = hedgeAt == Long.MAX_VALUE || running.size() >= MAX_PARALLEL_DOWNLOADS ?
+                        Long.MAX_VALUE : Math.max(0, hedgeAt - System.currentTimeMillis());
+                Event event = timeout == Long.MAX_VALUE ? events.take() : events.poll(timeout, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    continue;
+                }
+                Attempt attempt = event.attempt;
+                String url = attempt.downloader.getUrl();
+
+                if (event.answered) {
+                    stats.recordLatency(url, attempt.answerMillis);
+                    // The mirror answers: no need to hedge unless it fails
+                    hedgeAt = Long.MAX_VALUE;
+                } else if (event.error != null) {
+                    Log.d(TorLibApi.TAG, "Download from " + url + " failed: " + event.error);
+                    stats.recordFailure(url);
+                    running.remove(attempt);
+                    lastError = event.error;
+                    // Replace the failed download right away, unless another mirror answers
+                    hedgeAt = System.currentTimeMillis();
+                    for (Attempt other : running) {
+                        if (other.answerMillis >= 0) {
+                            hedgeAt = Long.MAX_VALUE;
+                        }
+                    }
+                } else {
+                    stats.recordSuccess(url);
+                    running.remove(attempt);
+                    return new Result(attempt.downloader, attempt.modified);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted");
+        } finally {
+            for (Attempt attempt : running) {
+                String url = attempt.downloader.getUrl();
+                long waited = System.currentTimeMillis() - attempt.startMillis;
+                if (attempt.answerMillis < 0 && waited >= stats.hedgeDelayMillis(url)) {
+                    // Lower bound of the latency of a mirror which was too slow to answer
+                    stats.recordLatency(url, waited);
+                }
+                attempt.downloader.cancel();
+            }
+        }
+    }
+}
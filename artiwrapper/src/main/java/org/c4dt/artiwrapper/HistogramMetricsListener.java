@@ -0,0 +1,156 @@
+package org.c4dt.artiwrapper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics listener aggregating the requests of one or more clients into lock-free histograms,
+ * from which {@link #snapshot()} reports percentiles, e.g. for export to a monitoring system.
+ * <p>
+ * Durations which do not apply to a request (see {@link RequestMetrics}) are not recorded, so
+ * each histogram has its own count.
+ */
+public class HistogramMetricsListener implements ClientMetricsListener {
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram send = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final Map<String, AtomicLong> errorsByClass = new ConcurrentHashMap<>();
+
+    @Override
+    public void onRequestCompleted(RequestMetrics metrics) {
+        queueWait.record(metrics.getQueueWaitNanos());
+        send.record(metrics.getSendNanos());
+        total.record(metrics.getTotalNanos());
+        requestBytes.addAndGet(metrics.getRequestBytes());
+        if (metrics.getResponseBytes() > 0) {
+            responseBytes.addAndGet(metrics.getResponseBytes());
+        }
+        String errorClass = metrics.getErrorClass();
+        if (errorClass != null) {
+            AtomicLong counter = errorsByClass.get(errorClass);
+            if (counter == null) {
+                AtomicLong created = new AtomicLong();
+                counter = errorsByClass.putIfAbsent(errorClass, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.incrementAndGet();
+            errorCount.incrementAndGet();
+        }
+        requestCount.incrementAndGet();
+    }
+
+    /**
+     * Get the current state of the metrics.
+     *
+     * @return a snapshot of the metrics
+     */
+    public Snapshot snapshot() {
+        Map<String, Long> errors = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : errorsByClass.entrySet()) {
+            errors.put(entry.getKey(), entry.getValue().get());
+        }
+        return new Snapshot(requestCount.get(), errorCount.get(), requestBytes.get(), responseBytes.get(),
+                Collections.unmodifiableMap(errors),
+                queueWait.snapshot(), send.snapshot(), total.snapshot());
+    }
+
+    /**
+     * State of a {@link HistogramMetricsListener} at a point in time.
+     * Durations are in nanoseconds.
+     */
+    public static final class Snapshot {
+        private final long requestCount;
+        private final long errorCount;
+        private final long requestBytes;
+        private final long responseBytes;
+        private final Map<String, Long> errorCounts;
+        private final LatencyHistogram.Snapshot queueWait;
+        private final LatencyHistogram.Snapshot send;
+        private final LatencyHistogram.Snapshot total;
+
+        Snapshot(long requestCount, long errorCount, long requestBytes, long responseBytes,
+                 Map<String, Long> errorCounts,
+                 LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot send,
+                 LatencyHistogram.Snapshot total) {
+            this.requestCount = requestCount;
+            this.errorCount = errorCount;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            this.errorCounts = errorCounts;
+            this.queueWait = queueWait;
+            this.send = send;
+            this.total = total;
+        }
+
+        /**
+         * Get the number of completed requests, successful or not.
+         */
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * Get the number of failed requests.
+         */
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * Get the number of failed requests by error class, see {@link RequestMetrics#getErrorClass()}.
+         */
+        public Map<String, Long> getErrorCounts() {
+            return errorCounts;
+        }
+
+        /**
+         * Get the total size of the request bodies.
+         */
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        /**
+         * Get the total size of the response bodies.
+         */
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+
+        /**
+         * Get the distribution of the time asynchronous requests waited in the dispatcher.
+         */
+        public LatencyHistogram.Snapshot getQueueWait() {
+            return queueWait;
+        }
+
+        /**
+         * Get the distribution of the time spent in the native library.
+         */
+        public LatencyHistogram.Snapshot getSend() {
+            return send;
+        }
+
+        /**
+         * Get the distribution of the request durations, excluding the queue wait.
+         */
+        public LatencyHistogram.Snapshot getTotal() {
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{requests=" + requestCount + ", errors=" + errorCounts +
+                    ", queueWait=" + queueWait + ", send=" + send + ", total=" + total + "}";
+        }
+    }
+}
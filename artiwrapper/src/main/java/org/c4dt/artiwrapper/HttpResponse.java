@@ -1,5 +1,8 @@
 package org.c4dt.artiwrapper;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -9,13 +12,26 @@ import java.util.Map;
 public class HttpResponse {
     private int status;
     private String version;
-    private Map<String, List<String>> headers;
+    /**
+     * Headers as returned by the library, never handed out.
+     */
+    private Map<String, List<String>> libraryHeaders;
+    private volatile Map<String, List<String>> headers;
+    private volatile Headers flatHeaders;
     private byte[] body;
 
+    // Called by the library
     private HttpResponse(int status, String version, Map<String, List<String>> headers, byte[] body) {
         this.status = status;
         this.version = version;
-        this.headers = headers;
+        this.libraryHeaders = headers;
+        this.body = body;
+    }
+
+    HttpResponse(int status, String version, Headers headers, byte[] body) {
+        this.status = status;
+        this.version = version;
+        this.flatHeaders = headers;
         this.body = body;
     }
 
@@ -39,11 +55,46 @@ public class HttpResponse {
 
     /**
      * Get the response headers.
+     * The map is a mutable copy, built on the first call and returned by the later ones. It is
+     * detached from {@link #headers()}: changes to the map are never reflected there.
      *
      * @return the HTTP headers of the response
      */
     public Map<String, List<String>> getHeaders() {
-        return headers;
+        Map<String, List<String>> result = headers;
+        if (result == null) {
+            synchronized (this) {
+                result = headers;
+                if (result == null) {
+                    result = flatHeaders != null ? flatHeaders.newMultimap() : copyOf(libraryHeaders);
+                    headers = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the response headers as a flat list of fields, with case-insensitive lookup.
+     *
+     * @return the HTTP headers of the response
+     */
+    public Headers headers() {
+        Headers result = flatHeaders;
+        if (result == null) {
+            result = Headers.of(libraryHeaders);
+            flatHeaders = result;
+        }
+        return result;
+    }
+
+    private static Map<String, List<String>> copyOf(Map<String, List<String>> map) {
+        Map<String, List<String>> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> header : map.entrySet()) {
+            if (header.getValue() == null) continue;
+            copy.put(header.getKey(), new ArrayList<>(header.getValue()));
+        }
+        return copy;
     }
 
     /**
@@ -54,4 +105,18 @@ public class HttpResponse {
     public byte[] getBody() {
         return body;
     }
+
+    /**
+     * Get the response body as a read-only buffer, wrapping {@link #getBody()} without copying it.
+     * This only avoids a copy on the Java side: the body has already been copied from the library
+     * into a Java array, and no request method takes or fills a buffer.
+     *
+     * @return the body of the response, empty if there is none
+     */
+    public ByteBuffer getBodyBuffer() {
+        if (body == null) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
 }
@@ -0,0 +1,194 @@
+package org.c4dt.artiwrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transport sending the requests as plain HTTP to a local server, with injected latency and
+ * bandwidth limit to mimic a Tor circuit.
+ * <p>
+ * The scheme, host and port of each request URL are replaced by those of the server; the path
+ * and query are kept. Each request first waits for {@link #getLatencyMillis()}, standing in for
+ * the round trips through the circuit, then its request and response bodies are throttled to
+ * {@link #getBandwidthBytesPerSecond()}. Redirects are not followed.
+ */
+final class LoopbackTransport implements Transport {
+    static final long DEFAULT_LATENCY_MILLIS = 0;
+    /**
+     * No bandwidth limit.
+     */
+    static final long DEFAULT_BANDWIDTH_BYTES_PER_SECOND = 0;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final URL server;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile long latencyMillis = DEFAULT_LATENCY_MILLIS;
+    private volatile long bandwidthBytesPerSecond = DEFAULT_BANDWIDTH_BYTES_PER_SECOND;
+
+    /**
+     * @param serverUrl the URL of the local server, e.g. <code>"http://127.0.0.1:8080"</code>
+     */
+    LoopbackTransport(String serverUrl) {
+        try {
+            this.server = new URL(serverUrl);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid server URL: " + serverUrl, e);
+        }
+    }
+
+    /**
+     * Get the delay added before each request.
+     */
+    long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * Set the delay added before each request.
+     *
+     * @param latencyMillis the delay, 0 for none
+     */
+    void setLatencyMillis(long latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("latencyMillis < 0: " + latencyMillis);
+        }
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Get the throughput of the request and response bodies of each request.
+     */
+    long getBandwidthBytesPerSecond() {
+        return bandwidthBytesPerSecond;
+    }
+
+    /**
+     * Set the throughput of the request and response bodies of each request.
+     *
+     * @param bandwidthBytesPerSecond the throughput, 0 for no limit
+     */
+    void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        if (bandwidthBytesPerSecond < 0) {
+            throw new IllegalArgumentException("bandwidthBytesPerSecond < 0: " + bandwidthBytesPerSecond);
+        }
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    URL rewrite(String url) throws MalformedURLException {
+        URL target = new URL(url);
+        String file = target.getFile().isEmpty() ? "/" : target.getFile();
+        return new URL(server.getProtocol(), server.getHost(), server.getPort(), file);
+    }
+
+    @Override
+    public HttpResponse send(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body)
+            throws TorLibException {
+        if (closed.get()) {
+            throw new TorLibException("Transport has been closed");
+        }
+        HttpURLConnection connection = null;
+        try {
+            URL target = rewrite(url);
+            sleep(latencyMillis);
+
+            connection = (HttpURLConnection) target.openConnection();
+            connection.setRequestMethod(method.name());
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            if (headers != null) {
+                for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                    for (String value : header.getValue()) {
+                        connection.addRequestProperty(header.getKey(), value);
+                    }
+                }
+            }
+            if (body != null && body.length > 0) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    long start = System.nanoTime();
+                    for (int offset = 0; offset < body.length; offset += BUFFER_SIZE) {
+                        int length = Math.min(BUFFER_SIZE, body.length - offset);
+                        out.write(body, offset, length);
+                        throttle(start, offset + length);
+                    }
+                }
+            }
+
+            int status = connection.getResponseCode();
+            Map<String, List<String>> responseHeaders = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                // The status line is reported with a null name
+                if (header.getKey() != null) {
+                    responseHeaders.put(header.getKey(), header.getValue());
+                }
+            }
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            byte[] responseBody = in == null ? new byte[0] : readThrottled(in);
+            return new HttpResponse(status, "HTTP/1.1", Headers.of(responseHeaders), responseBody);
+        } catch (IOException e) {
+            throw new TorLibException("Loopback request failed: " + e, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TorLibException("Loopback request interrupted", e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private byte[] readThrottled(InputStream in) throws IOException, InterruptedException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long start = System.nanoTime();
+            long total = 0;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+                throttle(start, total);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Wait until the given number of bytes fit in the bandwidth since the start of the transfer.
+     */
+    private void throttle(long startNanos, long bytes) throws InterruptedException {
+        long bandwidth = bandwidthBytesPerSecond;
+        if (bandwidth == 0) {
+            return;
+        }
+        long dueNanos = startNanos + bytes * 1_000_000_000L / bandwidth;
+        sleep((dueNanos - System.nanoTime()) / 1_000_000);
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public boolean close() {
+        return closed.compareAndSet(false, true);
+    }
+}
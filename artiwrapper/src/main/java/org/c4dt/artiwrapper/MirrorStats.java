@@ -0,0 +1,152 @@
+package org.c4dt.artiwrapper;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Latency statistics of the mirrors of the directory cache, by host.
+ * <p>
+ * The latency is the time until a mirror starts answering. As for TCP retransmission timeouts,
+ * a smoothed latency and its mean deviation are maintained, and a download is hedged on another
+ * mirror if the first one has not answered after the smoothed latency plus four deviations.
+ */
+final class MirrorStats {
+    static final long DEFAULT_HEDGE_DELAY_MILLIS = 2000;
+    static final long MIN_HEDGE_DELAY_MILLIS = 100;
+    static final long MAX_HEDGE_DELAY_MILLIS = 10 * 1000;
+
+    /**
+     * Statistics shared by all the cache updates of the process.
+     */
+    static final MirrorStats SHARED = new MirrorStats(DEFAULT_HEDGE_DELAY_MILLIS);
+
+    static final class HostStats {
+        int samples;
+        double smoothedMillis;
+        double deviationMillis;
+        int consecutiveFailures;
+    }
+
+    private final long initialHedgeDelayMillis;
+    private final Map<String, HostStats> hosts = new HashMap<>();
+
+    /**
+     * @param initialHedgeDelayMillis the hedging delay for a mirror without statistics
+     */
+    MirrorStats(long initialHedgeDelayMillis) {
+        this.initialHedgeDelayMillis = initialHedgeDelayMillis;
+    }
+
+    static String hostOf(String url) {
+        try {
+            return new URL(url).getAuthority();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    private HostStats stats(String url) {
+        String host = hostOf(url);
+        HostStats stats = hosts.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            hosts.put(host, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Record the time a mirror took to answer. For a mirror which did not answer, e.g. because
+     * the download was hedged, the time waited is a lower bound of its latency.
+     */
+    synchronized void recordLatency(String url, long millis) {
+        HostStats stats = stats(url);
+        if (stats.samples == 0) {
+            stats.smoothedMillis = millis;
+            stats.deviationMillis = millis / 2.0;
+        } else {
+            stats.deviationMillis = 0.75 * stats.deviationMillis + 0.25 * Math.abs(stats.smoothedMillis - millis);
+            stats.smoothedMillis = 0.875 * stats.smoothedMillis + 0.125 * millis;
+        }
+        stats.samples++;
+    }
+
+    synchronized void recordSuccess(String url) {
+        stats(url).consecutiveFailures = 0;
+    }
+
+    synchronized void recordFailure(String url) {
+        stats(url).consecutiveFailures++;
+    }
+
+    /**
+     * Get how long to wait for a mirror to answer before hedging on another one.
+     */
+    synchronized long hedgeDelayMillis(String url) {
+        HostStats stats = hosts.get(hostOf(url));
+        if (stats == null || stats.samples == 0) {
+            return initialHedgeDelayMillis;
+        }
+        long delay = (long) (stats.smoothedMillis + 4 * stats.deviationMillis);
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(MAX_HEDGE_DELAY_MILLIS, delay));
+    }
+
+    /**
+     * Get the expected latency of a mirror.
+     */
+    synchronized double expectedLatencyMillis(String url) {
+        HostStats stats = hosts.get(hostOf(url));
+        if (stats == null || stats.samples == 0) {
+            return initialHedgeDelayMillis;
+        }
+        return Math.max(1, stats.smoothedMillis);
+    }
+
+    private synchronized double score(String url, int weight) {
+        HostStats stats = hosts.get(hostOf(url));
+        int failures = stats == null ? 0 : stats.consecutiveFailures;
+        return weight / (expectedLatencyMillis(url) * (1 << Math.min(failures, 16)));
+    }
+
+    /**
+     * Order the URLs of the mirrors for a download: each position is drawn at random among the
+     * remaining mirrors, in proportion to their weights divided by their expected latencies.
+     *
+     * @param urls    the URL of the resource on each mirror
+     * @param weights the weights of the mirrors
+     * @return the indices of the mirrors, in order
+     */
+    List<Integer> order(List<String> urls, List<Integer> weights, Random random) {
+        List<Integer> remaining = new ArrayList<>();
+        List<Double> scores = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            remaining.add(i);
+            scores.add(score(urls.get(i), weights.get(i)));
+        }
+
+        List<Integer> order = new ArrayList<>();
+        while (!remaining.isEmpty()) {
+            double total = 0;
+            for (double score : scores) {
+                total += score;
+            }
+            double r = random.nextDouble() * total;
+            int chosen = remaining.size() - 1;
+            for (int i = 0; i < remaining.size(); i++) {
+                r -= scores.get(i);
+                if (r < 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+            order.add(remaining.remove(chosen));
+            scores.remove(chosen);
+        }
+        return order;
+    }
+}
@@ -0,0 +1,94 @@
+package org.c4dt.artiwrapper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted guard around a native handle.
+ * <p>
+ * Each use of the handle is bracketed by {@link #acquire()} and {@link #release()}. Closing the
+ * guard prevents new acquisitions, and the handle is freed once the last in-flight use has
+ * released it (immediately if there is none). The state is a single atomic integer, whose sign
+ * bit records the closing and whose other bits count the in-flight uses, so that no lock is
+ * taken on the request path.
+ */
+final class NativeHandle {
+    private static final int CLOSED = Integer.MIN_VALUE;
+
+    /**
+     * Action freeing the native handle.
+     */
+    interface Releaser {
+        void free(long handle);
+    }
+
+    private final long handle;
+    private final Releaser releaser;
+    private final AtomicInteger state = new AtomicInteger();
+
+    NativeHandle(long handle, Releaser releaser) {
+        this.handle = handle;
+        this.releaser = releaser;
+    }
+
+    /**
+     * Pin the handle for one use. Must be followed by exactly one call to {@link #release()}.
+     *
+     * @return the native handle
+     * @throws TorLibException the guard has already been closed
+     */
+    long acquire() throws TorLibException {
+        for (; ; ) {
+            int s = state.get();
+            if ((s & CLOSED) != 0) {
+                throw new TorLibException("Client has already been closed");
+            }
+            if (s == Integer.MAX_VALUE) {
+                throw new TorLibException("Too many concurrent requests");
+            }
+            if (state.compareAndSet(s, s + 1)) {
+                return handle;
+            }
+        }
+    }
+
+    /**
+     * Unpin the handle, freeing it if the guard is closed and this was the last use.
+     */
+    void release() {
+        if (state.decrementAndGet() == CLOSED) {
+            releaser.free(handle);
+        }
+    }
+
+    /**
+     * Close the guard. The handle is freed now if it is not in use, or by the last
+     * {@link #release()} otherwise.
+     *
+     * @return false if the guard had already been closed
+     */
+    boolean close() {
+        for (; ; ) {
+            int s = state.get();
+            if ((s & CLOSED) != 0) {
+                return false;
+            }
+            if (state.compareAndSet(s, s | CLOSED)) {
+                if (s == 0) {
+                    releaser.free(handle);
+                }
+                return true;
+            }
+        }
+    }
+
+    boolean isClosed() {
+        return (state.get() & CLOSED) != 0;
+    }
+
+    /**
+     * Get the number of uses which have acquired the handle and not released it yet.
+     */
+    int inFlight() {
+        return state.get() & ~CLOSED;
+    }
+}
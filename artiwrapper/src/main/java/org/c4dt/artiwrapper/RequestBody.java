@@ -0,0 +1,126 @@
+package org.c4dt.artiwrapper;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Body of a request, read only when the request is executed.
+ * <p>
+ * The library takes the body of a request in one piece: the whole body is buffered in the Java
+ * heap before the request is sent, and uploads are not streamed. A file is read in chunks of
+ * {@link #CHUNK_SIZE} bytes directly into an array of its final size, so that the payload is
+ * held only once.
+ */
+public abstract class RequestBody {
+    /**
+     * Number of bytes read at once from the body source.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    RequestBody() {
+    }
+
+    /**
+     * Get the length of the body.
+     *
+     * @return the number of bytes in the body
+     */
+    public abstract long contentLength();
+
+    abstract byte[] toByteArray() throws IOException;
+
+    /**
+     * Create a body from a byte array. The array is not copied.
+     *
+     * @param bytes the body contents
+     * @return the request body
+     */
+    public static RequestBody fromBytes(final byte[] bytes) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return bytes.length;
+            }
+
+            @Override
+            byte[] toByteArray() {
+                return bytes;
+            }
+        };
+    }
+
+    /**
+     * Create a body from the remaining bytes of a buffer. The buffer position is not modified.
+     * If the buffer is backed by an array which it covers entirely, the array is passed as is;
+     * otherwise (e.g. for direct buffers), the remaining bytes are copied once.
+     *
+     * @param buffer the body contents
+     * @return the request body
+     */
+    public static RequestBody fromByteBuffer(final ByteBuffer buffer) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return buffer.remaining();
+            }
+
+            @Override
+            byte[] toByteArray() {
+                if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 &&
+                        buffer.remaining() == buffer.array().length) {
+                    return buffer.array();
+                }
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+                return bytes;
+            }
+        };
+    }
+
+    /**
+     * Create a body from the contents of a file. The file is read into memory when the request
+     * is executed.
+     *
+     * @param file the file containing the body
+     * @return the request body
+     */
+    public static RequestBody fromFile(final File file) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return file.length();
+            }
+
+            @Override
+            byte[] toByteArray() throws IOException {
+                try (InputStream in = new FileInputStream(file)) {
+                    return readFully(in, file.length());
+                }
+            }
+        };
+    }
+
+    private static void checkLength(long contentLength) throws IOException {
+        if (contentLength > Integer.MAX_VALUE - 8) {
+            throw new IOException("Body is too large: " + contentLength + " bytes");
+        }
+    }
+
+    static byte[] readFully(InputStream in, long contentLength) throws IOException {
+        checkLength(contentLength);
+        byte[] result = new byte[(int) contentLength];
+        int pos = 0;
+        while (pos < result.length) {
+            int nbRead = in.read(result, pos, Math.min(CHUNK_SIZE, result.length - pos));
+            if (nbRead == -1) {
+                throw new EOFException("Body ended after " + pos + " of " + contentLength + " bytes");
+            }
+            pos += nbRead;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,173 @@
+package org.c4dt.artiwrapper;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalescing of identical concurrent requests.
+ * <p>
+ * Requests are identified by their method, URL, body, and the values of a selected set of
+ * headers. The headers which select a part or a version of the resource, or carry credentials
+ * ({@link #ALWAYS_KEY_HEADERS}), are always part of the identity. While a request is in
+ * flight, identical requests wait for it instead of being sent, and each of them receives its
+ * own copy of the response (or the same error). Only GET and HEAD requests are coalesced.
+ */
+public class RequestCoalescer {
+    /**
+     * Headers whose values must always be equal for two requests to be coalesced.
+     */
+    static final String[] ALWAYS_KEY_HEADERS = new String[]{
+            "Range", "If-Range", "If-None-Match", "If-Modified-Since", "Authorization", "Cookie",
+    };
+
+    private final String[] keyHeaders;
+    private final ConcurrentHashMap<Key, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Action executing a request.
+     */
+    interface Call {
+        HttpResponse execute() throws TorLibException;
+    }
+
+    /**
+     * Create a new request coalescer.
+     *
+     * @param keyHeaders the names of the headers (case-insensitive) whose values must be equal for
+     *                   two requests to be coalesced, in addition to {@link #ALWAYS_KEY_HEADERS};
+     *                   other headers are ignored
+     */
+    public RequestCoalescer(String... keyHeaders) {
+        this.keyHeaders = new String[ALWAYS_KEY_HEADERS.length + keyHeaders.length];
+        System.arraycopy(ALWAYS_KEY_HEADERS, 0, this.keyHeaders, 0, ALWAYS_KEY_HEADERS.length);
+        System.arraycopy(keyHeaders, 0, this.keyHeaders, ALWAYS_KEY_HEADERS.length, keyHeaders.length);
+    }
+
+    /**
+     * Get the number of requests which were actually executed.
+     */
+    public long executedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * Get the number of requests which were answered by an identical in-flight request.
+     */
+    public long coalescedCount() {
+        return coalescedCount.get();
+    }
+
+    HttpResponse execute(Client.TorRequestMethod method, String url, Map<String, List<String>> headers,
+                         byte[] body, Call call)
+            throws TorLibException {
+        if ((method != Client.TorRequestMethod.GET && method != Client.TorRequestMethod.HEAD) ||
+                url == null || headers == null || body == null) {
+            return call.execute();
+        }
+
+        Key key = new Key(method, url, Headers.of(headers), keyHeaders, body);
+        Flight flight = new Flight();
+        Flight existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return existing.await();
+        }
+
+        executedCount.incrementAndGet();
+        HttpResponse response = null;
+        Exception error = null;
+        try {
+            response = call.execute();
+            return response;
+        } catch (TorLibException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+            flight.complete(response, error);
+        }
+    }
+
+    /**
+     * Identity of a request, for coalescing purposes.
+     */
+    private static final class Key {
+        private final Client.TorRequestMethod method;
+        private final String url;
+        private final String[] headerValues;
+        private final byte[] body;
+        private final int hash;
+
+        Key(Client.TorRequestMethod method, String url, Headers headers, String[] keyHeaders, byte[] body) {
+            this.method = method;
+            this.url = url;
+            this.headerValues = new String[keyHeaders.length];
+            for (int i = 0; i < keyHeaders.length; i++) {
+                List<String> values = headers.values(keyHeaders[i]);
+                headerValues[i] = values.isEmpty() ? null : values.toString();
+            }
+            this.body = body;
+            this.hash = 31 * (31 * (31 * method.hashCode() + url.hashCode()) + Arrays.hashCode(headerValues)) +
+                    Arrays.hashCode(body);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && method == other.method && url.equals(other.url) &&
+                    Arrays.equals(headerValues, other.headerValues) && Arrays.equals(body, other.body);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Result of an in-flight request, copied for each of its waiters.
+     */
+    private static final class Flight {
+        private boolean done;
+        private HttpResponse response;
+        private Exception error;
+
+        synchronized void complete(HttpResponse response, Exception error) {
+            this.done = true;
+            this.response = response;
+            this.error = error;
+            notifyAll();
+        }
+
+        synchronized HttpResponse await() throws TorLibException {
+            boolean interrupted = false;
+            try {
+                while (!done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (error != null) {
+                throw new TorLibException(error.getMessage(), error);
+            }
+            // Copy the body, so that waiters cannot modify each other's response
+            byte[] body = response.getBody();
+            return new HttpResponse(response.getStatus(), response.getVersion(), response.headers(),
+                    body == null ? null : body.clone());
+        }
+    }
+}
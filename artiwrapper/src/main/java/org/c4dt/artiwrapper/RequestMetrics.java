@@ -0,0 +1,121 @@
+package org.c4dt.artiwrapper;
+
+/**
+ * Timing and size of a completed request, see {@link ClientMetricsListener}.
+ * Durations are in nanoseconds, and are -1 when they do not apply to the request.
+ */
+public final class RequestMetrics {
+    private final Client.TorRequestMethod method;
+    private final String url;
+    private final long queueWaitNanos;
+    private final long requestBytes;
+    long sendNanos = -1;
+    long totalNanos = -1;
+    int status = -1;
+    long responseBytes = -1;
+    Exception error;
+
+    RequestMetrics(Client.TorRequestMethod method, String url, long queueWaitNanos, long requestBytes) {
+        this.method = method;
+        this.url = url;
+        this.queueWaitNanos = queueWaitNanos;
+        this.requestBytes = requestBytes;
+    }
+
+    public Client.TorRequestMethod getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the host targeted by the request, as used by the {@link Dispatcher} limits.
+     */
+    public String getHost() {
+        return Dispatcher.hostOf(url);
+    }
+
+    /**
+     * Get the time the request waited in the {@link Dispatcher} before being run.
+     *
+     * @return the queue wait, or -1 for a synchronous request
+     */
+    public long getQueueWaitNanos() {
+        return queueWaitNanos;
+    }
+
+    /**
+     * Get the time spent in the transport, i.e. for the native library from the call until the
+     * response is converted back, including the circuit construction and the Tor round trip.
+     *
+     * @return the send duration, or -1 if the response was served by the {@link ResponseCache}
+     * or shared with an identical request by the {@link RequestCoalescer}
+     */
+    public long getSendNanos() {
+        return sendNanos;
+    }
+
+    /**
+     * Get the time from the start of the request until its completion, excluding the queue wait.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Get the size of the request body.
+     */
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    /**
+     * Get the size of the response body.
+     *
+     * @return the size of the body, or -1 if the request failed
+     */
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+
+    /**
+     * Get the HTTP status of the response.
+     *
+     * @return the status, or -1 if the request failed
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the error which made the request fail.
+     *
+     * @return the error, or null if the request succeeded
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Get the class of the error which made the request fail, e.g. for counting errors by kind.
+     *
+     * @return the simple name of the error class, or null if the request succeeded
+     */
+    public String getErrorClass() {
+        return error == null ? null : error.getClass().getSimpleName();
+    }
+
+    @Override
+    public String toString() {
+        return "RequestMetrics{" + method + " " + url +
+                ", queueWait=" + queueWaitNanos +
+                ", send=" + sendNanos +
+                ", total=" + totalNanos +
+                ", status=" + status +
+                ", requestBytes=" + requestBytes +
+                ", responseBytes=" + responseBytes +
+                (error == null ? "" : ", error=" + getErrorClass()) + "}";
+    }
+}
@@ -0,0 +1,596 @@
+package org.c4dt.artiwrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP response cache for {@link Client}, following the rules of RFC 7234 for a private cache.
+ * <p>
+ * Responses to GET requests are kept in a bounded in-memory LRU, backed by a size-capped store
+ * on disk. Fresh responses (<code>Cache-Control: max-age</code>, <code>Expires</code>, or a
+ * heuristic based on <code>Last-Modified</code>) are served without any request; stale responses
+ * having a validator are revalidated with <code>If-None-Match</code> /
+ * <code>If-Modified-Since</code>, and a <code>304 Not Modified</code> answer is served from the
+ * cache. Successful unsafe requests (POST, PUT, DELETE) invalidate the entry of their URL.
+ * <p>
+ * Requests carrying their own <code>Range</code>, <code>Authorization</code>,
+ * <code>If-None-Match</code> or <code>If-Modified-Since</code> header bypass the cache, so that
+ * the caller gets the server's answer, e.g. a <code>304</code> to its own conditional request.
+ */
+public class ResponseCache {
+    /**
+     * Name of the subdirectory used by {@link #inCacheDir(String, long)}.
+     */
+    public static final String DIRECTORY_NAME = "http-cache";
+
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+
+    private static final int ENTRY_MAGIC = 0x41525431;
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final long MAX_HEURISTIC_LIFETIME_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final List<Integer> CACHEABLE_STATUSES =
+            Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501);
+
+    /**
+     * Action sending a request to the network with the given headers.
+     */
+    interface Network {
+        HttpResponse send(Map<String, List<String>> headers) throws TorLibException;
+    }
+
+    private final File directory;
+    private final long maxDiskBytes;
+    private final long maxMemoryBytes;
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private final Object diskLock = new Object();
+    private long diskBytes = -1;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    /**
+     * Create a new response cache.
+     *
+     * @param directory      the directory where responses are stored
+     * @param maxDiskBytes   the maximum size of the responses stored on disk
+     * @param maxMemoryBytes the maximum size of the responses kept in memory
+     */
+    public ResponseCache(File directory, long maxDiskBytes, long maxMemoryBytes) {
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Create a new response cache stored in the {@link #DIRECTORY_NAME} subdirectory of a client
+     * cache directory, with the default memory size.
+     *
+     * @param cacheDir     the cache directory path, as passed to {@link Client#Client(String)}
+     * @param maxDiskBytes the maximum size of the responses stored on disk
+     * @return the response cache
+     */
+    public static ResponseCache inCacheDir(String cacheDir, long maxDiskBytes) {
+        return new ResponseCache(new File(cacheDir, DIRECTORY_NAME), maxDiskBytes, DEFAULT_MAX_MEMORY_BYTES);
+    }
+
+    /**
+     * Get the number of requests which could be answered by the cache.
+     */
+    public long requestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Get the number of requests answered from the cache without any network request.
+     */
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Get the number of requests answered with a full response from the network.
+     */
+    public long missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Get the number of conditional requests sent to revalidate a stale response.
+     */
+    public long revalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /**
+     * Get the number of revalidations answered with <code>304 Not Modified</code>, i.e. for
+     * which the body was served from the cache.
+     */
+    public long notModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * Remove all the responses from the cache.
+     */
+    public void evictAll() {
+        synchronized (this) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+        synchronized (diskLock) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(ENTRY_SUFFIX)) {
+                        //noinspection ResultOfMethodCallIgnored
+                        f.delete();
+                    }
+                }
+            }
+            diskBytes = 0;
+        }
+    }
+
+    HttpResponse execute(Client.TorRequestMethod method, String url, Map<String, List<String>> headers,
+                         Network network)
+            throws TorLibException {
+        if (method != Client.TorRequestMethod.GET || url == null || headers == null) {
+            HttpResponse response = network.send(headers);
+            if (url != null && method != Client.TorRequestMethod.GET && method != Client.TorRequestMethod.HEAD &&
+                    response.getStatus() < 400) {
+                remove(url);
+            }
+            return response;
+        }
+
+        Headers requestHeaders = Headers.of(headers);
+        CacheControl requestCacheControl = CacheControl.parse(requestHeaders);
+        if (requestCacheControl.noStore || requestHeaders.get("Range") != null ||
+                requestHeaders.get("Authorization") != null || requestHeaders.get("If-None-Match") != null ||
+                requestHeaders.get("If-Modified-Since") != null) {
+            return network.send(headers);
+        }
+        requestCount.incrementAndGet();
+
+        Entry cached = get(url);
+        if (cached != null && !cached.varyMatches(requestHeaders)) {
+            cached = null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (cached != null && !requestCacheControl.noCache && cached.isFresh(now, requestCacheControl)) {
+            hitCount.incrementAndGet();
+            return cached.toResponse();
+        }
+        if (requestCacheControl.onlyIfCached) {
+            return new HttpResponse(504, "HTTP/1.1", Headers.of(), new byte[0]);
+        }
+
+        Map<String, List<String>> networkHeaders = headers;
+        boolean conditional = false;
+        if (cached != null) {
+            String etag = cached.headers.get("ETag");
+            String lastModified = cached.headers.get("Last-Modified");
+            if (etag != null || lastModified != null) {
+                networkHeaders = new HashMap<>(headers);
+                if (etag != null) {
+                    networkHeaders.put("If-None-Match", Collections.singletonList(etag));
+                }
+                if (lastModified != null) {
+                    networkHeaders.put("If-Modified-Since", Collections.singletonList(lastModified));
+                }
+                conditional = true;
+                revalidationCount.incrementAndGet();
+            }
+        }
+
+        long sentMillis = System.currentTimeMillis();
+        HttpResponse response = network.send(networkHeaders);
+        long receivedMillis = System.currentTimeMillis();
+
+        if (conditional && response.getStatus() == 304) {
+            notModifiedCount.incrementAndGet();
+            Entry updated = cached.update(response.headers(), sentMillis, receivedMillis);
+            put(updated);
+            return updated.toResponse();
+        }
+
+        missCount.incrementAndGet();
+        Entry entry = new Entry(url, response.getStatus(), response.getVersion(), response.headers(),
+                varyHeaders(response.headers(), requestHeaders), sentMillis, receivedMillis, response.getBody());
+        if (entry.isStorable(requestCacheControl, maxDiskBytes)) {
+            put(entry);
+        } else if (cached != null) {
+            remove(url);
+        }
+        return response;
+    }
+
+    private static Headers varyHeaders(Headers responseHeaders, Headers requestHeaders) {
+        Headers.Builder builder = new Headers.Builder();
+        for (String vary : responseHeaders.values("Vary")) {
+            for (String name : vary.split(",")) {
+                String n = name.trim();
+                if (n.isEmpty()) continue;
+                builder.add(n, joinValues(requestHeaders.values(n)));
+            }
+        }
+        return builder.build();
+    }
+
+    private static String joinValues(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String v : values) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(v);
+        }
+        return sb.toString();
+    }
+
+    // Storage
+
+    private Entry get(String url) {
+        synchronized (this) {
+            Entry entry = memory.get(url);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        Entry entry = readFromDisk(url);
+        if (entry != null) {
+            putInMemory(entry);
+        }
+        return entry;
+    }
+
+    private void put(Entry entry) {
+        putInMemory(entry);
+        writeToDisk(entry);
+    }
+
+    private void remove(String url) {
+        synchronized (this) {
+            Entry entry = memory.remove(url);
+            if (entry != null) {
+                memoryBytes -= entry.body.length;
+            }
+        }
+        synchronized (diskLock) {
+            File f = entryFile(url);
+            long length = f.length();
+            if (f.delete() && diskBytes >= 0) {
+                diskBytes -= length;
+            }
+        }
+    }
+
+    private synchronized void putInMemory(Entry entry) {
+        Entry previous = memory.put(entry.url, entry);
+        if (previous != null) {
+            memoryBytes -= previous.body.length;
+        }
+        memoryBytes += entry.body.length;
+
+        Iterator<Map.Entry<String, Entry>> it = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            memoryBytes -= eldest.body.length;
+        }
+    }
+
+    private File entryFile(String url) {
+        return new File(directory, sha256Hex(url) + ENTRY_SUFFIX);
+    }
+
+    private Entry readFromDisk(String url) {
+        synchronized (diskLock) {
+            File f = entryFile(url);
+            if (!f.exists()) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                Entry entry = Entry.readFrom(in);
+                if (!entry.url.equals(url)) {
+                    return null;
+                }
+                // Approximate LRU order on disk
+                //noinspection ResultOfMethodCallIgnored
+                f.setLastModified(System.currentTimeMillis());
+                return entry;
+            } catch (IOException e) {
+                long length = f.length();
+                if (f.delete() && diskBytes >= 0) {
+                    diskBytes -= length;
+                }
+                return null;
+            }
+        }
+    }
+
+    private void writeToDisk(Entry entry) {
+        synchronized (diskLock) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                return;
+            }
+            if (diskBytes < 0) {
+                diskBytes = 0;
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        if (f.getName().endsWith(ENTRY_SUFFIX)) {
+                            diskBytes += f.length();
+                        }
+                    }
+                }
+            }
+
+            File f = entryFile(entry.url);
+            File tmp = new File(directory, f.getName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                entry.writeTo(out);
+            } catch (IOException e) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return;
+            }
+
+            long previousLength = f.length();
+            if (!tmp.renameTo(f)) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return;
+            }
+            diskBytes += f.length() - previousLength;
+            trimDisk();
+        }
+    }
+
+    private void trimDisk() {
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> entries = new ArrayList<>();
+        for (File f : files) {
+            if (f.getName().endsWith(ENTRY_SUFFIX)) {
+                entries.add(f);
+            }
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : entries) {
+            if (diskBytes <= maxDiskBytes) break;
+            long length = f.length();
+            if (f.delete()) {
+                diskBytes -= length;
+            }
+        }
+    }
+
+    static String sha256Hex(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Cached response, with the information needed to compute its freshness.
+     */
+    static final class Entry {
+        final String url;
+        final int status;
+        final String version;
+        final Headers headers;
+        final Headers varyHeaders;
+        final long sentMillis;
+        final long receivedMillis;
+        final byte[] body;
+
+        Entry(String url, int status, String version, Headers headers, Headers varyHeaders,
+              long sentMillis, long receivedMillis, byte[] body) {
+            this.url = url;
+            this.status = status;
+            this.version = version;
+            this.headers = headers;
+            this.varyHeaders = varyHeaders;
+            this.sentMillis = sentMillis;
+            this.receivedMillis = receivedMillis;
+            this.body = body;
+        }
+
+        HttpResponse toResponse() {
+            // Copy the body, so that callers cannot modify the cached one
+            return new HttpResponse(status, version, headers, body.clone());
+        }
+
+        boolean varyMatches(Headers requestHeaders) {
+            for (int i = 0; i < varyHeaders.size(); i++) {
+                if (!varyHeaders.value(i).equals(joinValues(requestHeaders.values(varyHeaders.name(i))))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isStorable(CacheControl requestCacheControl, long maxDiskBytes) {
+            if (!CACHEABLE_STATUSES.contains(status) || requestCacheControl.noStore) {
+                return false;
+            }
+            CacheControl cacheControl = CacheControl.parse(headers);
+            if (cacheControl.noStore || body.length > maxDiskBytes / 4) {
+                return false;
+            }
+            for (String vary : headers.values("Vary")) {
+                if (vary.trim().equals("*")) {
+                    return false;
+                }
+            }
+            return cacheControl.maxAgeSeconds >= 0 || headers.get("Expires") != null ||
+                    headers.get("ETag") != null || headers.get("Last-Modified") != null;
+        }
+
+        /**
+         * Compute the freshness lifetime of the response (RFC 7234, section 4.2.1).
+         */
+        long freshnessLifetimeMillis(CacheControl cacheControl) {
+            if (cacheControl.maxAgeSeconds >= 0) {
+                return cacheControl.maxAgeSeconds * 1000;
+            }
+            long date = CacheControl.parseDate(headers.get("Date"));
+            long served = date >= 0 ? date : receivedMillis;
+            String expiresValue = headers.get("Expires");
+            if (expiresValue != null) {
+                long expires = CacheControl.parseDate(expiresValue);
+                // An invalid Expires value means that the response has already expired
+                return expires < 0 ? 0 : Math.max(0, expires - served);
+            }
+            long lastModified = CacheControl.parseDate(headers.get("Last-Modified"));
+            if (lastModified >= 0 && lastModified <= served) {
+                return Math.min(MAX_HEURISTIC_LIFETIME_MILLIS, (served - lastModified) / 10);
+            }
+            return 0;
+        }
+
+        /**
+         * Compute the current age of the response (RFC 7234, section 4.2.3).
+         */
+        long ageMillis(long now) {
+            long date = CacheControl.parseDate(headers.get("Date"));
+            long apparentAge = date >= 0 ? Math.max(0, receivedMillis - date) : 0;
+            long ageValue = 0;
+            String age = headers.get("Age");
+            if (age != null) {
+                try {
+                    ageValue = Long.parseLong(age.trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    // ignore
+                }
+            }
+            long correctedInitialAge = Math.max(apparentAge, ageValue + (receivedMillis - sentMillis));
+            return correctedInitialAge + Math.max(0, now - receivedMillis);
+        }
+
+        boolean isFresh(long now, CacheControl requestCacheControl) {
+            CacheControl cacheControl = CacheControl.parse(headers);
+            if (cacheControl.noCache) {
+                return false;
+            }
+            long lifetime = freshnessLifetimeMillis(cacheControl);
+            if (requestCacheControl.maxAgeSeconds >= 0) {
+                lifetime = Math.min(lifetime, requestCacheControl.maxAgeSeconds * 1000);
+            }
+            return ageMillis(now) < lifetime;
+        }
+
+        /**
+         * Combine the stored headers with those of a <code>304 Not Modified</code> response
+         * (RFC 7234, section 4.3.4).
+         */
+        Entry update(Headers notModifiedHeaders, long sentMillis, long receivedMillis) {
+            Headers.Builder builder = headers.newBuilder();
+            List<String> replaced = new ArrayList<>();
+            for (int i = 0; i < notModifiedHeaders.size(); i++) {
+                String name = notModifiedHeaders.name(i);
+                if (name.equalsIgnoreCase("Content-Length")) continue;
+                boolean seen = false;
+                for (String r : replaced) {
+                    if (r.equalsIgnoreCase(name)) {
+                        seen = true;
+                        break;
+                    }
+                }
+                if (!seen) {
+                    builder.removeAll(name);
+                    replaced.add(name);
+                }
+                builder.add(name, notModifiedHeaders.value(i));
+            }
+            return new Entry(url, status, version, builder.build(), varyHeaders, sentMillis, receivedMillis, body);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(ENTRY_MAGIC);
+            out.writeUTF(url);
+            out.writeInt(status);
+            out.writeUTF(version == null ? "" : version);
+            writeHeaders(out, headers);
+            writeHeaders(out, varyHeaders);
+            out.writeLong(sentMillis);
+            out.writeLong(receivedMillis);
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            if (in.readInt() != ENTRY_MAGIC) {
+                throw new IOException("Invalid cache entry");
+            }
+            String url = in.readUTF();
+            int status = in.readInt();
+            String version = in.readUTF();
+            Headers headers = readHeaders(in);
+            Headers varyHeaders = readHeaders(in);
+            long sentMillis = in.readLong();
+            long receivedMillis = in.readLong();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(url, status, version, headers, varyHeaders, sentMillis, receivedMillis, body);
+        }
+
+        private static void writeHeaders(DataOutputStream out, Headers headers) throws IOException {
+            out.writeInt(headers.size());
+            for (int i = 0; i < headers.size(); i++) {
+                out.writeUTF(headers.name(i));
+                out.writeUTF(headers.value(i));
+            }
+        }
+
+        private static Headers readHeaders(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            Headers.Builder builder = new Headers.Builder();
+            for (int i = 0; i < size; i++) {
+                builder.add(in.readUTF(), in.readUTF());
+            }
+            return builder.build();
+        }
+    }
+}
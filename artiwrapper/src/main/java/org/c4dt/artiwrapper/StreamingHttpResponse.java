@@ -0,0 +1,421 @@
+package org.c4dt.artiwrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Request response whose body is read incrementally.
+ * <p>
+ * This is meant for large GET responses from servers which support HTTP range requests. The
+ * body is then fetched in chunks of at most <code>chunkSize</code> bytes, and the status and
+ * headers are available as soon as the first chunk has arrived. While a chunk is read, the next
+ * {@value #PREFETCHED_CHUNKS} chunks are already requested through the dispatcher of the client,
+ * so that at most {@value #PREFETCHED_CHUNKS} + 1 chunks are held in memory and the round trips
+ * overlap.
+ * <p>
+ * A prefetched chunk which has not started when it is needed is fetched on the reading thread
+ * instead. The body can therefore be read from a thread of the dispatcher, e.g. in the callback of
+ * an asynchronous request, without waiting for a slot which that thread holds: chunks are then
+ * only fetched ahead when the dispatcher has other threads and per-host slots free.
+ * <p>
+ * If the server ignores the range, the whole body is returned by the first request: memory is
+ * then not bounded, and the body is served from memory as with {@link Client#syncTorRequest}.
+ * Other methods than GET, and requests with their own <code>Range</code> header, are not chunked
+ * either.
+ */
+public class StreamingHttpResponse implements Closeable {
+    /**
+     * Number of chunks requested ahead of the one being read.
+     */
+    static final int PREFETCHED_CHUNKS = 2;
+
+    private final int status;
+    private final String version;
+    private final Headers headers;
+    private final InputStream body;
+
+    private StreamingHttpResponse(int status, String version, Headers headers, InputStream body) {
+        this.status = status;
+        this.version = version;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * Get the response status code (e.g. 200 == OK).
+     *
+     * @return the status code
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the response HTTP version (e.g. "HTTP/1.1").
+     *
+     * @return the HTTP version of the response
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the response headers.
+     * When the body is fetched in chunks, the headers are those of the first chunk, with
+     * <code>Content-Range</code> removed and <code>Content-Length</code> set to the full length
+     * (if known).
+     *
+     * @return the HTTP headers of the response
+     */
+    public Map<String, List<String>> getHeaders() {
+        return headers.toMultimap();
+    }
+
+    /**
+     * Get the response headers as a flat list of fields, with case-insensitive lookup.
+     *
+     * @return the HTTP headers of the response
+     */
+    public Headers headers() {
+        return headers;
+    }
+
+    /**
+     * Get the response body as a stream.
+     * Reading from the stream may perform further requests on the client, which must therefore
+     * not be closed before the body has been consumed.
+     *
+     * @return the body of the response
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * Release the body stream. Chunks which have not been read yet are not fetched.
+     */
+    @Override
+    public void close() throws IOException {
+        body.close();
+    }
+
+    static StreamingHttpResponse open(Client client, Client.TorRequestMethod method, String url,
+                                      Map<String, List<String>> headers, byte[] body, int chunkSize)
+            throws TorLibException {
+        if (chunkSize <= 0) {
+            throw new TorLibException("Invalid chunk size: " + chunkSize);
+        }
+
+        if (headers == null) {
+            headers = Collections.emptyMap();
+        }
+
+        // Range requests are only defined for GET, and an explicit range is left to the caller
+        if (method != Client.TorRequestMethod.GET || hasHeader(headers, "Range")) {
+            HttpResponse response = client.syncTorRequest(method, url, headers, body);
+            return new StreamingHttpResponse(response.getStatus(), response.getVersion(), response.headers(),
+                    new ByteArrayInputStream(response.getBody()));
+        }
+
+        HttpResponse first = client.syncTorRequest(method, url, withRange(headers, null, 0, chunkSize), body);
+        if (first.getStatus() == 416 && parseTotalLength(first.headers().get("Content-Range")) == 0) {
+            // No byte range is satisfiable in an empty resource
+            Headers emptyHeaders = first.headers().newBuilder()
+                    .removeAll("Content-Range")
+                    .set("Content-Length", "0")
+                    .build();
+            return new StreamingHttpResponse(200, first.getVersion(), emptyHeaders,
+                    new ByteArrayInputStream(new byte[0]));
+        }
+        if (first.getStatus() != 206) {
+            // The server ignored the range: the whole body is already there
+            return new StreamingHttpResponse(first.getStatus(), first.getVersion(), first.headers(),
+                    new ByteArrayInputStream(first.getBody()));
+        }
+
+        Headers firstHeaders = first.headers();
+        long totalLength = parseTotalLength(firstHeaders.get("Content-Range"));
+
+        Headers.Builder responseHeaders = firstHeaders.newBuilder()
+                .removeAll("Content-Range")
+                .removeAll("Content-Length");
+        if (totalLength >= 0) {
+            responseHeaders.add("content-length", String.valueOf(totalLength));
+        }
+
+        // Make sure that subsequent chunks come from the same representation (If-Range needs a strong ETag)
+        String validator = firstHeaders.get("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = firstHeaders.get("Last-Modified");
+        }
+
+        InputStream stream = new RangeInputStream(client, url, headers, body, chunkSize, validator,
+                totalLength, first.getBody());
+        return new StreamingHttpResponse(200, first.getVersion(), responseHeaders.build(), stream);
+    }
+
+    /**
+     * Input stream fetching the body one range at a time, with the next ranges requested ahead.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final Client client;
+        private final String url;
+        private final Map<String, List<String>> headers;
+        private final byte[] requestBody;
+        private final int chunkSize;
+        private final String validator;
+        private final long totalLength;
+        private final Deque<Prefetch> prefetched = new ArrayDeque<>();
+
+        private byte[] chunk;
+        private int chunkPos;
+        private long nextOffset;
+        private long prefetchOffset;
+        private boolean lastChunk;
+        private boolean closed;
+
+        RangeInputStream(Client client, String url, Map<String, List<String>> headers, byte[] requestBody,
+                         int chunkSize, String validator, long totalLength, byte[] firstChunk) {
+            this.client = client;
+            this.url = url;
+            this.headers = headers;
+            this.requestBody = requestBody;
+            this.chunkSize = chunkSize;
+            this.validator = validator;
+            this.totalLength = totalLength;
+            this.chunk = firstChunk;
+            this.nextOffset = firstChunk.length;
+            this.prefetchOffset = firstChunk.length;
+            this.lastChunk = isLast(firstChunk.length);
+            prefetch();
+        }
+
+        private boolean isLast(int chunkLength) {
+            if (totalLength >= 0) {
+                return nextOffset >= totalLength;
+            }
+            return chunkLength < chunkSize;
+        }
+
+        /**
+         * Request the next chunks, up to {@link #PREFETCHED_CHUNKS} ahead.
+         */
+        private void prefetch() {
+            while (!lastChunk && prefetched.size() < PREFETCHED_CHUNKS
+                    && (totalLength < 0 || prefetchOffset < totalLength)) {
+                Prefetch next = new Prefetch(prefetchOffset);
+                prefetched.add(next);
+                client.getDispatcher().enqueue(next);
+                prefetchOffset += chunkSize;
+            }
+        }
+
+        private HttpResponse nextResponse() throws IOException {
+            Prefetch next = prefetched.peek();
+            if (next == null || next.offset != nextOffset) {
+                // The server returned a shorter range than requested: the prefetched ranges are off
+                cancelPrefetched();
+                prefetchOffset = nextOffset;
+                prefetch();
+            }
+            next = prefetched.poll();
+            if (next.claim()) {
+                // Not started yet, possibly waiting for a slot held by this thread
+                client.getDispatcher().cancel(next);
+                try {
+                    return client.syncTorRequest(Client.TorRequestMethod.GET, url, next.headers, requestBody);
+                } catch (TorLibException e) {
+                    throw new IOException("Failed to fetch range at offset " + nextOffset, e);
+                }
+            }
+            try {
+                return next.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching range at offset " + nextOffset);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to fetch range at offset " + nextOffset, e.getCause());
+            }
+        }
+
+        private void cancelPrefetched() {
+            for (Prefetch prefetch : prefetched) {
+                if (prefetch.claim()) {
+                    client.getDispatcher().cancel(prefetch);
+                }
+                prefetch.future.cancel(false);
+            }
+            prefetched.clear();
+        }
+
+        /**
+         * Request for a chunk ahead of the one being read, run by the dispatcher unless the
+         * reader claims it first.
+         */
+        private final class Prefetch extends Dispatcher.AsyncCall {
+            final long offset;
+            final Map<String, List<String>> headers;
+            final TorRequestFuture<HttpResponse> future = new TorRequestFuture<>();
+            private final AtomicBoolean claimed = new AtomicBoolean();
+
+            Prefetch(long offset) {
+                super(url);
+                this.offset = offset;
+                this.headers = withRange(RangeInputStream.this.headers, validator, offset, chunkSize);
+            }
+
+            /**
+             * Take over the request, if it has not been started yet.
+             *
+             * @return true if the caller is now in charge of the request
+             */
+            boolean claim() {
+                return claimed.compareAndSet(false, true);
+            }
+
+            @Override
+            public void run() {
+                if (!claim()) return;
+                try {
+                    future.complete(client.syncTorRequest(Client.TorRequestMethod.GET, url, headers, requestBody,
+                            queueWaitNanos()));
+                } catch (Exception e) {
+                    future.fail(e);
+                }
+            }
+
+            @Override
+            void reject(Exception e) {
+                if (claim()) {
+                    future.fail(e);
+                }
+            }
+        }
+
+        /**
+         * Make sure that the current chunk has unread data.
+         *
+         * @return false at the end of the body
+         */
+        private boolean fill() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (chunkPos >= chunk.length) {
+                if (lastChunk) {
+                    return false;
+                }
+                HttpResponse response = nextResponse();
+                if (response.getStatus() == 416 && totalLength < 0) {
+                    // Length was a multiple of the chunk size
+                    lastChunk = true;
+                    cancelPrefetched();
+                    chunk = new byte[0];
+                    chunkPos = 0;
+                    return false;
+                }
+                if (response.getStatus() != 206) {
+                    cancelPrefetched();
+                    throw new IOException("Unexpected status " + response.getStatus() +
+                            " for range at offset " + nextOffset + " (resource changed?)");
+                }
+                chunk = response.getBody();
+                chunkPos = 0;
+                nextOffset += chunk.length;
+                lastChunk = chunk.length == 0 || isLast(chunk.length);
+                if (lastChunk) {
+                    cancelPrefetched();
+                } else {
+                    prefetch();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[chunkPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - chunkPos);
+            System.arraycopy(chunk, chunkPos, b, off, n);
+            chunkPos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return closed ? 0 : chunk.length - chunkPos;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            cancelPrefetched();
+            chunk = new byte[0];
+            chunkPos = 0;
+        }
+    }
+
+    private static Map<String, List<String>> withRange(Map<String, List<String>> headers, String validator,
+                                                       long offset, int chunkSize) {
+        Map<String, List<String>> result = new HashMap<>(headers);
+        result.put("Range", Collections.singletonList("bytes=" + offset + "-" + (offset + chunkSize - 1)));
+        if (validator != null) {
+            result.put("If-Range", Collections.singletonList(validator));
+        }
+        return result;
+    }
+
+    /**
+     * Extract the complete length from a <code>Content-Range</code> value
+     * (e.g. "bytes 0-1023/5000").
+     *
+     * @return the complete length, or -1 if it is unknown
+     */
+    private static long parseTotalLength(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean hasHeader(Map<String, List<String>> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (name.equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
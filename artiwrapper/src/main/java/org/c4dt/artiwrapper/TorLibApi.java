@@ -4,25 +4,14 @@ import android.system.Os;
 import android.system.ErrnoException;
 import android.util.Log;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.ArchiveInputStream;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.util.Calendar;
-import java.util.Locale;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
-import javax.net.ssl.HttpsURLConnection;
-
 /**
  * API for Arti utility functions.
  */
@@ -30,6 +19,7 @@ public class TorLibApi {
     static final String TAG = "ArtiLibApi";
 
     private final Executor executor;
+    private volatile String deltaUrl;
 
     public static final String CONSENSUS_FILENAME = "consensus.txt";
     public static final String MICRODESCRIPTORS_FILENAME = "microdescriptors.txt";
@@ -131,61 +121,79 @@ public class TorLibApi {
         this.executor = executor;
     }
 
-    private static class CacheState {
-        public final boolean udescIsCurrent;
-        public final boolean churnFileIsCurrent;
-
-        public CacheState(boolean udescIsCurrent, boolean churnFileIsCurrent) {
-            this.udescIsCurrent = udescIsCurrent;
-            this.churnFileIsCurrent = churnFileIsCurrent;
-        }
+    /**
+     * Set the base URL of the deltas between releases of the directory cache.
+     * When the microdescriptors are not current, {@link #updateCache(String, TorLibCallback)}
+     * first requests <code>&lt;deltaUrl&gt;/&lt;microdescriptors SHA-256&gt;-&lt;consensus SHA-256&gt;.delta</code>,
+     * and falls back to the full archive if no delta is available or if it cannot be applied.
+     *
+     * @param deltaUrl the base URL of the deltas, or null (default) to always download the full archive
+     */
+    public void setDeltaUrl(String deltaUrl) {
+        this.deltaUrl = deltaUrl;
     }
 
-    private CacheState getCacheState(String destDirString) {
-        // Use UK locale to have Monday as the first day of the week
-        Calendar now = Calendar.getInstance(Locale.UK);
-
-        int currentYear = now.get(Calendar.YEAR);
-        int currentDayOfYear = now.get(Calendar.DAY_OF_YEAR);
-        int currentWeekOfYear = now.get(Calendar.WEEK_OF_YEAR);
+    /**
+     * Get the directory holding the current cache files of a cache directory updated by
+     * {@link #updateCache(String, TorLibCallback)}. Updates extract new files into a new
+     * generation directory, so the files must not be accessed directly in the cache directory.
+     *
+     * @param cacheDir the cache directory path
+     * @return the path of the current files
+     */
+    public static String currentCacheDir(String cacheDir) {
+        return CacheGenerations.current(new File(cacheDir)).getPath();
+    }
 
-        boolean udescIsCurrent = false;
-        boolean churnFileIsCurrent = false;
+    /**
+     * Check the integrity of the current cache files, e.g. before creating a {@link Client}.
+     * The files written by {@link #updateCache(String, TorLibCallback)} are compared to its
+     * manifest; for other directories, only the presence of the files is checked.
+     *
+     * @param cacheDir the cache directory path
+     * @param full     whether to compare the checksums of the files, which reads them entirely,
+     *                 in addition to their sizes
+     * @return true if all the files are present and intact
+     */
+    public static boolean verifyCache(String cacheDir, boolean full) {
+        File cacheFiles = CacheGenerations.current(new File(cacheDir));
+        CacheManifest manifest = CacheManifest.read(cacheFiles);
+        if (manifest == null) {
+            try {
+                CacheGenerations.verify(cacheFiles);
+                return true;
+            } catch (IOException e) {
+                Log.d(TAG, e.getMessage());
+                return false;
+            }
+        }
 
-        boolean missingFiles = false;
         for (String fileName : CACHE_FILENAMES) {
             // Churn file is optional
-            if (fileName.equals(CHURN_FILENAME)) continue;
-
-            if (!new File(destDirString, fileName).exists()) {
-                Log.d(TAG, String.format("Cache is missing file \"%s\"", fileName));
-                missingFiles = true;
+            if (!fileName.equals(CHURN_FILENAME) && manifest.get(fileName) == null) {
+                Log.d(TAG, String.format("Cache manifest is missing file \"%s\"", fileName));
+                return false;
             }
         }
-
-        if (!missingFiles) {
-            File udescFile = new File(destDirString, MICRODESCRIPTORS_FILENAME);
-            Calendar udescTime = Calendar.getInstance(Locale.UK);
-            udescTime.setTimeInMillis(udescFile.lastModified());
-            if ((currentYear == udescTime.get(Calendar.YEAR)) &&
-                    (currentWeekOfYear == udescTime.get(Calendar.WEEK_OF_YEAR))) {
-                udescIsCurrent = true;
-
-                File churnFile = new File(destDirString, CHURN_FILENAME);
-                if (churnFile.exists()) {
-                    Calendar churnTime = Calendar.getInstance(Locale.UK);
-                    churnTime.setTimeInMillis(churnFile.lastModified());
-                    if ((currentYear == churnTime.get(Calendar.YEAR)) &&
-                            (currentDayOfYear == churnTime.get(Calendar.DAY_OF_YEAR))) {
-                        churnFileIsCurrent = true;
-                    }
-                } else {
-                    Log.d(TAG, "Churn file does not exist");
+        if (full) {
+            try {
+                List<String> corrupted = manifest.verify(cacheFiles);
+                if (!corrupted.isEmpty()) {
+                    Log.d(TAG, "Corrupted cache files: " + corrupted);
                 }
+                return corrupted.isEmpty();
+            } catch (IOException e) {
+                Log.d(TAG, "Cannot verify cache: " + e);
+                return false;
             }
         }
-
-        return new CacheState(udescIsCurrent, churnFileIsCurrent);
+        for (CacheManifest.FileEntry entry : manifest.entries()) {
+            if (!CacheManifest.isIntact(cacheFiles, entry)) {
+                Log.d(TAG, String.format("Cache file \"%s\" is missing or truncated", entry.name));
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -195,108 +203,63 @@ public class TorLibApi {
         CACHE_IS_UP_TO_DATE,
         DOWNLOADED_CHURN_FILE,
         DOWNLOADED_FULL_CACHE,
+        APPLIED_DELTA,
     }
 
     /**
      * Update the cache files using the C4DT releases.
      * Examine the current files, and determine whether the full archive, only the churn file,
      * or nothing needs to be downloaded.
+     * <p>
+     * Downloads are conditional on the validators of the previous download, so that an unchanged
+     * release is not downloaded again, and an interrupted download is resumed by the next update.
+     * The downloaded files are listed in a manifest, which is all that the next update needs to
+     * read to decide whether the files are current. If a delta URL is set (see
+     * {@link #setDeltaUrl(String)}), the microdescriptors and consensus are updated with a delta
+     * when possible.
+     * <p>
+     * Only one update of a directory runs at a time: callers asking for an update while one is
+     * running receive the result of that update, and processes sharing the directory wait for
+     * each other, so that an update completed by another process is not done again.
+     * <p>
+     * To avoid waiting for a download when the application starts, the cache can instead be
+     * refreshed in the background by a {@link CacheRefresher}.
      *
      * @param destDirString the path where the contents of the archive are to be extracted
      * @param callback      the callback which will be called when the update is done
      */
     public void updateCache(String destDirString, final TorLibCallback<CacheUpdateStatus> callback) {
-        Log.d(TAG, "Updating cache");
-
-        CacheState cacheState = getCacheState(destDirString);
-
-        if (cacheState.udescIsCurrent) {
-            if (cacheState.churnFileIsCurrent) {
-                Log.d(TAG, "Churn file is current -- cache is already up to date");
-                callback.onComplete(new TorRequestResult.Success<>(CacheUpdateStatus.CACHE_IS_UP_TO_DATE));
-            } else {
-                Log.d(TAG, "Microdescriptors file is current -- download churn file only");
-                downloadChurnFile(CHURN_CACHE_C4DT, destDirString, callback);
-            }
-        } else {
-            Log.d(TAG, "Microdescriptors file is not current -- download full cache");
-            downloadFullCache(DIRECTORY_CACHE_C4DT, destDirString, callback);
-        }
-    }
-
-    private void copyFile(InputStream is, File destFile) throws IOException {
-        byte[] buf = new byte[1024];
-
-        int nbRead;
-        try (FileOutputStream out = new FileOutputStream(destFile)) {
-            while ((nbRead = is.read(buf)) != -1) {
-                out.write(buf, 0, nbRead);
-            }
-        }
+        updateCache(destDirString, Collections.singletonList(CacheMirror.C4DT), callback);
     }
 
     /**
-     * Download the churn cache file from a URL.
+     * Update the cache files from mirrors of the C4DT releases, as
+     * {@link #updateCache(String, TorLibCallback)}.
+     * <p>
+     * Each download starts on a mirror drawn according to the weights of the mirrors and to
+     * the latencies observed on previous downloads. If that mirror does not answer within a delay
+     * adapted to its past latencies, the download is hedged on a second mirror, and the first
+     * valid download is kept.
      *
-     * @param urlString     the URL of the file
      * @param destDirString the path where the contents of the archive are to be extracted
-     * @param callback      the callback which will be called when the download is complete
+     * @param mirrors       the mirrors of the releases
+     * @param callback      the callback which will be called when the update is done
      */
-    private void downloadChurnFile(String urlString, String destDirString,
-                                   final TorLibCallback<CacheUpdateStatus> callback) {
-        executor.execute(() -> {
-            try {
-                URL url = new URL(urlString);
-                HttpsURLConnection urlConnection = (HttpsURLConnection) url.openConnection();
-                File destDir = new File(destDirString);
-
-                try (InputStream uin = urlConnection.getInputStream()) {
-                    copyFile(uin, new File(destDir, CHURN_FILENAME));
-                }
+    public void updateCache(String destDirString, List<CacheMirror> mirrors,
+                            final TorLibCallback<CacheUpdateStatus> callback) {
+        Log.d(TAG, "Updating cache");
 
-                callback.onComplete(new TorRequestResult.Success<>(CacheUpdateStatus.DOWNLOADED_CHURN_FILE));
-            } catch (Exception e) {
-                callback.onComplete(new TorRequestResult.Error<>(e));
-            }
-        });
-    }
+        File destDir = new File(destDirString);
+        CacheUpdater updater = new CacheUpdater(mirrors, deltaUrl, MirrorStats.SHARED);
+        CacheUpdater.CacheState cacheState = CacheUpdater.getCacheState(destDir);
 
-    /**
-     * Download the full cache files from a URL.
-     * The resource at the URL is expected to be a gzipped tar archive containing
-     * all the files within the root directory.
-     *
-     * @param urlString     the URL of the archive
-     * @param destDirString the path where the contents of the archive are to be extracted
-     * @param callback      the callback which will be called when the download is complete
-     */
-    private void downloadFullCache(String urlString, String destDirString,
-                                   final TorLibCallback<CacheUpdateStatus> callback) {
-        executor.execute(() -> {
-            try {
-                URL url = new URL(urlString);
-                HttpsURLConnection urlConnection = (HttpsURLConnection) url.openConnection();
-                File destDir = new File(destDirString);
-
-                try (InputStream uin = urlConnection.getInputStream();
-                     InputStream buin = new BufferedInputStream(uin);
-                     InputStream gzin = new GzipCompressorInputStream(buin);
-                     ArchiveInputStream ain = new TarArchiveInputStream(gzin)) {
-                    ArchiveEntry entry;
-                    while ((entry = ain.getNextEntry()) != null) {
-                        // Skip directories
-                        if (entry.isDirectory()) continue;
-
-                        copyFile(ain, new File(destDir, entry.getName()));
-                        Log.d(TAG, "Extracted file: " + entry.getName());
-                    }
-                }
+        if (cacheState.isUpToDate()) {
+            Log.d(TAG, "Churn file is current -- cache is already up to date");
+            callback.onComplete(new TorRequestResult.Success<>(CacheUpdateStatus.CACHE_IS_UP_TO_DATE));
+            return;
+        }
 
-                callback.onComplete(new TorRequestResult.Success<>(CacheUpdateStatus.DOWNLOADED_FULL_CACHE));
-            } catch (Exception e) {
-                callback.onComplete(new TorRequestResult.Error<>(e));
-            }
-        });
+        updater.updateAsync(destDir, executor, callback);
     }
 
     // Native methods
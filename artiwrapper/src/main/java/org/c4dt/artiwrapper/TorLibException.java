@@ -7,4 +7,8 @@ public class TorLibException extends Exception {
     public TorLibException(String message) {
         super(message);
     }
+
+    public TorLibException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
@@ -0,0 +1,183 @@
+package org.c4dt.artiwrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous request, which can be waited for, cancelled, or given a deadline.
+ * <p>
+ * Cancelling the future, or reaching its deadline, removes the request from the dispatcher queue
+ * if it has not started yet. A request which is already running cannot be interrupted in the
+ * library, but its result is discarded and the future completes immediately.
+ */
+public class TorRequestFuture<T> implements Future<T> {
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "ArtiDeadlines");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final List<TorLibApi.TorLibCallback<T>> callbacks = new ArrayList<>();
+    private Runnable onAbort;
+    private ScheduledFuture<?> deadline;
+
+    private boolean done;
+    private boolean cancelled;
+    private T result;
+    private Exception error;
+
+    TorRequestFuture() {
+    }
+
+    /**
+     * Set the action run when the future is cancelled or reaches its deadline.
+     */
+    synchronized void setOnAbort(Runnable onAbort) {
+        this.onAbort = onAbort;
+    }
+
+    /**
+     * Fail the future with a {@link TimeoutException} if it is not complete after the given time.
+     */
+    void setDeadline(long timeout, TimeUnit unit) {
+        ScheduledFuture<?> scheduled = TIMER.schedule(() -> {
+            if (finish(null, new TimeoutException("Request deadline exceeded"), false)) {
+                abort();
+            }
+        }, timeout, unit);
+        synchronized (this) {
+            if (done) {
+                scheduled.cancel(false);
+            } else {
+                deadline = scheduled;
+            }
+        }
+    }
+
+    boolean complete(T value) {
+        return finish(value, null, false);
+    }
+
+    boolean fail(Exception e) {
+        return finish(null, e, false);
+    }
+
+    private boolean finish(T value, Exception e, boolean cancel) {
+        List<TorLibApi.TorLibCallback<T>> toCall;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            cancelled = cancel;
+            result = value;
+            error = e;
+            if (deadline != null) {
+                deadline.cancel(false);
+                deadline = null;
+            }
+            toCall = new ArrayList<>(callbacks);
+            callbacks.clear();
+            notifyAll();
+        }
+        for (TorLibApi.TorLibCallback<T> callback : toCall) {
+            callback.onComplete(toResult());
+        }
+        return true;
+    }
+
+    private void abort() {
+        Runnable action;
+        synchronized (this) {
+            action = onAbort;
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    private synchronized TorLibApi.TorRequestResult<T> toResult() {
+        if (error != null) {
+            return new TorLibApi.TorRequestResult.Error<>(error);
+        }
+        return new TorLibApi.TorRequestResult.Success<>(result);
+    }
+
+    /**
+     * Register a callback called once the future is complete. If the future is already complete,
+     * the callback is called immediately on the calling thread.
+     *
+     * @param callback the callback which will receive the request result
+     */
+    public void whenComplete(TorLibApi.TorLibCallback<T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.onComplete(toResult());
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (finish(null, new CancellationException("Request cancelled"), true)) {
+            abort();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return report();
+    }
+
+    private T report() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
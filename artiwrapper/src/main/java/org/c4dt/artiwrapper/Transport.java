@@ -0,0 +1,31 @@
+package org.c4dt.artiwrapper;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport sending the requests of a {@link Client}, once they have gone through the
+ * dispatcher, the coalescer and the response cache.
+ * <p>
+ * The Arti library is the transport of the public constructors of {@link Client};
+ * {@link LoopbackTransport} sends plain HTTP to a local server instead, so that everything above
+ * the native boundary can be tested and benchmarked without Tor connectivity.
+ */
+interface Transport {
+    /**
+     * Send a request and wait for its response. Called concurrently by the client.
+     *
+     * @throws TorLibException the request failed, or the transport has been closed
+     */
+    HttpResponse send(Client.TorRequestMethod method, String url, Map<String, List<String>> headers, byte[] body)
+            throws TorLibException;
+
+    boolean isClosed();
+
+    /**
+     * Close the transport. Requests in flight complete normally.
+     *
+     * @return false if the transport was already closed
+     */
+    boolean close();
+}
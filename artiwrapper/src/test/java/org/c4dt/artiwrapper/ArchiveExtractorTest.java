@@ -0,0 +1,153 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class ArchiveExtractorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Build a gzipped tar archive from file contents by name.
+     */
+    static byte[] tgz(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(bytes))) {
+            TarArchiveEntry dir = new TarArchiveEntry("./");
+            tar.putArchiveEntry(dir);
+            tar.closeArchiveEntry();
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                TarArchiveEntry entry = new TarArchiveEntry(file.getKey());
+                entry.setSize(file.getValue().length);
+                tar.putArchiveEntry(entry);
+                tar.write(file.getValue());
+                tar.closeArchiveEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Generate compressible pseudo-random text, similar to directory documents.
+     */
+    static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (i % 64 == 63) ? (byte) '\n' : (byte) ('a' + random.nextInt(16));
+        }
+        return data;
+    }
+
+    static String sha256(byte[] data) throws NoSuchAlgorithmException {
+        return ArchiveExtractor.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return RequestBody.readFully(in, (int) file.length());
+        }
+    }
+
+    private Map<String, byte[]> sampleFiles() {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("consensus.txt", text(100 * 1024 + 17, 1));
+        files.put("empty.txt", new byte[0]);
+        files.put("./microdescriptors.txt", text(700 * 1024, 2));
+        files.put("sub/certificate.txt", text(3, 3));
+        return files;
+    }
+
+    @Test
+    public void extractsFilesWithChecksums() throws Exception {
+        Map<String, byte[]> files = sampleFiles();
+        File dest = folder.newFolder();
+
+        // Small buffers to exercise the hand-over between the stages
+        Map<String, String> digests = new ArchiveExtractor(4096, 2, true)
+                .extract(new ByteArrayInputStream(tgz(files)), dest, null);
+
+        assertEquals(files.size(), digests.size());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            String name = file.getKey().replace("./", "");
+            assertArrayEquals(name, file.getValue(), readFile(new File(dest, name)));
+            assertEquals(name, sha256(file.getValue()), digests.get(name));
+        }
+    }
+
+    @Test
+    public void checksumsAreOptional() throws IOException {
+        File dest = folder.newFolder();
+        Map<String, String> digests = new ArchiveExtractor()
+                .extract(new ByteArrayInputStream(tgz(sampleFiles())), dest, null);
+
+        assertTrue(digests.isEmpty());
+        assertTrue(new File(dest, "microdescriptors.txt").exists());
+    }
+
+    @Test
+    public void checksumMismatchFails() throws Exception {
+        Map<String, byte[]> files = sampleFiles();
+        Map<String, String> expected = new HashMap<>();
+        expected.put("consensus.txt", sha256(files.get("consensus.txt")));
+        expected.put("microdescriptors.txt", sha256(new byte[]{1}));
+
+        try {
+            new ArchiveExtractor().extract(new ByteArrayInputStream(tgz(files)), folder.newFolder(), expected);
+            fail("Checksum mismatch should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("microdescriptors.txt"));
+        }
+    }
+
+    @Test
+    public void entryOutsideOfDestinationFails() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        files.put("../escaped.txt", text(10, 1));
+        File dest = folder.newFolder();
+
+        try {
+            new ArchiveExtractor().extract(new ByteArrayInputStream(tgz(files)), dest, null);
+            fail("Entry outside of destination should fail");
+        } catch (IOException e) {
+            assertFalse(new File(dest.getParentFile(), "escaped.txt").exists());
+        }
+    }
+
+    @Test
+    public void truncatedArchiveFails() throws IOException {
+        byte[] archive = tgz(sampleFiles());
+        byte[] truncated = Arrays.copyOf(archive, archive.length / 2);
+
+        try {
+            new ArchiveExtractor(4096, 2, false).extract(new ByteArrayInputStream(truncated), folder.newFolder(), null);
+            fail("Truncated archive should fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class CacheDeltaTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Build microdescriptors from the given identifiers.
+     */
+    static byte[] microdescriptors(int... ids) throws IOException {
+        StringBuilder sb = new StringBuilder("@last-listed 2023-03-06 10:00:00\n");
+        for (int id : ids) {
+            sb.append(microdescriptor(id));
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static String microdescriptor(int id) {
+        return "onion-key\n-----BEGIN RSA PUBLIC KEY-----\nkey" + id + "\n-----END RSA PUBLIC KEY-----\n" +
+                "ntor-onion-key ntor" + id + "=\nid ed25519 ed" + id + "\n";
+    }
+
+    /**
+     * Build a consensus listing the given relays.
+     */
+    static byte[] consensus(String validAfter, int... ids) throws IOException {
+        StringBuilder sb = new StringBuilder("network-status-version 3 microdesc\nvalid-after " + validAfter + "\n");
+        for (int id : ids) {
+            sb.append("r relay").append(id).append(" 9001\nm md").append(id).append("\ns Fast Running\n");
+        }
+        sb.append("directory-footer\n");
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Compute the delta between two releases, as a delta server would.
+     */
+    static CacheDelta diff(byte[] fromMicrodescriptors, byte[] fromConsensus,
+                           byte[] toMicrodescriptors, byte[] toConsensus) throws Exception {
+        CacheDelta delta = new CacheDelta(ArchiveExtractorTest.sha256(fromMicrodescriptors),
+                ArchiveExtractorTest.sha256(fromConsensus), ArchiveExtractorTest.sha256(toMicrodescriptors),
+                ArchiveExtractorTest.sha256(toConsensus));
+
+        List<byte[]> fromBlocks = microdescriptorBlocks(fromMicrodescriptors);
+        List<byte[]> toBlocks = microdescriptorBlocks(toMicrodescriptors);
+        Set<String> fromDigests = new HashSet<>();
+        for (byte[] block : fromBlocks) {
+            fromDigests.add(ArchiveExtractorTest.sha256(block));
+        }
+        Set<String> toDigests = new HashSet<>();
+        for (byte[] block : toBlocks) {
+            toDigests.add(ArchiveExtractorTest.sha256(block));
+        }
+        for (String digest : fromDigests) {
+            if (!toDigests.contains(digest)) {
+                delta.removedMicrodescriptors.add(digest);
+            }
+        }
+        for (byte[] block : toBlocks) {
+            if (!fromDigests.contains(ArchiveExtractorTest.sha256(block))) {
+                delta.addedMicrodescriptors.add(block);
+            }
+        }
+
+        // Common prefix and suffix, and a single replaced range of lines in between
+        List<byte[]> fromLines = lines(fromConsensus);
+        List<byte[]> toLines = lines(toConsensus);
+        int prefix = 0;
+        while (prefix < fromLines.size() && prefix < toLines.size() &&
+                Arrays.equals(fromLines.get(prefix), toLines.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < fromLines.size() - prefix && suffix < toLines.size() - prefix &&
+                Arrays.equals(fromLines.get(fromLines.size() - 1 - suffix),
+                        toLines.get(toLines.size() - 1 - suffix))) {
+            suffix++;
+        }
+        List<byte[]> inserted = new ArrayList<>(toLines.subList(prefix, toLines.size() - suffix));
+        delta.consensusEdits.add(new CacheDelta.LineEdit(CacheDelta.COPY, prefix, Collections.<byte[]>emptyList()));
+        delta.consensusEdits.add(new CacheDelta.LineEdit(CacheDelta.DELETE, fromLines.size() - suffix - prefix,
+                Collections.<byte[]>emptyList()));
+        delta.consensusEdits.add(new CacheDelta.LineEdit(CacheDelta.INSERT, inserted.size(), inserted));
+        return delta;
+    }
+
+    private static List<byte[]> microdescriptorBlocks(byte[] data) throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        for (byte[] line : lines(data)) {
+            if (new String(line, "UTF-8").startsWith(CacheDelta.MICRODESCRIPTOR_START) && block.size() > 0) {
+                blocks.add(block.toByteArray());
+                block.reset();
+            }
+            block.write(line);
+        }
+        if (block.size() > 0) {
+            blocks.add(block.toByteArray());
+        }
+        return blocks;
+    }
+
+    private static List<byte[]> lines(byte[] data) {
+        List<byte[]> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                lines.add(Arrays.copyOfRange(data, start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < data.length) {
+            lines.add(Arrays.copyOfRange(data, start, data.length));
+        }
+        return lines;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return RequestBody.readFully(in, (int) file.length());
+        }
+    }
+
+    private File release(String name, byte[] microdescriptors, byte[] consensus) throws IOException {
+        File dir = folder.newFolder(name);
+        writeFile(new File(dir, TorLibApi.MICRODESCRIPTORS_FILENAME), microdescriptors);
+        writeFile(new File(dir, TorLibApi.CONSENSUS_FILENAME), consensus);
+        return dir;
+    }
+
+    @Test
+    public void apply() throws Exception {
+        byte[] fromUdesc = microdescriptors(1, 2, 3, 4);
+        byte[] fromCons = consensus("2023-03-06 10:00:00", 1, 2, 3, 4);
+        byte[] toUdesc = microdescriptors(1, 3, 5, 6);
+        byte[] toCons = consensus("2023-03-13 10:00:00", 1, 3, 5, 6);
+
+        CacheDelta delta = diff(fromUdesc, fromCons, toUdesc, toCons);
+        delta.replacedFiles.put(TorLibApi.CHURN_FILENAME, "relay2\n".getBytes("UTF-8"));
+        assertFalse(delta.isEmpty());
+        assertEquals(2, delta.removedMicrodescriptors.size());
+        assertEquals(2, delta.addedMicrodescriptors.size());
+
+        File fromDir = release("from", fromUdesc, fromCons);
+        File toDir = folder.newFolder("to");
+        delta.apply(fromDir, toDir);
+
+        assertArrayEquals(toUdesc, readFile(new File(toDir, TorLibApi.MICRODESCRIPTORS_FILENAME)));
+        assertArrayEquals(toCons, readFile(new File(toDir, TorLibApi.CONSENSUS_FILENAME)));
+        assertArrayEquals("relay2\n".getBytes("UTF-8"), readFile(new File(toDir, TorLibApi.CHURN_FILENAME)));
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        byte[] fromUdesc = microdescriptors(1, 2);
+        byte[] fromCons = consensus("2023-03-06 10:00:00", 1, 2);
+        byte[] toUdesc = microdescriptors(2, 3);
+        byte[] toCons = consensus("2023-03-13 10:00:00", 2, 3);
+        CacheDelta delta = diff(fromUdesc, fromCons, toUdesc, toCons);
+        delta.replacedFiles.put(TorLibApi.CHURN_FILENAME, new byte[0]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        delta.write(out);
+        CacheDelta read = CacheDelta.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(delta.fromMicrodescriptors, read.fromMicrodescriptors);
+        assertEquals(delta.toConsensus, read.toConsensus);
+        assertEquals(delta.removedMicrodescriptors, read.removedMicrodescriptors);
+        assertEquals(delta.consensusEdits.size(), read.consensusEdits.size());
+        assertEquals(delta.replacedFiles.keySet(), read.replacedFiles.keySet());
+
+        File toDir = folder.newFolder("to");
+        read.apply(release("from", fromUdesc, fromCons), toDir);
+        assertArrayEquals(toCons, readFile(new File(toDir, TorLibApi.CONSENSUS_FILENAME)));
+    }
+
+    @Test
+    public void emptyDelta() throws Exception {
+        byte[] udesc = microdescriptors(1, 2);
+        byte[] cons = consensus("2023-03-06 10:00:00", 1, 2);
+        assertTrue(diff(udesc, cons, udesc, cons).isEmpty());
+    }
+
+    @Test
+    public void checksumMismatch() throws Exception {
+        byte[] fromUdesc = microdescriptors(1, 2);
+        byte[] fromCons = consensus("2023-03-06 10:00:00", 1, 2);
+        CacheDelta delta = diff(fromUdesc, fromCons, microdescriptors(1, 3), consensus("2023-03-13 10:00:00", 1, 3));
+
+        // Applied to other files than the ones it was computed from
+        File fromDir = release("from", microdescriptors(1, 4), fromCons);
+        try {
+            delta.apply(fromDir, folder.newFolder("to"));
+            fail("Delta applied to the wrong files");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(TorLibApi.MICRODESCRIPTORS_FILENAME));
+        }
+    }
+
+    @Test
+    public void invalidFormat() {
+        try {
+            CacheDelta.read(new ByteArrayInputStream("not a delta".getBytes()));
+            fail("Invalid delta read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void replacedFileNamesAreChecked() throws Exception {
+        byte[] udesc = microdescriptors(1);
+        byte[] cons = consensus("2023-03-06 10:00:00", 1);
+        CacheDelta delta = diff(udesc, cons, udesc, cons);
+        delta.replacedFiles.put("../outside", new byte[]{1});
+        try {
+            delta.apply(release("from", udesc, cons), folder.newFolder("to"));
+            fail("File written outside of the cache");
+        } catch (IOException e) {
+            assertFalse(new File(folder.getRoot(), "outside").exists());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+
+public class CacheDownloaderTest {
+    private static final String PATH = "/directory-cache.tgz";
+    private static final String LAST_MODIFIED = "Mon, 06 Mar 2023 10:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInHttpServer server;
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInHttpServer();
+        target = new File(folder.getRoot(), "directory-cache.tgz");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return RequestBody.readFully(in, (int) file.length());
+        }
+    }
+
+    private CacheDownloader newDownloader() {
+        return new CacheDownloader(server.url(PATH), target);
+    }
+
+    @Test
+    public void downloadsResource() throws IOException {
+        byte[] data = randomBytes(100 * 1024, 1);
+        server.put(PATH, data, "\"v1\"", LAST_MODIFIED);
+
+        assertTrue(newDownloader().download(true));
+        assertArrayEquals(data, readFile(target));
+        assertFalse(new File(target.getPath() + CacheDownloader.PARTIAL_SUFFIX).exists());
+    }
+
+    @Test
+    public void committedDownloadIsConditional() throws IOException {
+        server.put(PATH, randomBytes(1024, 1), "\"v1\"", LAST_MODIFIED);
+
+        CacheDownloader downloader = newDownloader();
+        assertTrue(downloader.download(true));
+        downloader.commit();
+        assertEquals("\"v1\"", downloader.committedETag());
+
+        assertFalse(newDownloader().download(true));
+        List<StandInHttpServer.Request> requests = server.requests();
+        assertEquals("\"v1\"", requests.get(1).header("If-None-Match"));
+        assertEquals(LAST_MODIFIED, requests.get(1).header("If-Modified-Since"));
+    }
+
+    @Test
+    public void uncommittedDownloadIsNotConditional() throws IOException {
+        server.put(PATH, randomBytes(1024, 1), "\"v1\"", LAST_MODIFIED);
+
+        assertTrue(newDownloader().download(true));
+        // e.g. the extraction failed
+        assertTrue(newDownloader().download(true));
+        assertNull(server.requests().get(1).header("If-None-Match"));
+    }
+
+    @Test
+    public void nonConditionalDownloadIgnoresValidators() throws IOException {
+        server.put(PATH, randomBytes(1024, 1), "\"v1\"", LAST_MODIFIED);
+
+        CacheDownloader downloader = newDownloader();
+        assertTrue(downloader.download(true));
+        downloader.commit();
+
+        // e.g. cache files are missing
+        assertTrue(newDownloader().download(false));
+        assertNull(server.requests().get(1).header("If-None-Match"));
+    }
+
+    @Test
+    public void modifiedResourceIsDownloadedAgain() throws IOException {
+        server.put(PATH, randomBytes(1024, 1), "\"v1\"", LAST_MODIFIED);
+        CacheDownloader downloader = newDownloader();
+        assertTrue(downloader.download(true));
+        downloader.commit();
+
+        byte[] data = randomBytes(2048, 2);
+        server.put(PATH, data, "\"v2\"", "Mon, 13 Mar 2023 10:00:00 GMT");
+        assertTrue(downloader.download(true));
+        assertArrayEquals(data, readFile(target));
+    }
+
+    @Test
+    public void interruptedDownloadIsResumed() throws IOException {
+        byte[] data = randomBytes(200 * 1024, 1);
+        server.put(PATH, data, "\"v1\"", LAST_MODIFIED);
+
+        server.truncateNextResponseAfter(50 * 1024);
+        try {
+            newDownloader().download(true);
+            fail("Interrupted download should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        File partial = new File(target.getPath() + CacheDownloader.PARTIAL_SUFFIX);
+        assertTrue(partial.exists());
+        long offset = partial.length();
+        assertTrue(offset > 0);
+
+        assertTrue(newDownloader().download(true));
+        assertArrayEquals(data, readFile(target));
+
+        StandInHttpServer.Request resumed = server.requests().get(1);
+        assertEquals("bytes=" + offset + "-", resumed.header("Range"));
+        assertEquals("\"v1\"", resumed.header("If-Range"));
+    }
+
+    @Test
+    public void resumeOfChangedResourceStartsOver() throws IOException {
+        server.put(PATH, randomBytes(200 * 1024, 1), "\"v1\"", LAST_MODIFIED);
+        server.truncateNextResponseAfter(50 * 1024);
+        try {
+            newDownloader().download(true);
+            fail("Interrupted download should fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        byte[] data = randomBytes(150 * 1024, 2);
+        server.put(PATH, data, "\"v2\"", "Mon, 13 Mar 2023 10:00:00 GMT");
+        assertTrue(newDownloader().download(true));
+        assertArrayEquals(data, readFile(target));
+    }
+
+    @Test
+    public void resumeBeyondEndStartsOver() throws IOException {
+        byte[] data = randomBytes(1024, 1);
+        server.put(PATH, randomBytes(200 * 1024, 2), "\"v1\"", LAST_MODIFIED);
+        server.truncateNextResponseAfter(50 * 1024);
+        try {
+            newDownloader().download(true);
+            fail("Interrupted download should fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // Same validator, shorter resource: the range is not satisfiable
+        server.put(PATH, data, "\"v1\"", LAST_MODIFIED);
+        assertTrue(newDownloader().download(true));
+        assertArrayEquals(data, readFile(target));
+    }
+
+    @Test
+    public void missingResourceFails() {
+        try {
+            newDownloader().download(true);
+            fail("Missing resource should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("404"));
+        }
+    }
+
+    @Test
+    public void contentRangeStart() {
+        assertEquals(1024, CacheDownloader.contentRangeStart("bytes 1024-2047/5000"));
+        assertEquals(-1, CacheDownloader.contentRangeStart("bytes */5000"));
+        assertEquals(-1, CacheDownloader.contentRangeStart(null));
+    }
+}
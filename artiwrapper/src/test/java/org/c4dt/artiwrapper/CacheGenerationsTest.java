@@ -0,0 +1,164 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+public class CacheGenerationsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void writeFile(File file, String content) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes("UTF-8"));
+        }
+    }
+
+    private static File stageComplete(File cacheDir, String content) throws IOException {
+        File staging = CacheGenerations.stage(cacheDir);
+        writeFile(new File(staging, TorLibApi.CONSENSUS_FILENAME), content);
+        writeFile(new File(staging, TorLibApi.MICRODESCRIPTORS_FILENAME), content);
+        writeFile(new File(staging, TorLibApi.AUTHORITY_FILENAME), content);
+        writeFile(new File(staging, TorLibApi.CERTIFICATE_FILENAME), content);
+        return staging;
+    }
+
+    @Test
+    public void unpublishedDirectoryIsUsedAsIs() {
+        File cacheDir = folder.getRoot();
+        assertEquals(cacheDir, CacheGenerations.current(cacheDir));
+
+        try (CacheGenerations.Lease lease = CacheGenerations.acquire(cacheDir.getPath())) {
+            assertEquals(cacheDir, lease.getDirectory());
+        }
+    }
+
+    @Test
+    public void publishSwitchesCurrentGeneration() throws IOException {
+        File cacheDir = folder.getRoot();
+
+        File first = CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "first"));
+        assertEquals(first, CacheGenerations.current(cacheDir));
+        assertEquals("0", first.getName());
+
+        File second = CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "second"));
+        assertEquals(second, CacheGenerations.current(cacheDir));
+        assertEquals("1", second.getName());
+
+        // Not leased anymore
+        assertFalse(first.exists());
+    }
+
+    @Test
+    public void leasedGenerationIsKeptUntilReleased() throws IOException {
+        File cacheDir = folder.getRoot();
+        File first = CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "first"));
+
+        CacheGenerations.Lease lease1 = CacheGenerations.acquire(cacheDir.getPath());
+        CacheGenerations.Lease lease2 = CacheGenerations.acquire(cacheDir.getPath());
+        assertEquals(first, lease1.getDirectory());
+
+        File second = CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "second"));
+        assertTrue(first.exists());
+        assertEquals(second, CacheGenerations.current(cacheDir));
+
+        lease1.close();
+        // Closing twice does not release the other lease
+        lease1.close();
+        assertTrue(first.exists());
+
+        lease2.close();
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+    }
+
+    @Test
+    public void incompleteStagingIsNotPublished() throws IOException {
+        File cacheDir = folder.getRoot();
+        File first = CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "first"));
+
+        File staging = stageComplete(cacheDir, "second");
+        assertTrue(new File(staging, TorLibApi.MICRODESCRIPTORS_FILENAME).delete());
+        try {
+            CacheGenerations.publish(cacheDir, staging);
+            fail("Incomplete generation should not be published");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(TorLibApi.MICRODESCRIPTORS_FILENAME));
+        }
+        assertEquals(first, CacheGenerations.current(cacheDir));
+    }
+
+    @Test
+    public void leftoverStagingIsDeleted() throws IOException {
+        File cacheDir = folder.getRoot();
+        File interrupted = stageComplete(cacheDir, "interrupted");
+
+        File staging = CacheGenerations.stage(cacheDir);
+        assertFalse(interrupted.exists());
+        assertEquals("1" + CacheGenerations.STAGING_SUFFIX, staging.getName());
+    }
+
+    @Test
+    public void newerGenerationIsNotCollected() throws IOException {
+        File cacheDir = folder.getRoot();
+        File first = CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "first"));
+
+        // Renamed by another process which has not swapped the pointer yet
+        File next = new File(first.getParentFile(), "1");
+        assertTrue(stageComplete(cacheDir, "second").renameTo(next));
+
+        CacheGenerations.collect(cacheDir);
+        assertTrue(first.exists());
+        assertTrue(next.exists());
+    }
+
+    @Test
+    public void generationLeasedByAnotherProcessIsKept() throws IOException {
+        File cacheDir = folder.getRoot();
+        File first = CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "first"));
+
+        // Stands for the shared lock of a lease held by another process
+        File leaseFile = new File(first.getParentFile(), first.getName() + CacheGenerations.LEASE_SUFFIX);
+        try (FileChannel channel = new RandomAccessFile(leaseFile, "rw").getChannel()) {
+            FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+            CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "second"));
+            assertTrue(first.exists());
+            lock.release();
+        }
+
+        CacheGenerations.collect(cacheDir);
+        assertFalse(first.exists());
+        assertFalse(leaseFile.exists());
+    }
+
+    @Test
+    public void leaseLocksGenerationFile() throws IOException {
+        File cacheDir = folder.getRoot();
+        File first = CacheGenerations.publish(cacheDir, stageComplete(cacheDir, "first"));
+        File leaseFile = new File(first.getParentFile(), first.getName() + CacheGenerations.LEASE_SUFFIX);
+
+        try (CacheGenerations.Lease lease = CacheGenerations.acquire(cacheDir.getPath())) {
+            assertEquals(first, lease.getDirectory());
+            assertTrue(leaseFile.exists());
+        }
+        // The lock is released with the last lease
+        try (FileChannel channel = new RandomAccessFile(leaseFile, "rw").getChannel()) {
+            FileLock lock = channel.tryLock();
+            assertTrue(lock != null);
+            lock.release();
+        }
+    }
+}
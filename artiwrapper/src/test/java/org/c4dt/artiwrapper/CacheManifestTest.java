@@ -0,0 +1,129 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class CacheManifestTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String writeFile(File file, String content) throws Exception {
+        byte[] data = content.getBytes("UTF-8");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return ArchiveExtractorTest.sha256(data);
+    }
+
+    private CacheManifest sampleManifest(File dir, long now) throws Exception {
+        Map<String, String> digests = new LinkedHashMap<>();
+        digests.put(TorLibApi.MICRODESCRIPTORS_FILENAME,
+                writeFile(new File(dir, TorLibApi.MICRODESCRIPTORS_FILENAME), "microdescriptors"));
+        digests.put(TorLibApi.CHURN_FILENAME, writeFile(new File(dir, TorLibApi.CHURN_FILENAME), "churn"));
+        return CacheManifest.forArchive(dir, digests, "\"v1\"", now, now);
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        File dir = folder.getRoot();
+        long now = System.currentTimeMillis();
+        sampleManifest(dir, now).write(dir);
+
+        CacheManifest manifest = CacheManifest.read(dir);
+        assertEquals("\"v1\"", manifest.getSourceETag());
+        assertEquals(2, manifest.entries().size());
+
+        CacheManifest.FileEntry entry = manifest.get(TorLibApi.MICRODESCRIPTORS_FILENAME);
+        assertEquals("microdescriptors".length(), entry.size);
+        assertEquals(now, entry.validAfter);
+        assertEquals(CacheManifest.endOfWeek(now), entry.validUntil);
+        assertEquals(CacheManifest.endOfDay(now), manifest.get(TorLibApi.CHURN_FILENAME).validUntil);
+    }
+
+    @Test
+    public void missingOrCorruptManifestIsIgnored() throws IOException {
+        File dir = folder.getRoot();
+        assertNull(CacheManifest.read(dir));
+
+        try (OutputStream out = new FileOutputStream(new File(dir, CacheManifest.FILENAME))) {
+            out.write(new byte[]{1, 2, 3});
+        }
+        assertNull(CacheManifest.read(dir));
+    }
+
+    @Test
+    public void freshness() throws Exception {
+        File dir = folder.getRoot();
+        long now = System.currentTimeMillis();
+        CacheManifest manifest = sampleManifest(dir, now);
+
+        assertTrue(manifest.isFresh(dir, TorLibApi.CHURN_FILENAME, now));
+        assertFalse(manifest.isFresh(dir, TorLibApi.CHURN_FILENAME, CacheManifest.endOfDay(now)));
+        assertFalse(manifest.isFresh(dir, TorLibApi.CONSENSUS_FILENAME, now));
+
+        manifest.setValidUntil(TorLibApi.CHURN_FILENAME, now);
+        assertFalse(manifest.isFresh(dir, TorLibApi.CHURN_FILENAME, now));
+    }
+
+    @Test
+    public void modificationTimesAreIgnored() throws Exception {
+        File dir = folder.getRoot();
+        long now = System.currentTimeMillis();
+        CacheManifest manifest = sampleManifest(dir, now);
+
+        assertTrue(new File(dir, TorLibApi.CHURN_FILENAME).setLastModified(0));
+        assertTrue(manifest.isFresh(dir, TorLibApi.CHURN_FILENAME, now));
+    }
+
+    @Test
+    public void integrity() throws Exception {
+        File dir = folder.getRoot();
+        CacheManifest manifest = sampleManifest(dir, System.currentTimeMillis());
+        assertTrue(manifest.verify(dir).isEmpty());
+
+        // Same size, different content: only detected by the checksum
+        writeFile(new File(dir, TorLibApi.CHURN_FILENAME), "CHURN");
+        assertTrue(CacheManifest.isIntact(dir, manifest.get(TorLibApi.CHURN_FILENAME)));
+        assertEquals(Collections.singletonList(TorLibApi.CHURN_FILENAME), manifest.verify(dir));
+
+        // Truncated file: detected by the size
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, TorLibApi.MICRODESCRIPTORS_FILENAME), "rw")) {
+            file.setLength(5);
+        }
+        assertFalse(CacheManifest.isIntact(dir, manifest.get(TorLibApi.MICRODESCRIPTORS_FILENAME)));
+        assertFalse(manifest.isFresh(dir, TorLibApi.MICRODESCRIPTORS_FILENAME, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void endOfWeekIsNextMonday() {
+        Calendar cal = Calendar.getInstance(Locale.UK);
+        cal.set(2023, Calendar.MARCH, 8, 15, 30); // Wednesday
+        Calendar end = Calendar.getInstance(Locale.UK);
+        end.setTimeInMillis(CacheManifest.endOfWeek(cal.getTimeInMillis()));
+
+        assertEquals(Calendar.MONDAY, end.get(Calendar.DAY_OF_WEEK));
+        assertEquals(13, end.get(Calendar.DAY_OF_MONTH));
+        assertEquals(0, end.get(Calendar.HOUR_OF_DAY));
+
+        // Sunday belongs to the same week
+        cal.set(2023, Calendar.MARCH, 12, 23, 59);
+        assertEquals(end.getTimeInMillis(), CacheManifest.endOfWeek(cal.getTimeInMillis()));
+    }
+}
@@ -0,0 +1,249 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class CacheRefresherTest {
+    private static final String ARCHIVE_PATH = "/directory-cache.tgz";
+    private static final String CHURN_PATH = "/churn.txt";
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInHttpServer server;
+    private ScheduledThreadPoolExecutor scheduler;
+    private File cacheDir;
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInHttpServer();
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        cacheDir = folder.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        server.close();
+    }
+
+    private void serveRelease() throws IOException {
+        serveRelease("v1");
+    }
+
+    private void serveRelease(String version) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(TorLibApi.CONSENSUS_FILENAME, ("consensus " + version).getBytes("UTF-8"));
+        files.put(TorLibApi.MICRODESCRIPTORS_FILENAME, ("microdescriptors " + version).getBytes("UTF-8"));
+        files.put(TorLibApi.AUTHORITY_FILENAME, "authority".getBytes("UTF-8"));
+        files.put(TorLibApi.CERTIFICATE_FILENAME, "certificate".getBytes("UTF-8"));
+        files.put(TorLibApi.CHURN_FILENAME, "churn".getBytes("UTF-8"));
+        server.put(ARCHIVE_PATH, ArchiveExtractorTest.tgz(files), "\"" + version + "\"", null);
+        server.put(CHURN_PATH, files.get(TorLibApi.CHURN_FILENAME), "\"churn\"", null);
+    }
+
+    /**
+     * Create a refresher whose jitter is always half of its maximum.
+     */
+    private CacheRefresher newRefresher() {
+        Random random = new Random() {
+            @Override
+            public double nextDouble() {
+                return 0.5;
+            }
+        };
+        CacheRefresher refresher = new CacheRefresher(cacheDir, scheduler, server.url(ARCHIVE_PATH),
+                server.url(CHURN_PATH), random);
+        refresher.setListener(new CacheRefresher.Listener() {
+            @Override
+            public void onRefreshScheduled(long delayMillis) {
+                events.add("scheduled " + delayMillis);
+            }
+
+            @Override
+            public void onRefreshCompleted(TorLibApi.CacheUpdateStatus status) {
+                events.add("completed " + status);
+            }
+
+            @Override
+            public void onRefreshFailed(Exception e, long retryDelayMillis) {
+                events.add("failed " + retryDelayMillis);
+            }
+
+            @Override
+            public void onStalenessBudgetExceeded(long stalenessMillis) {
+                events.add("stale");
+            }
+        });
+        return refresher;
+    }
+
+    private String nextEvent() throws InterruptedException {
+        String event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull("No event", event);
+        return event;
+    }
+
+    /**
+     * Set the expiry time of the cache files.
+     */
+    private void expireAt(long validUntil) {
+        File generation = CacheGenerations.current(cacheDir);
+        CacheManifest manifest = CacheManifest.read(generation);
+        for (CacheManifest.FileEntry entry : manifest.entries()) {
+            manifest.setValidUntil(entry.name, validUntil);
+        }
+        try {
+            manifest.write(generation);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        assertEquals(validUntil, CacheUpdater.expiryTime(cacheDir));
+    }
+
+    @Test
+    public void missingCacheIsRefreshedRightAway() throws Exception {
+        serveRelease();
+        CacheRefresher refresher = newRefresher();
+        assertFalse(refresher.isUsable());
+
+        refresher.start();
+        assertEquals("scheduled 0", nextEvent());
+        assertEquals("completed " + TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, nextEvent());
+        assertTrue(nextEvent().startsWith("scheduled "));
+        assertTrue(refresher.isUsable());
+        assertEquals(0, refresher.getStalenessMillis());
+        refresher.stop();
+    }
+
+    @Test
+    public void refreshIsScheduledAheadOfExpiry() throws Exception {
+        serveRelease();
+        new CacheUpdater(server.url(ARCHIVE_PATH), server.url(CHURN_PATH), null).update(cacheDir);
+        CacheRefresher refresher = newRefresher();
+        refresher.setLeadTimeMillis(HOUR);
+        refresher.setMaxJitterMillis(HOUR);
+
+        long now = System.currentTimeMillis();
+        expireAt(now + 10 * HOUR);
+        long delay = refresher.nextDelay(now);
+        assertEquals(10 * HOUR - HOUR - HOUR / 2, delay);
+
+        // Within the lead time: jitter within the remaining time
+        expireAt(now + HOUR / 2);
+        assertEquals(HOUR / 4, refresher.nextDelay(now));
+    }
+
+    @Test
+    public void expiredCacheIsRefreshedWithinStalenessBudget() throws Exception {
+        serveRelease();
+        new CacheUpdater(server.url(ARCHIVE_PATH), server.url(CHURN_PATH), null).update(cacheDir);
+        CacheRefresher refresher = newRefresher();
+        refresher.setMaxJitterMillis(HOUR);
+        refresher.setMaxStalenessMillis(2 * HOUR);
+
+        long now = System.currentTimeMillis();
+        expireAt(now - HOUR - HOUR / 2);
+        assertTrue(refresher.isUsable());
+        // Only half an hour left in the budget
+        assertEquals(HOUR / 4, refresher.nextDelay(now));
+
+        expireAt(now - 3 * HOUR);
+        assertFalse(refresher.isUsable());
+        assertEquals(0, refresher.nextDelay(now));
+    }
+
+    @Test
+    public void refreshAheadRevalidatesFiles() throws Exception {
+        serveRelease();
+        new CacheUpdater(server.url(ARCHIVE_PATH), server.url(CHURN_PATH), null).update(cacheDir);
+        CacheRefresher refresher = newRefresher();
+        refresher.setMaxJitterMillis(0);
+        long expiry = System.currentTimeMillis() + HOUR / 2;
+        expireAt(expiry);
+
+        refresher.start();
+        assertEquals("scheduled 0", nextEvent());
+        // The release is unchanged: the archive is only revalidated
+        assertEquals("completed " + TorLibApi.CacheUpdateStatus.DOWNLOADED_CHURN_FILE, nextEvent());
+        assertTrue(nextEvent().startsWith("scheduled "));
+        refresher.stop();
+
+        int archiveRequests = 0;
+        for (StandInHttpServer.Request request : server.requests()) {
+            if (request.path.equals(ARCHIVE_PATH)) {
+                archiveRequests++;
+                if (archiveRequests > 1) {
+                    assertEquals("\"v1\"", request.header("If-None-Match"));
+                }
+            }
+        }
+        assertEquals(2, archiveRequests);
+    }
+
+    @Test
+    public void refreshAheadOfRolloverIsCurrentForNextPeriod() throws Exception {
+        serveRelease();
+        new CacheUpdater(server.url(ARCHIVE_PATH), server.url(CHURN_PATH), null).update(cacheDir);
+        long now = System.currentTimeMillis();
+        long rollover = CacheManifest.endOfDay(now);
+        expireAt(rollover);
+
+        // The next release is out: refresh at the rollover minus the lead time
+        serveRelease("v2");
+        CacheRefresher refresher = newRefresher();
+        refresher.setLeadTimeMillis(rollover - now + HOUR);
+        refresher.setMaxJitterMillis(0);
+        refresher.start();
+        assertEquals("scheduled 0", nextEvent());
+        assertEquals("completed " + TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, nextEvent());
+        assertTrue(nextEvent().startsWith("scheduled "));
+        refresher.stop();
+
+        // The new files do not expire at the rollover they were downloaded for
+        long expiry = CacheUpdater.expiryTime(cacheDir);
+        assertEquals(Math.min(CacheManifest.endOfDay(rollover), CacheManifest.endOfWeek(rollover)), expiry);
+        assertTrue(expiry > rollover);
+        assertEquals(0, refresher.getStalenessMillis());
+    }
+
+    @Test
+    public void failuresAreRetriedWithBackoff() throws Exception {
+        // Nothing is served
+        CacheRefresher refresher = newRefresher();
+        refresher.start();
+        assertEquals("scheduled 0", nextEvent());
+        assertEquals("failed " + CacheRefresher.MIN_RETRY_DELAY_MILLIS * 3 / 4, nextEvent());
+        assertEquals("stale", nextEvent());
+        assertEquals("scheduled " + CacheRefresher.MIN_RETRY_DELAY_MILLIS * 3 / 4, nextEvent());
+
+        refresher.refreshNow();
+        assertEquals("scheduled 0", nextEvent());
+        assertEquals("failed " + CacheRefresher.MIN_RETRY_DELAY_MILLIS * 3 / 4, nextEvent());
+        // Reported once only
+        assertTrue(nextEvent().startsWith("scheduled "));
+        refresher.stop();
+        assertEquals(0, scheduler.getQueue().size());
+    }
+}
@@ -0,0 +1,296 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class CacheUpdaterTest {
+    private static final String ARCHIVE_PATH = "/directory-cache.tgz";
+    private static final String CHURN_PATH = "/churn.txt";
+    private static final String DELTAS_PATH = "/deltas";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInHttpServer server;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInHttpServer();
+        cacheDir = folder.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private CacheUpdater newUpdater() {
+        return new CacheUpdater(server.url(ARCHIVE_PATH), server.url(CHURN_PATH), server.url(DELTAS_PATH));
+    }
+
+    private static Map<String, byte[]> release(byte[] microdescriptors, byte[] consensus) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(TorLibApi.CONSENSUS_FILENAME, consensus);
+        files.put(TorLibApi.MICRODESCRIPTORS_FILENAME, microdescriptors);
+        files.put(TorLibApi.AUTHORITY_FILENAME, "{\"name\":\"authority\"}".getBytes("UTF-8"));
+        files.put(TorLibApi.CERTIFICATE_FILENAME, "certificate".getBytes("UTF-8"));
+        files.put(TorLibApi.CHURN_FILENAME, "".getBytes("UTF-8"));
+        return files;
+    }
+
+    private void serveArchive(Map<String, byte[]> files, String etag) throws IOException {
+        server.put(ARCHIVE_PATH, ArchiveExtractorTest.tgz(files), etag, null);
+        server.put(CHURN_PATH, files.get(TorLibApi.CHURN_FILENAME), "\"churn\"", null);
+    }
+
+    private void serveDelta(CacheDelta delta) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        delta.write(out);
+        server.put(DELTAS_PATH + "/" + delta.fromMicrodescriptors + "-" + delta.fromConsensus + ".delta",
+                out.toByteArray(), null, null);
+    }
+
+    /**
+     * Make the microdescriptors of the current generation obsolete.
+     */
+    private void expireMicrodescriptors() throws IOException {
+        File generation = CacheGenerations.current(cacheDir);
+        CacheManifest manifest = CacheManifest.read(generation);
+        manifest.setValidUntil(TorLibApi.MICRODESCRIPTORS_FILENAME, System.currentTimeMillis() - 1);
+        manifest.write(generation);
+        assertFalse(CacheUpdater.getCacheState(cacheDir).udescIsCurrent);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return RequestBody.readFully(in, (int) file.length());
+        }
+    }
+
+    private int requestsTo(String prefix) {
+        int count = 0;
+        for (StandInHttpServer.Request request : server.requests()) {
+            if (request.path.startsWith(prefix)) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void fullDownload() throws Exception {
+        Map<String, byte[]> files = release(CacheDeltaTest.microdescriptors(1, 2),
+                CacheDeltaTest.consensus("2023-03-06 10:00:00", 1, 2));
+        serveArchive(files, "\"v1\"");
+
+        assertTrue(CacheUpdater.getCacheState(cacheDir).missingFiles);
+        assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, newUpdater().update(cacheDir));
+        assertEquals(0, requestsTo(DELTAS_PATH));
+
+        File generation = CacheGenerations.current(cacheDir);
+        assertNotEquals(cacheDir, generation);
+        assertArrayEquals(files.get(TorLibApi.CONSENSUS_FILENAME),
+                readFile(new File(generation, TorLibApi.CONSENSUS_FILENAME)));
+        assertTrue(CacheUpdater.getCacheState(cacheDir).isUpToDate());
+        assertEquals(TorLibApi.CacheUpdateStatus.CACHE_IS_UP_TO_DATE, newUpdater().update(cacheDir));
+    }
+
+    @Test
+    public void concurrentUpdatesShareOneDownload() throws Exception {
+        serveArchive(release(CacheDeltaTest.microdescriptors(1, 2),
+                CacheDeltaTest.consensus("2023-03-06 10:00:00", 1, 2)), "\"v1\"");
+        server.setDelayMillis(300);
+
+        int nbCallers = 4;
+        final BlockingQueue<TorLibApi.TorRequestResult<TorLibApi.CacheUpdateStatus>> results = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(nbCallers);
+        try {
+            for (int i = 0; i < nbCallers; i++) {
+                newUpdater().updateAsync(cacheDir, executor, results::add);
+            }
+            for (int i = 0; i < nbCallers; i++) {
+                TorLibApi.TorRequestResult<TorLibApi.CacheUpdateStatus> result = results.poll(10, TimeUnit.SECONDS);
+                assertTrue(result instanceof TorLibApi.TorRequestResult.Success);
+                assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE,
+                        ((TorLibApi.TorRequestResult.Success<TorLibApi.CacheUpdateStatus>) result).getResult());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, requestsTo(ARCHIVE_PATH));
+
+        // A later update finds the files up to date
+        assertEquals(TorLibApi.CacheUpdateStatus.CACHE_IS_UP_TO_DATE,
+                newUpdater().updateShared(cacheDir, System.currentTimeMillis()));
+        assertEquals(1, requestsTo(ARCHIVE_PATH));
+    }
+
+    @Test
+    public void blockingCallersShareErrors() throws Exception {
+        // Nothing is served
+        server.setDelayMillis(300);
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    newUpdater().updateShared(cacheDir, System.currentTimeMillis());
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10 * 1000);
+        }
+        assertEquals(threads.length, errors.size());
+        assertEquals(1, requestsTo(ARCHIVE_PATH));
+        assertTrue(new File(cacheDir, CacheUpdater.LOCK_FILENAME).exists());
+    }
+
+    @Test
+    public void corruptedArchiveFromMirrorIsDiscarded() throws Exception {
+        Map<String, byte[]> files = release(CacheDeltaTest.microdescriptors(1, 2),
+                CacheDeltaTest.consensus("2023-03-06 10:00:00", 1, 2));
+        byte[] archive = ArchiveExtractorTest.tgz(files);
+        try (StandInHttpServer mirror = new StandInHttpServer()) {
+            // Truncated archive on the first mirror, which answers with the announced length
+            server.put(ARCHIVE_PATH, Arrays.copyOf(archive, archive.length / 2), "\"v1\"", null);
+            mirror.put(ARCHIVE_PATH, archive, "\"v1\"", null);
+            mirror.put(CHURN_PATH, files.get(TorLibApi.CHURN_FILENAME), "\"churn\"", null);
+
+            List<CacheMirror> mirrors = Arrays.asList(
+                    new CacheMirror(server.url(ARCHIVE_PATH), server.url(CHURN_PATH), 1000),
+                    new CacheMirror(mirror.url(ARCHIVE_PATH), mirror.url(CHURN_PATH), 1));
+            CacheUpdater updater = new CacheUpdater(mirrors, null, new MirrorStats(MirrorStats.DEFAULT_HEDGE_DELAY_MILLIS));
+            assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, updater.update(cacheDir));
+            assertEquals(1, mirror.requests().size());
+        }
+        File generation = CacheGenerations.current(cacheDir);
+        assertArrayEquals(files.get(TorLibApi.MICRODESCRIPTORS_FILENAME),
+                readFile(new File(generation, TorLibApi.MICRODESCRIPTORS_FILENAME)));
+        // The extracted archive was moved into the generation, the corrupted one was cleaned up
+        for (File mirrorDir : new File(cacheDir, CacheUpdater.DOWNLOADS_DIRNAME).listFiles()) {
+            assertFalse(new File(mirrorDir, CacheUpdater.EXTRACTED_DIRNAME).exists());
+        }
+    }
+
+    @Test
+    public void appliesDelta() throws Exception {
+        byte[] fromUdesc = CacheDeltaTest.microdescriptors(1, 2, 3);
+        byte[] fromCons = CacheDeltaTest.consensus("2023-03-06 10:00:00", 1, 2, 3);
+        serveArchive(release(fromUdesc, fromCons), "\"v1\"");
+        assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, newUpdater().update(cacheDir));
+        File previous = CacheGenerations.current(cacheDir);
+
+        byte[] toUdesc = CacheDeltaTest.microdescriptors(2, 3, 4);
+        byte[] toCons = CacheDeltaTest.consensus("2023-03-13 10:00:00", 2, 3, 4);
+        Map<String, byte[]> newRelease = release(toUdesc, toCons);
+        serveArchive(newRelease, "\"v2\"");
+        serveDelta(CacheDeltaTest.diff(fromUdesc, fromCons, toUdesc, toCons));
+        expireMicrodescriptors();
+
+        assertEquals(TorLibApi.CacheUpdateStatus.APPLIED_DELTA, newUpdater().update(cacheDir));
+        assertEquals(1, requestsTo(ARCHIVE_PATH));
+
+        File generation = CacheGenerations.current(cacheDir);
+        assertNotEquals(previous, generation);
+        for (Map.Entry<String, byte[]> file : newRelease.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), readFile(new File(generation, file.getKey())));
+        }
+        assertTrue(CacheManifest.read(generation).verify(generation).isEmpty());
+        assertTrue(CacheUpdater.getCacheState(cacheDir).isUpToDate());
+    }
+
+    @Test
+    public void emptyDeltaRevalidates() throws Exception {
+        byte[] udesc = CacheDeltaTest.microdescriptors(1, 2);
+        byte[] cons = CacheDeltaTest.consensus("2023-03-06 10:00:00", 1, 2);
+        serveArchive(release(udesc, cons), "\"v1\"");
+        newUpdater().update(cacheDir);
+        File previous = CacheGenerations.current(cacheDir);
+
+        serveDelta(CacheDeltaTest.diff(udesc, cons, udesc, cons));
+        expireMicrodescriptors();
+
+        newUpdater().update(cacheDir);
+        assertEquals(previous, CacheGenerations.current(cacheDir));
+        assertEquals(1, requestsTo(ARCHIVE_PATH));
+        assertTrue(CacheUpdater.getCacheState(cacheDir).udescIsCurrent);
+    }
+
+    @Test
+    public void missingDeltaFallsBackToArchive() throws Exception {
+        byte[] fromUdesc = CacheDeltaTest.microdescriptors(1, 2);
+        byte[] fromCons = CacheDeltaTest.consensus("2023-03-06 10:00:00", 1, 2);
+        serveArchive(release(fromUdesc, fromCons), "\"v1\"");
+        newUpdater().update(cacheDir);
+
+        Map<String, byte[]> newRelease = release(CacheDeltaTest.microdescriptors(2, 3),
+                CacheDeltaTest.consensus("2023-03-13 10:00:00", 2, 3));
+        serveArchive(newRelease, "\"v2\"");
+        expireMicrodescriptors();
+
+        assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, newUpdater().update(cacheDir));
+        assertEquals(1, requestsTo(DELTAS_PATH));
+        File generation = CacheGenerations.current(cacheDir);
+        assertArrayEquals(newRelease.get(TorLibApi.MICRODESCRIPTORS_FILENAME),
+                readFile(new File(generation, TorLibApi.MICRODESCRIPTORS_FILENAME)));
+    }
+
+    @Test
+    public void invalidDeltaFallsBackToArchive() throws Exception {
+        byte[] fromUdesc = CacheDeltaTest.microdescriptors(1, 2);
+        byte[] fromCons = CacheDeltaTest.consensus("2023-03-06 10:00:00", 1, 2);
+        serveArchive(release(fromUdesc, fromCons), "\"v1\"");
+        newUpdater().update(cacheDir);
+
+        byte[] toUdesc = CacheDeltaTest.microdescriptors(2, 3);
+        byte[] toCons = CacheDeltaTest.consensus("2023-03-13 10:00:00", 2, 3);
+        Map<String, byte[]> newRelease = release(toUdesc, toCons);
+        serveArchive(newRelease, "\"v2\"");
+        // Delta announcing other files than the ones it produces
+        CacheDelta delta = CacheDeltaTest.diff(fromUdesc, fromCons, toUdesc, toCons);
+        CacheDelta corrupted = new CacheDelta(delta.fromMicrodescriptors, delta.fromConsensus,
+                ArchiveExtractorTest.sha256(new byte[0]), delta.toConsensus);
+        corrupted.addedMicrodescriptors.addAll(delta.addedMicrodescriptors);
+        corrupted.removedMicrodescriptors.addAll(delta.removedMicrodescriptors);
+        corrupted.consensusEdits.addAll(delta.consensusEdits);
+        serveDelta(corrupted);
+        expireMicrodescriptors();
+
+        assertEquals(TorLibApi.CacheUpdateStatus.DOWNLOADED_FULL_CACHE, newUpdater().update(cacheDir));
+        File generation = CacheGenerations.current(cacheDir);
+        assertArrayEquals(toUdesc, readFile(new File(generation, TorLibApi.MICRODESCRIPTORS_FILENAME)));
+
+        // No staging directory is left behind
+        File[] generations = new File(cacheDir, CacheGenerations.GENERATIONS_DIRNAME).listFiles();
+        for (File dir : generations) {
+            assertFalse(dir.getName(), dir.getName().endsWith(CacheGenerations.STAGING_SUFFIX));
+        }
+    }
+}
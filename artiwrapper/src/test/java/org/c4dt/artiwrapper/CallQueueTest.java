@@ -0,0 +1,141 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class CallQueueTest {
+    private static final long AGING_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static class Call extends Dispatcher.AsyncCall {
+        Call(Client.RequestPriority priority, long timeoutNanos) {
+            super("https://example.com", priority, timeoutNanos);
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        void reject(Exception e) {
+        }
+    }
+
+    @Test
+    public void callsAreOrderedByPriorityThenDeadlineThenFifo() {
+        CallQueue queue = new CallQueue();
+        long now = System.nanoTime();
+        Call background = new Call(Client.RequestPriority.BACKGROUND, 0);
+        Call normal1 = new Call(Client.RequestPriority.NORMAL, 0);
+        Call normal2 = new Call(Client.RequestPriority.NORMAL, 0);
+        Call normalLate = new Call(Client.RequestPriority.NORMAL, TimeUnit.SECONDS.toNanos(20));
+        Call normalSoon = new Call(Client.RequestPriority.NORMAL, TimeUnit.SECONDS.toNanos(10));
+        Call interactive = new Call(Client.RequestPriority.INTERACTIVE, 0);
+        for (Call call : new Call[]{background, normal1, normal2, normalLate, normalSoon, interactive}) {
+            queue.add(call, now, AGING_NANOS);
+        }
+
+        assertEquals(6, queue.size());
+        assertSame(interactive, queue.poll());
+        assertSame(normalSoon, queue.poll());
+        assertSame(normalLate, queue.poll());
+        assertSame(normal1, queue.poll());
+        assertSame(normal2, queue.poll());
+        assertSame(background, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void waitingCallsMoveUpLazily() {
+        CallQueue queue = new CallQueue();
+        Call background = new Call(Client.RequestPriority.BACKGROUND, 0);
+        long created = background.createdNanos;
+        queue.add(background, created, AGING_NANOS);
+        Call normal = new Call(Client.RequestPriority.NORMAL, 0);
+        queue.add(normal, created, AGING_NANOS);
+        assertSame(normal, queue.peek());
+
+        // Waited two aging periods: the background call overtakes the normal one, which only
+        // moved up one class
+        queue.age(created + 2 * AGING_NANOS, AGING_NANOS);
+        assertSame(background, queue.poll());
+        assertSame(normal, queue.poll());
+    }
+
+    @Test
+    public void lowestUsesEffectivePriority() throws InterruptedException {
+        CallQueue queue = new CallQueue();
+        long agingNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        Call background = new Call(Client.RequestPriority.BACKGROUND, 0);
+        queue.add(background, background.createdNanos, agingNanos);
+        Thread.sleep(25);
+        Call normal = new Call(Client.RequestPriority.NORMAL, 0);
+        queue.add(normal, normal.createdNanos, agingNanos);
+
+        // The background call has waited two aging periods, the normal one none
+        assertSame(normal, queue.lowest(normal.createdNanos, agingNanos));
+        assertSame(background, queue.poll());
+    }
+
+    @Test
+    public void expiredCallsArePolled() {
+        CallQueue queue = new CallQueue();
+        Call expiring = new Call(Client.RequestPriority.BACKGROUND, 1);
+        Call noDeadline = new Call(Client.RequestPriority.BACKGROUND, 0);
+        long now = System.nanoTime();
+        queue.add(expiring, now, AGING_NANOS);
+        queue.add(noDeadline, now, AGING_NANOS);
+
+        List<Dispatcher.AsyncCall> expired = new ArrayList<>();
+        queue.pollExpired(expiring.deadlineNanos, expired);
+        assertEquals(1, expired.size());
+        assertSame(expiring, expired.get(0));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void skippedCallsKeepTheirPlace() {
+        CallQueue queue = new CallQueue();
+        long now = System.nanoTime();
+        Call first = new Call(Client.RequestPriority.NORMAL, 0);
+        Call second = new Call(Client.RequestPriority.NORMAL, 0);
+        queue.add(first, now, AGING_NANOS);
+        queue.add(second, now, AGING_NANOS);
+
+        queue.skip();
+        assertSame(second, queue.poll());
+        assertNull(queue.peek());
+        queue.unskip();
+        assertSame(first, queue.poll());
+    }
+
+    @Test
+    public void removedCallsAreSkipped() {
+        CallQueue queue = new CallQueue();
+        long now = System.nanoTime();
+        List<Call> calls = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Call call = new Call(Client.RequestPriority.values()[i % 3], 0);
+            calls.add(call);
+            queue.add(call, now, AGING_NANOS);
+        }
+        // Removes enough calls to rebuild the queue
+        for (int i = 0; i < calls.size() - 1; i++) {
+            assertTrue(queue.remove(calls.get(i)));
+        }
+        assertFalse(queue.remove(calls.get(0)));
+
+        assertEquals(1, queue.size());
+        assertSame(calls.get(calls.size() - 1), queue.poll());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,177 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class CallbackDispatcherTest {
+    /**
+     * Executor keeping the tasks until they are run by the test.
+     */
+    private static final class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        synchronized Runnable next() {
+            return tasks.remove(0);
+        }
+    }
+
+    /**
+     * Transport answering right away, counting the requests it sends.
+     */
+    private static final class CountingTransport implements Transport {
+        final CountDownLatch sent;
+
+        CountingTransport(int count) {
+            sent = new CountDownLatch(count);
+        }
+
+        @Override
+        public HttpResponse send(Client.TorRequestMethod method, String url, Map<String, List<String>> headers,
+                                 byte[] body) {
+            sent.countDown();
+            return new HttpResponse(200, "HTTP/1.1", Headers.of(), new byte[0]);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public boolean close() {
+            return true;
+        }
+    }
+
+    @Test
+    public void slowCallbacksDoNotHoldRequests() throws Exception {
+        ExecutorService requestExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+        CountingTransport transport = new CountingTransport(5);
+        Client client = new Client(new Dispatcher(requestExecutor), transport);
+        client.setCallbackDispatcher(new CallbackDispatcher(callbackExecutor));
+
+        final CountDownLatch done = new CountDownLatch(5);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        try {
+            for (int i = 0; i < 5; i++) {
+                client.asyncTorRequest(Client.TorRequestMethod.GET, "https://example.com/" + i, new HashMap<>(),
+                        new byte[0], result -> {
+                            try {
+                                // Only returns once all the requests have been sent
+                                if (!transport.sent.await(5, TimeUnit.SECONDS)) {
+                                    errors.add(new AssertionError("Requests held by the callback"));
+                                }
+                            } catch (InterruptedException e) {
+                                errors.add(e);
+                            }
+                            done.countDown();
+                        });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertTrue(errors.toString(), errors.isEmpty());
+            assertEquals(5, client.getCallbackDispatcher().getQueueWait().getCount());
+        } finally {
+            client.close();
+            requestExecutor.shutdown();
+            callbackExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void eachCallbackHasItsOwnTaskWithoutBatching() {
+        ManualExecutor executor = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor);
+        final List<Integer> delivered = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int n = i;
+            dispatcher.dispatch(() -> delivered.add(n));
+        }
+        assertEquals(3, executor.tasks.size());
+        assertEquals(3, dispatcher.pendingCallbacksCount());
+
+        while (!executor.tasks.isEmpty()) {
+            executor.next().run();
+        }
+        assertEquals(3, delivered.size());
+        assertEquals(3, dispatcher.getBatchSizes().getCount());
+        assertEquals(1, dispatcher.getBatchSizes().getMax());
+    }
+
+    @Test
+    public void pendingCallbacksAreBatched() {
+        ManualExecutor executor = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor);
+        dispatcher.setMaxBatchSize(4);
+        final List<Integer> delivered = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final int n = i;
+            dispatcher.dispatch(() -> delivered.add(n));
+        }
+        assertEquals(1, executor.tasks.size());
+
+        executor.next().run();
+        assertEquals(4, delivered.size());
+        // The last callback gets its own batch
+        assertEquals(1, executor.tasks.size());
+        executor.next().run();
+        assertEquals(5, delivered.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) delivered.get(i));
+        }
+
+        // Nothing is pending: the next callback schedules a new task
+        dispatcher.dispatch(() -> delivered.add(5));
+        assertEquals(1, executor.tasks.size());
+        executor.next().run();
+        assertEquals(6, delivered.size());
+
+        assertEquals(3, dispatcher.getBatchSizes().getCount());
+        assertEquals(4, dispatcher.getBatchSizes().getMax());
+        assertEquals(6, dispatcher.getQueueWait().getCount());
+        assertEquals(6, dispatcher.getRunTime().getCount());
+    }
+
+    @Test
+    public void failingCallbackDoesNotStopTheBatch() {
+        ManualExecutor executor = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor);
+        dispatcher.setMaxBatchSize(4);
+        final List<Integer> delivered = new ArrayList<>();
+        dispatcher.dispatch(() -> {
+            throw new IllegalStateException("Callback failed");
+        });
+        dispatcher.dispatch(() -> delivered.add(1));
+        executor.next().run();
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void rejectedCallbacksRunOnTheCallingThread() {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(command -> {
+            throw new RejectedExecutionException("Shut down");
+        });
+        final List<Thread> threads = new ArrayList<>();
+        dispatcher.dispatch(() -> threads.add(Thread.currentThread()));
+        assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+    }
+}
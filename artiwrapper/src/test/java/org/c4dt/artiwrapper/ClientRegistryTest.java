@@ -0,0 +1,111 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ClientRegistryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void oneNativeClientPerDirectory() throws TorLibException {
+        String key = ClientRegistry.key(folder.getRoot().getPath());
+        String otherPath = ClientRegistry.key(new File(folder.getRoot(), "sub/..").getPath());
+        assertEquals(key, otherPath);
+
+        AtomicInteger created = new AtomicInteger();
+        ClientRegistry.Factory factory = () -> 100 + created.incrementAndGet();
+
+        assertEquals(101, ClientRegistry.acquire(key, factory));
+        assertEquals(101, ClientRegistry.acquire(otherPath, factory));
+        assertEquals(1, created.get());
+        assertEquals(2, ClientRegistry.viewCount(key));
+
+        assertFalse(ClientRegistry.release(key));
+        assertTrue(ClientRegistry.release(key));
+        assertEquals(0, ClientRegistry.viewCount(key));
+
+        // A new native client is created once the previous one has been released
+        assertEquals(102, ClientRegistry.acquire(key, factory));
+        assertTrue(ClientRegistry.release(key));
+    }
+
+    @Test
+    public void failedCreationIsNotRegistered() {
+        String key = ClientRegistry.key(folder.getRoot().getPath());
+        try {
+            ClientRegistry.acquire(key, () -> {
+                throw new TorLibException("directory cache does not exist");
+            });
+        } catch (TorLibException e) {
+            // expected
+        }
+        assertEquals(0, ClientRegistry.viewCount(key));
+    }
+
+    @Test
+    public void creationDoesNotBlockOtherDirectories() throws Exception {
+        String key = ClientRegistry.key(folder.newFolder("slow").getPath());
+        String otherKey = ClientRegistry.key(folder.newFolder("other").getPath());
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger created = new AtomicInteger();
+        ClientRegistry.Factory slowFactory = () -> {
+            created.incrementAndGet();
+            creating.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 201;
+        };
+
+        AtomicLong first = new AtomicLong();
+        AtomicLong second = new AtomicLong();
+        Thread creator = new Thread(() -> {
+            try {
+                first.set(ClientRegistry.acquire(key, slowFactory));
+            } catch (TorLibException e) {
+                // first stays 0
+            }
+        });
+        creator.start();
+        assertTrue(creating.await(10, TimeUnit.SECONDS));
+
+        // Another directory is served while the first client is being created
+        assertEquals(301, ClientRegistry.acquire(otherKey, () -> 301));
+        assertTrue(ClientRegistry.release(otherKey));
+
+        // The same directory waits for the client being created
+        Thread waiter = new Thread(() -> {
+            try {
+                second.set(ClientRegistry.acquire(key, slowFactory));
+            } catch (TorLibException e) {
+                // second stays 0
+            }
+        });
+        waiter.start();
+        release.countDown();
+        creator.join(10000);
+        waiter.join(10000);
+
+        assertEquals(201, first.get());
+        assertEquals(201, second.get());
+        assertEquals(1, created.get());
+        assertEquals(2, ClientRegistry.viewCount(key));
+        assertFalse(ClientRegistry.release(key));
+        assertTrue(ClientRegistry.release(key));
+    }
+}
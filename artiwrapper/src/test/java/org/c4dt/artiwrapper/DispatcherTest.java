@@ -0,0 +1,369 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DispatcherTest {
+    private static class BlockingCall extends Dispatcher.AsyncCall {
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+        private final CountDownLatch done;
+
+        BlockingCall(String url, CountDownLatch started, CountDownLatch release, CountDownLatch done) {
+            super(url);
+            this.started = started;
+            this.release = release;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        }
+
+        @Override
+        void reject(Exception e) {
+        }
+    }
+
+    private static class RecordingCall extends Dispatcher.AsyncCall {
+        volatile Thread ranOn;
+        volatile Exception rejection;
+        private final List<RecordingCall> runOrder;
+
+        RecordingCall(String url) {
+            super(url);
+            runOrder = null;
+        }
+
+        RecordingCall(String url, Client.RequestPriority priority, long timeoutMillis, List<RecordingCall> runOrder) {
+            super(url, priority, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            this.runOrder = runOrder;
+        }
+
+        @Override
+        public void run() {
+            ranOn = Thread.currentThread();
+            if (runOrder != null) {
+                runOrder.add(this);
+            }
+        }
+
+        @Override
+        void reject(Exception e) {
+            rejection = e;
+        }
+    }
+
+    private static class RecordingPressureListener implements Dispatcher.PressureListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public synchronized void onPressure(int queuedCalls, int maxQueuedCalls) {
+            events.add("pressure " + queuedCalls + "/" + maxQueuedCalls);
+        }
+
+        @Override
+        public synchronized void onPressureRelieved(int queuedCalls) {
+            events.add("relieved " + queuedCalls);
+        }
+    }
+
+    /**
+     * Create a dispatcher running one call at a time, whose queue holds two calls, and occupy its slot.
+     */
+    private static Dispatcher fullDispatcher(ExecutorService executor, Dispatcher.OverflowPolicy policy,
+                                             CountDownLatch release, RecordingCall... queued)
+            throws InterruptedException {
+        Dispatcher dispatcher = new Dispatcher(executor);
+        dispatcher.setMaxRequests(1);
+        dispatcher.setMaxQueuedRequests(2);
+        dispatcher.setOverflowPolicy(policy);
+        CountDownLatch started = new CountDownLatch(1);
+        dispatcher.enqueue(new BlockingCall("https://example.com/", started, release, new CountDownLatch(1)));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (RecordingCall call : queued) {
+            dispatcher.enqueue(call);
+        }
+        assertEquals(2, dispatcher.queuedCallsCount());
+        return dispatcher;
+    }
+
+    private static void awaitIdle(Dispatcher dispatcher) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (dispatcher.runningCallsCount() > 0 || dispatcher.queuedCallsCount() > 0) {
+            assertTrue("Dispatcher still busy", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void hostOf() {
+        assertEquals("example.com", Dispatcher.hostOf("https://example.com/path?q=1"));
+        assertEquals("", Dispatcher.hostOf("not:/valid"));
+        assertEquals("", Dispatcher.hostOf(null));
+    }
+
+    @Test
+    public void limitsRunningCalls() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Dispatcher dispatcher = new Dispatcher(executor);
+        dispatcher.setMaxRequests(3);
+        dispatcher.setMaxRequestsPerHost(2);
+
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+
+        // Only two of these can run because of the per-host limit
+        for (int i = 0; i < 3; i++) {
+            dispatcher.enqueue(new BlockingCall("https://a.example.com/" + i, started, release, done));
+        }
+        // Only one of these can run because of the global limit
+        for (int i = 0; i < 2; i++) {
+            dispatcher.enqueue(new BlockingCall("https://b.example.com/" + i, started, release, done));
+        }
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(3, dispatcher.runningCallsCount());
+        assertEquals(2, dispatcher.queuedCallsCount());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, dispatcher.runningCallsCount());
+        assertEquals(0, dispatcher.queuedCallsCount());
+    }
+
+    @Test
+    public void rejectedCallsAreReported() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        Dispatcher dispatcher = new Dispatcher(executor);
+
+        AtomicInteger rejected = new AtomicInteger();
+        dispatcher.enqueue(new Dispatcher.AsyncCall("https://example.com") {
+            @Override
+            public void run() {
+            }
+
+            @Override
+            void reject(Exception e) {
+                rejected.incrementAndGet();
+            }
+        });
+
+        assertEquals(1, rejected.get());
+        assertEquals(0, dispatcher.runningCallsCount());
+    }
+
+    @Test
+    public void fullQueueRejectsNewCalls() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingCall first = new RecordingCall("https://example.com/1");
+        RecordingCall second = new RecordingCall("https://example.com/2");
+        RecordingPressureListener listener = new RecordingPressureListener();
+        Dispatcher dispatcher = new Dispatcher(executor);
+        dispatcher.setPressureListener(listener);
+        dispatcher.setMaxRequests(1);
+        dispatcher.setMaxQueuedRequests(2);
+        CountDownLatch started = new CountDownLatch(1);
+        dispatcher.enqueue(new BlockingCall("https://example.com/", started, release, new CountDownLatch(1)));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        dispatcher.enqueue(first);
+        dispatcher.enqueue(second);
+
+        RecordingCall third = new RecordingCall("https://example.com/3");
+        dispatcher.enqueue(third);
+        assertTrue(third.rejection instanceof RejectedExecutionException);
+        assertNull(third.ranOn);
+        assertEquals(1, dispatcher.rejectedCallsCount());
+        assertEquals(2, dispatcher.peakQueuedCallsCount());
+
+        release.countDown();
+        awaitIdle(dispatcher);
+        executor.shutdown();
+        assertNull(first.rejection);
+        assertNull(second.rejection);
+        assertEquals(Arrays.asList("pressure 2/2", "relieved 1"), listener.events);
+    }
+
+    @Test
+    public void fullQueueDropsOldestCall() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingCall first = new RecordingCall("https://example.com/1");
+        RecordingCall second = new RecordingCall("https://example.com/2");
+        Dispatcher dispatcher = fullDispatcher(executor, Dispatcher.OverflowPolicy.DROP_OLDEST, release, first, second);
+
+        RecordingCall third = new RecordingCall("https://example.com/3");
+        dispatcher.enqueue(third);
+        assertTrue(first.rejection instanceof RejectedExecutionException);
+        assertEquals(1, dispatcher.droppedCallsCount());
+        assertEquals(2, dispatcher.queuedCallsCount());
+
+        release.countDown();
+        awaitIdle(dispatcher);
+        executor.shutdown();
+        assertNull(first.ranOn);
+        assertNotNull(second.ranOn);
+        assertNotNull(third.ranOn);
+    }
+
+    @Test
+    public void fullQueueBlocksCaller() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch release = new CountDownLatch(1);
+        Dispatcher dispatcher = fullDispatcher(executor, Dispatcher.OverflowPolicy.BLOCK, release,
+                new RecordingCall("https://example.com/1"), new RecordingCall("https://example.com/2"));
+
+        // Times out while the queue stays full
+        dispatcher.setMaxBlockMillis(100);
+        RecordingCall timedOut = new RecordingCall("https://example.com/3");
+        long start = System.nanoTime();
+        dispatcher.enqueue(timedOut);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(timedOut.rejection instanceof RejectedExecutionException);
+        assertEquals(1, dispatcher.rejectedCallsCount());
+
+        // Admitted once the running call completes
+        dispatcher.setMaxBlockMillis(10 * 1000);
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            release.countDown();
+        }).start();
+        RecordingCall admitted = new RecordingCall("https://example.com/4");
+        dispatcher.enqueue(admitted);
+        assertNull(admitted.rejection);
+
+        awaitIdle(dispatcher);
+        executor.shutdown();
+        assertNotNull(admitted.ranOn);
+    }
+
+    @Test
+    public void fullQueueRunsCallOnCaller() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch release = new CountDownLatch(1);
+        Dispatcher dispatcher = fullDispatcher(executor, Dispatcher.OverflowPolicy.CALLER_RUNS, release,
+                new RecordingCall("https://example.com/1"), new RecordingCall("https://example.com/2"));
+
+        RecordingCall third = new RecordingCall("https://example.com/3");
+        dispatcher.enqueue(third);
+        assertEquals(Thread.currentThread(), third.ranOn);
+        assertEquals(1, dispatcher.callerRunsCallsCount());
+        assertEquals(1, dispatcher.runningCallsCount());
+
+        release.countDown();
+        awaitIdle(dispatcher);
+        executor.shutdown();
+    }
+
+    /**
+     * Create a dispatcher running one call at a time, and occupy its slot.
+     */
+    private static Dispatcher busyDispatcher(ExecutorService executor, CountDownLatch release)
+            throws InterruptedException {
+        Dispatcher dispatcher = new Dispatcher(executor);
+        dispatcher.setMaxRequests(1);
+        CountDownLatch started = new CountDownLatch(1);
+        dispatcher.enqueue(new BlockingCall("https://example.com/", started, release, new CountDownLatch(1)));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return dispatcher;
+    }
+
+    @Test
+    public void callsAreServedByPriorityThenDeadline() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch release = new CountDownLatch(1);
+        Dispatcher dispatcher = busyDispatcher(executor, release);
+        dispatcher.setAgingMillis(0);
+
+        List<RecordingCall> runOrder = Collections.synchronizedList(new ArrayList<>());
+        RecordingCall background = new RecordingCall("https://example.com/sync", Client.RequestPriority.BACKGROUND, 0, runOrder);
+        RecordingCall normal = new RecordingCall("https://example.com/feed", Client.RequestPriority.NORMAL, 0, runOrder);
+        RecordingCall interactive = new RecordingCall("https://example.com/page", Client.RequestPriority.INTERACTIVE, 0, runOrder);
+        RecordingCall lateDeadline = new RecordingCall("https://example.com/search", Client.RequestPriority.INTERACTIVE, 60_000, runOrder);
+        RecordingCall earlyDeadline = new RecordingCall("https://example.com/search", Client.RequestPriority.INTERACTIVE, 30_000, runOrder);
+        for (RecordingCall call : Arrays.asList(background, normal, interactive, lateDeadline, earlyDeadline)) {
+            dispatcher.enqueue(call);
+        }
+
+        release.countDown();
+        awaitIdle(dispatcher);
+        executor.shutdown();
+        assertEquals(Arrays.asList(earlyDeadline, lateDeadline, interactive, normal, background), runOrder);
+    }
+
+    @Test
+    public void waitingCallsAreAged() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch release = new CountDownLatch(1);
+        Dispatcher dispatcher = busyDispatcher(executor, release);
+        dispatcher.setAgingMillis(100);
+
+        List<RecordingCall> runOrder = Collections.synchronizedList(new ArrayList<>());
+        RecordingCall background = new RecordingCall("https://example.com/sync", Client.RequestPriority.BACKGROUND, 0, runOrder);
+        dispatcher.enqueue(background);
+        // Waiting for two aging periods raises the background call to the interactive class
+        Thread.sleep(250);
+        RecordingCall normal = new RecordingCall("https://example.com/feed", Client.RequestPriority.NORMAL, 0, runOrder);
+        dispatcher.enqueue(normal);
+
+        release.countDown();
+        awaitIdle(dispatcher);
+        executor.shutdown();
+        assertEquals(Arrays.asList(background, normal), runOrder);
+    }
+
+    @Test
+    public void expiredCallsAreDropped() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch release = new CountDownLatch(1);
+        Dispatcher dispatcher = busyDispatcher(executor, release);
+
+        List<RecordingCall> runOrder = Collections.synchronizedList(new ArrayList<>());
+        RecordingCall expiring = new RecordingCall("https://example.com/a", Client.RequestPriority.INTERACTIVE, 50, runOrder);
+        RecordingCall patient = new RecordingCall("https://example.com/b", Client.RequestPriority.NORMAL, 0, runOrder);
+        dispatcher.enqueue(expiring);
+        dispatcher.enqueue(patient);
+        Thread.sleep(100);
+
+        release.countDown();
+        awaitIdle(dispatcher);
+        executor.shutdown();
+        assertTrue(expiring.rejection instanceof TimeoutException);
+        assertNull(expiring.ranOn);
+        assertEquals(Collections.singletonList(patient), runOrder);
+        assertEquals(1, dispatcher.expiredCallsCount());
+    }
+}
@@ -0,0 +1,89 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HeadersTest {
+    @Test
+    public void caseInsensitiveLookup() {
+        Headers headers = Headers.of("Content-Type", "text/plain", "x-multi", "a", "X-Multi", "b");
+
+        assertEquals(3, headers.size());
+        assertEquals("text/plain", headers.get("content-type"));
+        assertEquals(Arrays.asList("a", "b"), headers.values("X-MULTI"));
+        assertNull(headers.get("missing"));
+        assertEquals(Collections.emptyList(), headers.values("missing"));
+    }
+
+    @Test
+    public void multimapIsBuiltOnce() {
+        Headers headers = Headers.of("a", "1", "b", "2", "a", "3");
+
+        Map<String, List<String>> map = headers.toMultimap();
+        assertEquals(Arrays.asList("1", "3"), map.get("a"));
+        assertEquals(Collections.singletonList("2"), map.get("b"));
+        assertSame(map, headers.toMultimap());
+    }
+
+    @Test
+    public void roundTripFromMap() {
+        Map<String, List<String>> map = new HashMap<>();
+        map.put("header-one", Collections.singletonList("hello"));
+        map.put("header-two", Arrays.asList("how", "are", "you"));
+
+        Headers headers = Headers.of(map);
+        assertEquals(4, headers.size());
+        assertEquals(map, headers.toMultimap());
+    }
+
+    @Test
+    public void builder() {
+        Headers headers = Headers.of("Range", "bytes=0-9", "Accept", "*/*", "range", "bytes=10-19")
+                .newBuilder()
+                .set("Range", "bytes=20-29")
+                .add("Accept", "text/plain")
+                .build();
+
+        assertEquals(Collections.singletonList("bytes=20-29"), headers.values("range"));
+        assertEquals(Arrays.asList("*/*", "text/plain"), headers.values("accept"));
+    }
+
+    @Test
+    public void responseHeadersAreConvertedLazily() {
+        HttpResponse response = new HttpResponse(200, "HTTP/1.1", Headers.of("ETag", "\"x\""), new byte[0]);
+        assertEquals("\"x\"", response.headers().get("etag"));
+        assertEquals(Collections.singletonList("\"x\""), response.getHeaders().get("ETag"));
+    }
+
+    @Test
+    public void responseHeaderMapIsMutable() {
+        HttpResponse response = new HttpResponse(200, "HTTP/1.1", Headers.of("ETag", "\"x\""), new byte[0]);
+        Map<String, List<String>> map = response.getHeaders();
+        map.put("X-Seen", Collections.singletonList("1"));
+        map.get("ETag").add("\"y\"");
+
+        assertSame(map, response.getHeaders());
+        assertEquals(Arrays.asList("\"x\"", "\"y\""), response.getHeaders().get("ETag"));
+    }
+
+    @Test
+    public void responseHeaderMapIsDetached() {
+        HttpResponse before = new HttpResponse(200, "HTTP/1.1", Headers.of("ETag", "\"x\""), new byte[0]);
+        before.getHeaders().put("X-Seen", Collections.singletonList("1"));
+        assertNull(before.headers().get("X-Seen"));
+
+        HttpResponse after = new HttpResponse(200, "HTTP/1.1", Headers.of("ETag", "\"x\""), new byte[0]);
+        after.headers();
+        after.getHeaders().put("X-Seen", Collections.singletonList("1"));
+        assertNull(after.headers().get("X-Seen"));
+    }
+}
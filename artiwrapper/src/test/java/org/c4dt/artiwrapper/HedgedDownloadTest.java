@@ -0,0 +1,204 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class HedgedDownloadTest {
+    private static final String PATH = "/churn.txt";
+    private static final byte[] BODY = "relay1\nrelay2\n".getBytes();
+    private static final long HEDGE_DELAY_MILLIS = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<StandInHttpServer> servers = new ArrayList<>();
+    private final List<CacheDownloader> downloaders = new ArrayList<>();
+    private MirrorStats stats;
+
+    /**
+     * Random source which always picks the first of the remaining mirrors.
+     */
+    private static final Random FIRST = new Random() {
+        @Override
+        public double nextDouble() {
+            return 0;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        stats = new MirrorStats(HEDGE_DELAY_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            StandInHttpServer server = new StandInHttpServer();
+            server.put(PATH, BODY, "\"v1\"", null);
+            servers.add(server);
+            downloaders.add(new CacheDownloader(server.url(PATH), new File(folder.newFolder("mirror" + i), "churn.txt")));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (StandInHttpServer server : servers) {
+            server.close();
+        }
+    }
+
+    private HedgedDownload newDownload(HedgedDownload.Verifier verifier) {
+        return new HedgedDownload(downloaders, Arrays.asList(1, 1, 1), stats, verifier, FIRST);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return RequestBody.readFully(in, (int) file.length());
+        }
+    }
+
+    @Test
+    public void fastMirrorIsNotHedged() throws Exception {
+        HedgedDownload.Result result = newDownload(null).download(false);
+
+        assertSame(downloaders.get(0), result.downloader);
+        assertTrue(result.modified);
+        assertArrayEquals(BODY, readFile(result.downloader.getTarget()));
+        assertTrue(servers.get(1).requests().isEmpty());
+        assertTrue(servers.get(2).requests().isEmpty());
+    }
+
+    @Test
+    public void slowMirrorIsHedged() throws Exception {
+        servers.get(0).setDelayMillis(1500);
+
+        long start = System.currentTimeMillis();
+        HedgedDownload.Result result = newDownload(null).download(false);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertSame(downloaders.get(1), result.downloader);
+        assertArrayEquals(BODY, readFile(result.downloader.getTarget()));
+        assertTrue("Took " + elapsed + " ms", elapsed < 1500);
+        assertEquals(1, servers.get(1).requests().size());
+        // Only two downloads at a time
+        assertTrue(servers.get(2).requests().isEmpty());
+
+        // The slow mirror is now expected to be slower than the fast one
+        assertTrue(stats.expectedLatencyMillis(servers.get(0).url(PATH)) >
+                stats.expectedLatencyMillis(servers.get(1).url(PATH)));
+    }
+
+    @Test
+    public void failedMirrorIsReplacedRightAway() throws Exception {
+        StandInHttpServer failing = new StandInHttpServer();
+        servers.add(failing);
+        downloaders.set(0, new CacheDownloader(failing.url("/missing"), new File(folder.newFolder(), "churn.txt")));
+
+        long start = System.currentTimeMillis();
+        HedgedDownload.Result result = newDownload(null).download(false);
+
+        assertSame(downloaders.get(1), result.downloader);
+        assertTrue(System.currentTimeMillis() - start < HEDGE_DELAY_MILLIS);
+    }
+
+    @Test
+    public void invalidDownloadIsDiscarded() throws Exception {
+        servers.get(0).put(PATH, "corrupted".getBytes(), "\"v1\"", null);
+        HedgedDownload.Verifier verifier = file -> {
+            if (!Arrays.equals(BODY, readFile(file))) {
+                throw new IOException("Invalid file");
+            }
+        };
+
+        HedgedDownload.Result result = newDownload(verifier).download(false);
+        assertSame(downloaders.get(1), result.downloader);
+        assertArrayEquals(BODY, readFile(result.downloader.getTarget()));
+    }
+
+    @Test
+    public void notModifiedCompletesDownload() throws Exception {
+        newDownload(null).download(false).downloader.commit();
+
+        HedgedDownload.Result result = newDownload(null).download(true);
+        assertSame(downloaders.get(0), result.downloader);
+        assertFalse(result.modified);
+    }
+
+    @Test
+    public void allMirrorsFail() throws Exception {
+        for (StandInHttpServer server : servers) {
+            server.put(PATH, "corrupted".getBytes(), null, null);
+        }
+        try {
+            newDownload(file -> {
+                throw new IOException("Invalid file");
+            }).download(false);
+            fail("Download succeeded");
+        } catch (IOException e) {
+            assertEquals("Invalid file", e.getMessage());
+        }
+        for (StandInHttpServer server : servers) {
+            assertEquals(1, server.requests().size());
+        }
+    }
+
+    @Test
+    public void fastMirrorsArePreferred() {
+        List<String> urls = Arrays.asList("http://slow.example", "http://fast.example");
+        for (int i = 0; i < 10; i++) {
+            stats.recordLatency(urls.get(0), 1000);
+            stats.recordLatency(urls.get(1), 10);
+        }
+        Random random = new Random(42);
+        int fastFirst = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (stats.order(urls, Arrays.asList(1, 1), random).get(0) == 1) {
+                fastFirst++;
+            }
+        }
+        assertTrue("Fast mirror first " + fastFirst + " times", fastFirst > 950);
+
+        // Weights are taken into account
+        fastFirst = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (stats.order(urls, Arrays.asList(1000, 1), random).get(0) == 1) {
+                fastFirst++;
+            }
+        }
+        assertTrue("Fast mirror first " + fastFirst + " times", fastFirst < 200);
+    }
+
+    @Test
+    public void hedgeDelayAdaptsToLatency() {
+        String url = "http://mirror.example";
+        assertEquals(HEDGE_DELAY_MILLIS, stats.hedgeDelayMillis(url));
+
+        for (int i = 0; i < 50; i++) {
+            stats.recordLatency(url, 300);
+        }
+        long steady = stats.hedgeDelayMillis(url);
+        assertTrue("Delay " + steady, steady >= 300 && steady < 350);
+
+        // Jitter widens the delay
+        for (int i = 0; i < 50; i++) {
+            stats.recordLatency(url, i % 2 == 0 ? 100 : 500);
+        }
+        assertTrue(stats.hedgeDelayMillis(url) > steady);
+        assertTrue(stats.hedgeDelayMillis(url) <= MirrorStats.MAX_HEDGE_DELAY_MILLIS);
+    }
+}
@@ -0,0 +1,62 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramMetricsListenerTest {
+    private static RequestMetrics success(long queueWaitNanos, long sendNanos, int responseBytes) {
+        RequestMetrics metrics = new RequestMetrics(Client.TorRequestMethod.GET, "https://example.com/", queueWaitNanos, 0);
+        metrics.sendNanos = sendNanos;
+        metrics.totalNanos = sendNanos + 10;
+        metrics.status = 200;
+        metrics.responseBytes = responseBytes;
+        return metrics;
+    }
+
+    @Test
+    public void aggregatesRequests() {
+        HistogramMetricsListener listener = new HistogramMetricsListener();
+        for (int i = 1; i <= 100; i++) {
+            listener.onRequestCompleted(success(-1, i * 1_000_000L, 100));
+        }
+        // Served from the cache: no queue wait nor native send
+        listener.onRequestCompleted(success(-1, -1, 50));
+        listener.onRequestCompleted(success(2_000, 1_000, 0));
+
+        HistogramMetricsListener.Snapshot snapshot = listener.snapshot();
+        assertEquals(102, snapshot.getRequestCount());
+        assertEquals(0, snapshot.getErrorCount());
+        assertEquals(10_050, snapshot.getResponseBytes());
+        assertEquals(1, snapshot.getQueueWait().getCount());
+        assertEquals(101, snapshot.getSend().getCount());
+        assertEquals(102, snapshot.getTotal().getCount());
+        assertEquals(100_000_000, snapshot.getSend().getMax());
+        long p99 = snapshot.getSend().getP99();
+        assertTrue("p99 " + p99, p99 >= 99_000_000 && p99 <= 100_000_000);
+    }
+
+    @Test
+    public void countsErrorsByClass() {
+        HistogramMetricsListener listener = new HistogramMetricsListener();
+        RequestMetrics metrics = new RequestMetrics(Client.TorRequestMethod.POST, "https://example.com/upload", 1_000, 42);
+        metrics.totalNanos = 5_000;
+        metrics.error = new TorLibException("Connection refused");
+        listener.onRequestCompleted(metrics);
+        listener.onRequestCompleted(metrics);
+
+        assertEquals("TorLibException", metrics.getErrorClass());
+        assertEquals("example.com", metrics.getHost());
+        assertEquals(-1, metrics.getSendNanos());
+
+        HistogramMetricsListener.Snapshot snapshot = listener.snapshot();
+        assertEquals(2, snapshot.getErrorCount());
+        assertEquals(Long.valueOf(2), snapshot.getErrorCounts().get("TorLibException"));
+        assertNull(snapshot.getErrorCounts().get("IOException"));
+        assertEquals(84, snapshot.getRequestBytes());
+        assertEquals(0, snapshot.getResponseBytes());
+        assertEquals(0, snapshot.getSend().getCount());
+    }
+}
@@ -0,0 +1,120 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class LoopbackTransportTest {
+    private static final byte[] BODY = "Hello, Tor!".getBytes();
+
+    private StandInHttpServer server;
+    private LoopbackTransport transport;
+    private Client client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInHttpServer();
+        server.put("/hello", BODY, "\"v1\"", null);
+        transport = new LoopbackTransport(server.url(""));
+        client = new Client(new Dispatcher(), transport);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void requestIsSentToTheLocalServer() throws Exception {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Accept", Collections.singletonList("text/plain"));
+        HttpResponse response = client.syncTorRequest(Client.TorRequestMethod.GET, "https://example.com/hello",
+                headers, new byte[0]);
+
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(BODY, response.getBody());
+        assertEquals("\"v1\"", response.headers().get("ETag"));
+        assertEquals(1, server.requests().size());
+        assertEquals("/hello", server.requests().get(0).path);
+        assertEquals("text/plain", server.requests().get(0).header("Accept"));
+
+        assertEquals(404, client.syncTorRequest(Client.TorRequestMethod.GET, "https://example.com/missing",
+                new HashMap<>(), new byte[0]).getStatus());
+    }
+
+    @Test
+    public void latencyIsInjected() throws Exception {
+        transport.setLatencyMillis(300);
+        long start = System.nanoTime();
+        client.syncTorRequest(Client.TorRequestMethod.GET, "https://example.com/hello", new HashMap<>(), new byte[0]);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test
+    public void bandwidthIsLimited() throws Exception {
+        byte[] large = new byte[64 * 1024];
+        server.put("/large", large, null, null);
+        transport.setBandwidthBytesPerSecond(128 * 1024);
+
+        long start = System.nanoTime();
+        HttpResponse response = client.syncTorRequest(Client.TorRequestMethod.GET, "https://example.com/large",
+                new HashMap<>(), new byte[0]);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(large.length, response.getBody().length);
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= 450);
+    }
+
+    @Test
+    public void asyncRequestsReportMetrics() throws Exception {
+        final List<RequestMetrics> reported = Collections.synchronizedList(new ArrayList<>());
+        client.setMetricsListener(reported::add);
+        transport.setLatencyMillis(50);
+
+        List<TorRequestFuture<HttpResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(client.sendAsync(Client.TorRequestMethod.GET, "https://example.com/hello",
+                    new HashMap<>(), new byte[0]));
+        }
+        for (TorRequestFuture<HttpResponse> future : futures) {
+            assertArrayEquals(BODY, future.get(5, TimeUnit.SECONDS).getBody());
+        }
+
+        assertEquals(4, reported.size());
+        for (RequestMetrics metrics : reported) {
+            assertEquals("example.com", metrics.getHost());
+            assertTrue(metrics.getQueueWaitNanos() >= 0);
+            assertTrue(metrics.getSendNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+            assertTrue(metrics.getTotalNanos() >= metrics.getSendNanos());
+            assertEquals(BODY.length, metrics.getResponseBytes());
+            assertNull(metrics.getErrorClass());
+        }
+    }
+
+    @Test
+    public void closedClientFails() {
+        client.close();
+        try {
+            client.syncTorRequest(Client.TorRequestMethod.GET, "https://example.com/hello", new HashMap<>(), new byte[0]);
+            fail("Request succeeded");
+        } catch (TorLibException e) {
+            assertEquals("Client has already been closed", e.getMessage());
+        }
+        assertTrue(server.requests().isEmpty());
+    }
+}
@@ -0,0 +1,114 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NativeHandleTest {
+    @Test
+    public void closeWithoutUsers() throws TorLibException {
+        AtomicInteger freed = new AtomicInteger();
+        NativeHandle handle = new NativeHandle(42, h -> freed.incrementAndGet());
+
+        assertEquals(42, handle.acquire());
+        handle.release();
+        assertTrue(handle.close());
+        assertFalse(handle.close());
+        assertEquals(1, freed.get());
+    }
+
+    @Test
+    public void closeIsDeferredUntilRelease() throws TorLibException {
+        AtomicInteger freed = new AtomicInteger();
+        NativeHandle handle = new NativeHandle(42, h -> freed.incrementAndGet());
+
+        handle.acquire();
+        handle.acquire();
+        assertTrue(handle.close());
+        assertTrue(handle.isClosed());
+        assertEquals(2, handle.inFlight());
+        assertEquals(0, freed.get());
+
+        handle.release();
+        assertEquals(0, freed.get());
+        handle.release();
+        assertEquals(1, freed.get());
+
+        try {
+            handle.acquire();
+            fail();
+        } catch (TorLibException e) {
+            assertTrue(e.getMessage().contains("already been closed"));
+        }
+    }
+
+    @Test
+    public void stressAcquireAndClose() throws InterruptedException {
+        final int nbThreads = 16;
+
+        for (int round = 0; round < 50; round++) {
+            AtomicInteger freed = new AtomicInteger();
+            AtomicBoolean usedAfterFree = new AtomicBoolean();
+            NativeHandle handle = new NativeHandle(round + 1, h -> freed.incrementAndGet());
+
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < nbThreads; i++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (; ; ) {
+                            handle.acquire();
+                            try {
+                                if (freed.get() != 0) {
+                                    usedAfterFree.set(true);
+                                }
+                                Thread.yield();
+                                if (freed.get() != 0) {
+                                    usedAfterFree.set(true);
+                                }
+                            } finally {
+                                handle.release();
+                            }
+                        }
+                    } catch (TorLibException e) {
+                        // closed
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            Thread closer = new Thread(() -> {
+                try {
+                    start.await();
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handle.close();
+            });
+            closer.start();
+
+            start.countDown();
+            closer.join();
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            assertFalse(usedAfterFree.get());
+            assertEquals(1, freed.get());
+            assertEquals(0, handle.inFlight());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class RequestBodyTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void bytesAreNotCopied() throws IOException {
+        byte[] bytes = randomBytes(100);
+        assertSame(bytes, RequestBody.fromBytes(bytes).toByteArray());
+    }
+
+    @Test
+    public void heapByteBufferIsNotCopied() throws IOException {
+        for (int size : new int[]{1024, 64 * 1024, 4 * 1024 * 1024}) {
+            byte[] bytes = randomBytes(size);
+            assertSame(bytes, RequestBody.fromByteBuffer(ByteBuffer.wrap(bytes)).toByteArray());
+        }
+    }
+
+    @Test
+    public void directByteBuffer() throws IOException {
+        for (int size : new int[]{1024, 64 * 1024, 4 * 1024 * 1024}) {
+            byte[] bytes = randomBytes(size);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size + 2);
+            buffer.put((byte) 0).put(bytes).put((byte) 0).flip();
+            buffer.position(1);
+            buffer.limit(size + 1);
+
+            RequestBody body = RequestBody.fromByteBuffer(buffer);
+            assertEquals(size, body.contentLength());
+            assertArrayEquals(bytes, body.toByteArray());
+            assertEquals(1, buffer.position());
+        }
+    }
+
+    @Test
+    public void fromFile() throws IOException {
+        byte[] bytes = randomBytes(3 * RequestBody.CHUNK_SIZE + 17);
+        File f = new File(folder.getRoot(), "body");
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(bytes);
+        }
+
+        RequestBody body = RequestBody.fromFile(f);
+        assertEquals(bytes.length, body.contentLength());
+        assertArrayEquals(bytes, body.toByteArray());
+    }
+
+    @Test(expected = EOFException.class)
+    public void fileShorterThanItsLength() throws IOException {
+        RequestBody.readFully(new ByteArrayInputStream(randomBytes(10)), 20);
+    }
+}
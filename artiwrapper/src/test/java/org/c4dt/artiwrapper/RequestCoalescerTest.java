@@ -0,0 +1,180 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RequestCoalescerTest {
+    private static final String URL = "https://example.com/resource";
+    private static final byte[] EMPTY = new byte[0];
+
+    private static Map<String, List<String>> headers(String name, String value) {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put(name, Collections.singletonList(value));
+        return headers;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void identicalRequestsShareOneExecution() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer("Accept");
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        byte[] body = "hello".getBytes();
+        HttpResponse response = new HttpResponse(200, "HTTP/1.1", Headers.of("ETag", "\"v1\""), body);
+        Set<HttpResponse> received = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        final int nbThreads = 8;
+        CountDownLatch done = new CountDownLatch(nbThreads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < nbThreads; i++) {
+            // Ignored headers do not prevent coalescing
+            Map<String, List<String>> h = headers("Accept", "text/plain");
+            h.put("X-Request-Id", Collections.singletonList(String.valueOf(i)));
+            new Thread(() -> {
+                try {
+                    HttpResponse r = coalescer.execute(Client.TorRequestMethod.GET, URL, h, EMPTY, () -> {
+                        executions.incrementAndGet();
+                        await(release);
+                        return response;
+                    });
+                    assertEquals(200, r.getStatus());
+                    assertEquals("\"v1\"", r.headers().get("ETag"));
+                    assertArrayEquals(body, r.getBody());
+                    received.add(r);
+                } catch (Throwable e) {
+                    failure.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        // Let all the threads join the flight before completing it
+        long deadline = System.currentTimeMillis() + 10000;
+        while (coalescer.coalescedCount() < nbThreads - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(null, failure.get());
+        assertEquals(1, executions.get());
+        assertEquals(1, coalescer.executedCount());
+        assertEquals(nbThreads - 1, coalescer.coalescedCount());
+        // Each waiter got its own copy
+        assertEquals(nbThreads, received.size());
+        assertTrue(received.contains(response));
+    }
+
+    @Test
+    public void differentKeysAreNotCoalesced() throws TorLibException {
+        RequestCoalescer coalescer = new RequestCoalescer("Accept");
+        AtomicInteger executions = new AtomicInteger();
+        RequestCoalescer.Call call = () -> {
+            executions.incrementAndGet();
+            return new HttpResponse(200, "HTTP/1.1", Headers.of(), EMPTY);
+        };
+
+        coalescer.execute(Client.TorRequestMethod.GET, URL, headers("Accept", "a"), EMPTY, call);
+        coalescer.execute(Client.TorRequestMethod.GET, URL, headers("Accept", "b"), EMPTY, call);
+        coalescer.execute(Client.TorRequestMethod.POST, URL, headers("Accept", "a"), EMPTY, call);
+        assertEquals(3, executions.get());
+        assertEquals(0, coalescer.coalescedCount());
+    }
+
+    @Test
+    public void errorsAreShared() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Thread leader = new Thread(() -> {
+            try {
+                coalescer.execute(Client.TorRequestMethod.GET, URL, new HashMap<>(), EMPTY, () -> {
+                    started.countDown();
+                    await(release);
+                    throw new TorLibException("boom");
+                });
+            } catch (TorLibException e) {
+                // expected
+            }
+        });
+        leader.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        Thread releaser = new Thread(() -> {
+            while (coalescer.coalescedCount() < 1) {
+                Thread.yield();
+            }
+            release.countDown();
+        });
+        releaser.start();
+
+        try {
+            coalescer.execute(Client.TorRequestMethod.GET, URL, new HashMap<>(), EMPTY, () -> {
+                fail();
+                return null;
+            });
+            fail();
+        } catch (TorLibException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        leader.join();
+        releaser.join();
+    }
+
+    @Test
+    public void concurrentRangeRequestsAreNotCoalesced() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        final int nbRanges = 2;
+        CountDownLatch started = new CountDownLatch(nbRanges);
+        CountDownLatch done = new CountDownLatch(nbRanges);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < nbRanges; i++) {
+            final String range = "bytes=" + (i * 100) + "-" + (i * 100 + 99);
+            new Thread(() -> {
+                try {
+                    HttpResponse r = coalescer.execute(Client.TorRequestMethod.GET, URL, headers("Range", range), EMPTY,
+                            () -> {
+                                // Both requests are in flight at the same time
+                                started.countDown();
+                                await(started);
+                                return new HttpResponse(206, "HTTP/1.1", Headers.of("Content-Range", range), EMPTY);
+                            });
+                    assertEquals(range, r.headers().get("Content-Range"));
+                } catch (Throwable e) {
+                    failure.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(null, failure.get());
+        assertEquals(nbRanges, coalescer.executedCount());
+        assertEquals(0, coalescer.coalescedCount());
+    }
+}
@@ -0,0 +1,186 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ResponseCacheTest {
+    private static final String URL = "https://example.com/resource";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Network stand-in returning a fixed response, or 304 to conditional requests if requested.
+     */
+    private static class FakeNetwork implements ResponseCache.Network {
+        final List<Map<String, List<String>>> requests = new ArrayList<>();
+        Headers responseHeaders;
+        byte[] body = "hello".getBytes();
+        boolean notModified;
+
+        FakeNetwork(String... responseHeaders) {
+            this.responseHeaders = Headers.of(responseHeaders);
+        }
+
+        @Override
+        public HttpResponse send(Map<String, List<String>> headers) {
+            requests.add(headers);
+            if (notModified && Headers.of(headers).get("If-None-Match") != null) {
+                return new HttpResponse(304, "HTTP/1.1", Headers.of("Cache-Control", "max-age=60"), new byte[0]);
+            }
+            return new HttpResponse(200, "HTTP/1.1", responseHeaders, body);
+        }
+    }
+
+    private ResponseCache newCache() {
+        return new ResponseCache(new File(folder.getRoot(), "cache"), 1024 * 1024, 1024 * 1024);
+    }
+
+    private static HttpResponse get(ResponseCache cache, FakeNetwork network, Map<String, List<String>> headers)
+            throws TorLibException {
+        return cache.execute(Client.TorRequestMethod.GET, URL, headers, network);
+    }
+
+    private static HttpResponse get(ResponseCache cache, FakeNetwork network) throws TorLibException {
+        return get(cache, network, new HashMap<>());
+    }
+
+    @Test
+    public void freshResponseIsServedFromCache() throws TorLibException {
+        ResponseCache cache = newCache();
+        FakeNetwork network = new FakeNetwork("Cache-Control", "max-age=3600");
+
+        assertArrayEquals("hello".getBytes(), get(cache, network).getBody());
+        HttpResponse cached = get(cache, network);
+        assertEquals(200, cached.getStatus());
+        assertArrayEquals("hello".getBytes(), cached.getBody());
+
+        assertEquals(1, network.requests.size());
+        assertEquals(2, cache.requestCount());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void staleResponseIsRevalidated() throws TorLibException {
+        ResponseCache cache = newCache();
+        FakeNetwork network = new FakeNetwork("Cache-Control", "max-age=0", "ETag", "\"v1\"");
+        network.notModified = true;
+
+        get(cache, network);
+        HttpResponse revalidated = get(cache, network);
+        assertEquals(200, revalidated.getStatus());
+        assertArrayEquals("hello".getBytes(), revalidated.getBody());
+        assertEquals("\"v1\"", Headers.of(network.requests.get(1)).get("If-None-Match"));
+
+        // The 304 made the response fresh for another minute
+        get(cache, network);
+        assertEquals(2, network.requests.size());
+        assertEquals(1, cache.revalidationCount());
+        assertEquals(1, cache.notModifiedCount());
+        assertEquals(1, cache.hitCount());
+    }
+
+    @Test
+    public void conditionalRequestOfTheCallerBypassesTheCache() throws TorLibException {
+        ResponseCache cache = newCache();
+        FakeNetwork network = new FakeNetwork("Cache-Control", "max-age=0", "ETag", "\"v1\"");
+        network.notModified = true;
+        get(cache, network);
+
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("if-none-match", Collections.singletonList("\"v1\""));
+        HttpResponse response = get(cache, network, headers);
+        assertEquals(304, response.getStatus());
+        assertEquals(Collections.singletonList("\"v1\""), Headers.of(network.requests.get(1)).values("If-None-Match"));
+        assertEquals(0, cache.revalidationCount());
+    }
+
+    @Test
+    public void noStoreIsNotCached() throws TorLibException {
+        ResponseCache cache = newCache();
+        FakeNetwork network = new FakeNetwork("Cache-Control", "no-store, max-age=3600");
+
+        get(cache, network);
+        get(cache, network);
+        assertEquals(2, network.requests.size());
+        assertEquals(0, cache.hitCount());
+    }
+
+    @Test
+    public void expiresInThePastIsStale() throws TorLibException {
+        ResponseCache cache = newCache();
+        FakeNetwork network = new FakeNetwork("Expires", "Thu, 01 Jan 1970 00:00:00 GMT");
+
+        get(cache, network);
+        get(cache, network);
+        assertEquals(2, network.requests.size());
+    }
+
+    @Test
+    public void responsesArePersistedOnDisk() throws TorLibException {
+        FakeNetwork network = new FakeNetwork("Cache-Control", "max-age=3600");
+        get(newCache(), network);
+
+        ResponseCache other = newCache();
+        assertArrayEquals("hello".getBytes(), get(other, network).getBody());
+        assertEquals(1, network.requests.size());
+        assertEquals(1, other.hitCount());
+    }
+
+    @Test
+    public void unsafeRequestInvalidates() throws TorLibException {
+        ResponseCache cache = newCache();
+        FakeNetwork network = new FakeNetwork("Cache-Control", "max-age=3600");
+
+        get(cache, network);
+        cache.execute(Client.TorRequestMethod.POST, URL, new HashMap<>(), network);
+        get(cache, network);
+        assertEquals(3, network.requests.size());
+    }
+
+    @Test
+    public void varyMismatchIsAMiss() throws TorLibException {
+        ResponseCache cache = newCache();
+        FakeNetwork network = new FakeNetwork("Cache-Control", "max-age=3600", "Vary", "Accept-Language");
+
+        Map<String, List<String>> en = new HashMap<>();
+        en.put("Accept-Language", Collections.singletonList("en"));
+        Map<String, List<String>> fr = new HashMap<>();
+        fr.put("Accept-Language", Collections.singletonList("fr"));
+
+        get(cache, network, en);
+        get(cache, network, en);
+        get(cache, network, fr);
+        assertEquals(2, network.requests.size());
+    }
+
+    @Test
+    public void cachedBodyCannotBeModified() throws TorLibException {
+        ResponseCache cache = newCache();
+        FakeNetwork network = new FakeNetwork("Cache-Control", "max-age=3600");
+
+        get(cache, network);
+        get(cache, network).getBody()[0] = 'X';
+        assertArrayEquals("hello".getBytes(), get(cache, network).getBody());
+    }
+
+    @Test
+    public void parseDates() {
+        assertEquals(784111777000L, CacheControl.parseDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(784111777000L, CacheControl.parseDate("Sunday, 06-Nov-94 08:49:37 GMT"));
+        assertEquals(784111777000L, CacheControl.parseDate("Sun Nov  6 08:49:37 1994"));
+        assertEquals(-1, CacheControl.parseDate("yesterday"));
+    }
+}
@@ -0,0 +1,173 @@
+package org.c4dt.artiwrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local HTTP server standing in for the directory cache releases in tests.
+ * <p>
+ * It serves static resources, supports conditional requests (<code>If-None-Match</code>,
+ * <code>If-Modified-Since</code>) and range requests (<code>Range</code>, <code>If-Range</code>),
+ * and can simulate an interrupted transfer.
+ */
+class StandInHttpServer implements AutoCloseable {
+    static final class Resource {
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+
+        Resource(byte[] body, String etag, String lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Request received by the server.
+     */
+    static final class Request {
+        final String path;
+        final Map<String, String> headers = new HashMap<>();
+
+        Request(String path) {
+            this.path = path;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+    private final HttpServer server;
+    private final Map<String, Resource> resources = new HashMap<>();
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+    private volatile long truncateAfter = -1;
+    private volatile long delayMillis;
+
+    StandInHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String url(String path) {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path;
+    }
+
+    synchronized void put(String path, byte[] body, String etag, String lastModified) {
+        resources.put(path, new Resource(body, etag, lastModified));
+    }
+
+    /**
+     * Close the connection after sending the given number of body bytes of the next response.
+     */
+    void truncateNextResponseAfter(long nbBytes) {
+        truncateAfter = nbBytes;
+    }
+
+    /**
+     * Delay every response by the given time.
+     */
+    void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    List<Request> requests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Request request = new Request(exchange.getRequestURI().getPath());
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            request.headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+        }
+        requests.add(request);
+
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Resource resource;
+        synchronized (this) {
+            resource = resources.get(request.path);
+        }
+        try {
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (resource.etag != null) {
+                exchange.getResponseHeaders().set("ETag", resource.etag);
+            }
+            if (resource.lastModified != null) {
+                exchange.getResponseHeaders().set("Last-Modified", resource.lastModified);
+            }
+
+            String ifNoneMatch = request.header("If-None-Match");
+            String ifModifiedSince = request.header("If-Modified-Since");
+            if ((ifNoneMatch != null && ifNoneMatch.equals(resource.etag)) ||
+                    (ifNoneMatch == null && ifModifiedSince != null && ifModifiedSince.equals(resource.lastModified))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            int start = 0;
+            int end = resource.body.length - 1;
+            String range = request.header("Range");
+            String ifRange = request.header("If-Range");
+            boolean rangeApplies = range != null && range.startsWith("bytes=") && range.indexOf('-') > 0 &&
+                    (ifRange == null || ifRange.equals(resource.etag) || ifRange.equals(resource.lastModified));
+            if (rangeApplies) {
+                String[] bounds = range.substring("bytes=".length()).split("-", 2);
+                start = Integer.parseInt(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                }
+                if (start >= resource.body.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + resource.body.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + resource.body.length);
+            }
+
+            int length = end + 1 - start;
+            exchange.sendResponseHeaders(rangeApplies ? 206 : 200, length == 0 ? -1 : length);
+            long limit = truncateAfter;
+            truncateAfter = -1;
+            OutputStream out = exchange.getResponseBody();
+            if (limit >= 0 && limit < length) {
+                out.write(resource.body, start, (int) limit);
+                out.flush();
+                // Closing the exchange before the announced length drops the connection
+                return;
+            }
+            out.write(resource.body, start, length);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,174 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class StreamingHttpResponseTest {
+    private static final String URL = "https://example.com/large";
+    private static final int CHUNK_SIZE = 1000;
+
+    /**
+     * Transport serving a fixed body, honoring single byte ranges if asked to.
+     */
+    private static class RangeTransport implements Transport {
+        private final byte[] content;
+        private final boolean supportsRange;
+        final AtomicInteger requests = new AtomicInteger();
+
+        RangeTransport(byte[] content, boolean supportsRange) {
+            this.content = content;
+            this.supportsRange = supportsRange;
+        }
+
+        @Override
+        public HttpResponse send(Client.TorRequestMethod method, String url, Map<String, List<String>> headers,
+                                 byte[] body) {
+            requests.incrementAndGet();
+            List<String> range = headers == null ? null : headers.get("Range");
+            if (!supportsRange || range == null) {
+                return new HttpResponse(200, "HTTP/1.1", Headers.of(), content);
+            }
+            String[] bounds = range.get(0).substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(bounds[0]);
+            if (start >= content.length) {
+                return new HttpResponse(416, "HTTP/1.1", Headers.of(), new byte[0]);
+            }
+            int end = Math.min(Integer.parseInt(bounds[1]), content.length - 1);
+            return new HttpResponse(206, "HTTP/1.1",
+                    Headers.of("Content-Range", "bytes " + start + "-" + end + "/" + content.length),
+                    Arrays.copyOfRange(content, start, end + 1));
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public boolean close() {
+            return true;
+        }
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[333];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void bodyIsFetchedInChunks() throws Exception {
+        byte[] content = content(10 * CHUNK_SIZE + 3);
+        RangeTransport transport = new RangeTransport(content, true);
+        Client client = new Client(new Dispatcher(), transport);
+
+        try (StreamingHttpResponse response = client.openTorRequest(Client.TorRequestMethod.GET, URL,
+                null, new byte[0], CHUNK_SIZE)) {
+            assertEquals(200, response.getStatus());
+            assertEquals(String.valueOf(content.length), response.headers().get("Content-Length"));
+            assertArrayEquals(content, readAll(response.getBody()));
+        }
+        // Prefetching does not request ranges past the end
+        assertEquals(11, transport.requests.get());
+    }
+
+    @Test
+    public void lengthMultipleOfChunkSize() throws Exception {
+        byte[] content = content(4 * CHUNK_SIZE);
+        Client client = new Client(new Dispatcher(), new RangeTransport(content, true));
+
+        try (StreamingHttpResponse response = client.openTorRequest(Client.TorRequestMethod.GET, URL,
+                null, new byte[0], CHUNK_SIZE)) {
+            assertArrayEquals(content, readAll(response.getBody()));
+        }
+    }
+
+    @Test
+    public void serverIgnoringRangeIsServedFromMemory() throws Exception {
+        byte[] content = content(3 * CHUNK_SIZE);
+        RangeTransport transport = new RangeTransport(content, false);
+        Client client = new Client(new Dispatcher(), transport);
+
+        try (StreamingHttpResponse response = client.openTorRequest(Client.TorRequestMethod.GET, URL,
+                null, new byte[0], CHUNK_SIZE)) {
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(content, readAll(response.getBody()));
+        }
+        assertEquals(1, transport.requests.get());
+    }
+
+    @Test
+    public void emptyResourceHasEmptyBody() throws Exception {
+        try (StandInHttpServer server = new StandInHttpServer()) {
+            server.put("/empty", new byte[0], "\"v1\"", null);
+            Client client = new Client(new Dispatcher(), new LoopbackTransport(server.url("")));
+
+            try (StreamingHttpResponse response = client.openTorRequest(Client.TorRequestMethod.GET,
+                    server.url("/empty"), null, new byte[0], CHUNK_SIZE)) {
+                assertEquals(200, response.getStatus());
+                assertEquals("0", response.headers().get("Content-Length"));
+                assertNull(response.headers().get("Content-Range"));
+                assertEquals(-1, response.getBody().read());
+            } finally {
+                client.close();
+            }
+            assertEquals("bytes=0-" + (CHUNK_SIZE - 1), server.requests().get(0).header("Range"));
+        }
+    }
+
+    @Test
+    public void bodyCanBeReadOnTheDispatcherThread() throws Exception {
+        byte[] content = content(5 * CHUNK_SIZE + 7);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Client client = new Client(new Dispatcher(executor), new RangeTransport(content, true));
+        final AtomicReference<byte[]> read = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        try {
+            // The only thread of the dispatcher is busy reading: prefetched chunks cannot start
+            client.sendAsync(Client.TorRequestMethod.GET, URL, null, new byte[0]).whenComplete(result -> {
+                try (StreamingHttpResponse response = client.openTorRequest(Client.TorRequestMethod.GET, URL,
+                        null, new byte[0], CHUNK_SIZE)) {
+                    read.set(readAll(response.getBody()));
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertArrayEquals(content, read.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.c4dt.artiwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TorRequestFutureTest {
+    @Test
+    public void complete() throws Exception {
+        TorRequestFuture<String> future = new TorRequestFuture<>();
+        AtomicReference<TorLibApi.TorRequestResult<String>> result = new AtomicReference<>();
+        future.whenComplete(result::set);
+
+        assertTrue(future.complete("done"));
+        assertFalse(future.fail(new Exception("too late")));
+
+        assertTrue(future.isDone());
+        assertEquals("done", future.get());
+        assertEquals("done", ((TorLibApi.TorRequestResult.Success<String>) result.get()).getResult());
+    }
+
+    @Test
+    public void callbackAfterCompletion() {
+        TorRequestFuture<String> future = new TorRequestFuture<>();
+        future.fail(new Exception("failed"));
+
+        AtomicReference<TorLibApi.TorRequestResult<String>> result = new AtomicReference<>();
+        future.whenComplete(result::set);
+        assertEquals("failed", ((TorLibApi.TorRequestResult.Error<String>) result.get()).getError().getMessage());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        TorRequestFuture<String> future = new TorRequestFuture<>();
+        AtomicInteger aborted = new AtomicInteger();
+        future.setOnAbort(aborted::incrementAndGet);
+
+        assertTrue(future.cancel(true));
+        assertFalse(future.cancel(true));
+        assertFalse(future.complete("too late"));
+
+        assertTrue(future.isCancelled());
+        assertEquals(1, aborted.get());
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void deadline() throws Exception {
+        TorRequestFuture<String> future = new TorRequestFuture<>();
+        CountDownLatch aborted = new CountDownLatch(1);
+        future.setOnAbort(aborted::countDown);
+        future.setDeadline(10, TimeUnit.MILLISECONDS);
+
+        assertTrue(aborted.await(10, TimeUnit.SECONDS));
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertFalse(future.isCancelled());
+    }
+
+    @Test
+    public void cancelledCallLeavesQueue() {
+        Dispatcher dispatcher = new Dispatcher(r -> {
+            // Never runs anything
+        });
+        dispatcher.setMaxRequests(1);
+
+        Dispatcher.AsyncCall running = new Dispatcher.AsyncCall("https://example.com") {
+            @Override
+            public void run() {
+            }
+
+            @Override
+            void reject(Exception e) {
+            }
+        };
+        Dispatcher.AsyncCall queued = new Dispatcher.AsyncCall("https://example.com") {
+            @Override
+            public void run() {
+            }
+
+            @Override
+            void reject(Exception e) {
+            }
+        };
+        dispatcher.enqueue(running);
+        dispatcher.enqueue(queued);
+        assertEquals(1, dispatcher.queuedCallsCount());
+
+        TorRequestFuture<String> future = new TorRequestFuture<>();
+        future.setOnAbort(() -> dispatcher.cancel(queued));
+        future.cancel(false);
+        assertEquals(0, dispatcher.queuedCallsCount());
+    }
+}
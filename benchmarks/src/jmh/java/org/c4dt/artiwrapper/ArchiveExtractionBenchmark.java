@@ -0,0 +1,65 @@
+package org.c4dt.artiwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of a full directory cache archive, as done by a cache update. Each invocation
+ * extracts the archive from disk over the files of the previous one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ArchiveExtractionBenchmark {
+    /**
+     * Uncompressed size of the archive; the real cache is about 30 MB.
+     */
+    @Param({"4", "30"})
+    public int archiveMegabytes;
+
+    @Param({"false", "true"})
+    public boolean computeDigests;
+
+    private File dir;
+    private File archive;
+    private File destDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("arti-extraction").toFile();
+        archive = new File(dir, "directory-cache.tgz");
+        SyntheticCache.write(archive, SyntheticCache.tgz(SyntheticCache.files(archiveMegabytes * 1024 * 1024)));
+        destDir = new File(dir, "extracted");
+        if (!destDir.mkdir()) {
+            throw new IOException("Cannot create " + destDir);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        CacheGenerations.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Map<String, String> extract() throws IOException {
+        try (InputStream in = new FileInputStream(archive)) {
+            return new ArchiveExtractor(ArchiveExtractor.DEFAULT_BUFFER_SIZE, ArchiveExtractor.DEFAULT_QUEUE_CAPACITY,
+                    computeDigests).extract(in, destDir, null);
+        }
+    }
+}
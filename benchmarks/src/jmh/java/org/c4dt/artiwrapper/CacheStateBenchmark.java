@@ -0,0 +1,66 @@
+package org.c4dt.artiwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Freshness checks of the cache files, run before each update and by the refresher: from the
+ * manifest written by the updates, and from the modification times of files copied by the app.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheStateBenchmark {
+    private File manifestDir;
+    private File legacyDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        long now = System.currentTimeMillis();
+        manifestDir = Files.createTempDirectory("arti-manifest").toFile();
+        legacyDir = Files.createTempDirectory("arti-legacy").toFile();
+
+        Map<String, String> digests = new HashMap<>();
+        for (Map.Entry<String, byte[]> file : SyntheticCache.files(1024 * 1024).entrySet()) {
+            File manifestFile = new File(manifestDir, file.getKey());
+            SyntheticCache.write(manifestFile, file.getValue());
+            digests.put(file.getKey(), CacheManifest.sha256(manifestFile));
+            SyntheticCache.write(new File(legacyDir, file.getKey()), file.getValue());
+        }
+        CacheManifest.forArchive(manifestDir, digests, null, now, now).write(manifestDir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        CacheGenerations.deleteRecursively(manifestDir);
+        CacheGenerations.deleteRecursively(legacyDir);
+    }
+
+    @Benchmark
+    public boolean stateFromManifest() {
+        return CacheUpdater.getCacheState(manifestDir).isUpToDate();
+    }
+
+    @Benchmark
+    public boolean stateFromModificationTimes() {
+        return CacheUpdater.getCacheState(legacyDir).isUpToDate();
+    }
+
+    @Benchmark
+    public long expiryTime() {
+        return CacheUpdater.expiryTime(manifestDir);
+    }
+}
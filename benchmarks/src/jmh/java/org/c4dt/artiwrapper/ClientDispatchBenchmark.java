@@ -0,0 +1,93 @@
+package org.c4dt.artiwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the Java layer of {@link Client} around the transport: the dispatcher hand-off and
+ * the callback of {@link Client#asyncTorRequest}, compared to a synchronous request. The
+ * transport answers immediately with a canned response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClientDispatchBenchmark {
+    private static final int BATCH_SIZE = 64;
+    private static final String URL = "https://example.com/api";
+
+    private Client client;
+    private Map<String, List<String>> headers;
+    private final byte[] body = new byte[0];
+
+    private static final class CannedTransport implements Transport {
+        private final HttpResponse response = new HttpResponse(200, "HTTP/1.1",
+                Headers.of("Content-Type", "application/json"), "{}".getBytes());
+        private volatile boolean closed;
+
+        @Override
+        public HttpResponse send(Client.TorRequestMethod method, String url, Map<String, List<String>> headers,
+                                 byte[] body) {
+            return response;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public boolean close() {
+            boolean wasOpen = !closed;
+            closed = true;
+            return wasOpen;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        client = new Client(new Dispatcher(), new CannedTransport());
+        headers = new HashMap<>();
+        headers.put("Accept", Collections.singletonList("application/json"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public HttpResponse syncRequest() throws TorLibException {
+        return client.syncTorRequest(Client.TorRequestMethod.GET, URL, headers, body);
+    }
+
+    @Benchmark
+    public void asyncRequest() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        client.asyncTorRequest(Client.TorRequestMethod.GET, URL, headers, body, result -> done.countDown());
+        done.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void asyncBatch() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            client.asyncTorRequest(Client.TorRequestMethod.GET, URL, headers, body, result -> done.countDown());
+        }
+        done.await();
+    }
+}
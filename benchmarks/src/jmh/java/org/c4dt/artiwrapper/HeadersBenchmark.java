@@ -0,0 +1,98 @@
+package org.c4dt.artiwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversions of the header maps passed to the native <code>send</code> and returned in
+ * {@link HttpResponse}, and lookups in the flat {@link Headers} compared with the map, for
+ * small to large sets of headers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HeadersBenchmark {
+    private static final String[][] COMMON_HEADERS = {
+            {"Content-Type", "application/json; charset=utf-8"},
+            {"Content-Length", "1234"},
+            {"Date", "Mon, 01 Jan 2024 00:00:00 GMT"},
+            {"ETag", "\"33a64df551425fcc55e4d42a148795d9f25f89d4\""},
+            {"Cache-Control", "max-age=3600"},
+            {"Server", "nginx"},
+            {"Vary", "Accept-Encoding"},
+    };
+
+    @Param({"5", "20", "50"})
+    public int headerCount;
+
+    private Map<String, List<String>> requestMap;
+    private Map<String, List<String>> responseMap;
+    private Headers responseHeaders;
+    private String lastName;
+
+    @Setup
+    public void setUp() {
+        requestMap = headerMap(headerCount);
+        // Typical response headers of a web API, as converted from the native response, with a
+        // few repeated values
+        responseMap = headerMap(headerCount);
+        List<String> cookies = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            cookies.add("cookie" + i + "=value" + i + "; Path=/; HttpOnly");
+        }
+        responseMap.put("Set-Cookie", cookies);
+        responseHeaders = Headers.of(responseMap);
+        // Worst case for the flat representation, which is scanned linearly
+        lastName = responseHeaders.name(responseHeaders.size() - 1);
+    }
+
+    private static Map<String, List<String>> headerMap(int count) {
+        Map<String, List<String>> map = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (i < COMMON_HEADERS.length) {
+                map.put(COMMON_HEADERS[i][0], Collections.singletonList(COMMON_HEADERS[i][1]));
+            } else {
+                map.put("X-Custom-Header-" + i, Collections.singletonList("value-" + i));
+            }
+        }
+        return map;
+    }
+
+    @Benchmark
+    public Headers requestHeadersFromMap() {
+        return Headers.of(requestMap);
+    }
+
+    @Benchmark
+    public Headers responseHeadersFromMap() {
+        return Headers.of(responseMap);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> responseHeadersToMap() {
+        return new HttpResponse(200, "HTTP/1.1", responseHeaders, new byte[0]).getHeaders();
+    }
+
+    @Benchmark
+    public String responseHeaderLookup() {
+        return responseHeaders.get(lastName);
+    }
+
+    @Benchmark
+    public List<String> responseMapLookup() {
+        return responseMap.get(lastName);
+    }
+}
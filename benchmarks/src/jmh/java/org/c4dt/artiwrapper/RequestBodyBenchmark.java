@@ -0,0 +1,82 @@
+package org.c4dt.artiwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the {@link RequestBody} sources into the array passed to the native
+ * <code>send</code>, compared with buffering a stream in a {@link ByteArrayOutputStream}.
+ * Run with <code>-prof gc</code> to compare the bytes allocated per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestBodyBenchmark {
+    @Param({"1024", "65536", "4194304"})
+    public int bodySize;
+
+    private byte[] bytes;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[bodySize];
+        new Random(42).nextBytes(bytes);
+        heapBuffer = ByteBuffer.wrap(bytes);
+        directBuffer = ByteBuffer.allocateDirect(bodySize);
+        directBuffer.put(bytes);
+        directBuffer.flip();
+    }
+
+    @Benchmark
+    public byte[] fromBytes() throws IOException {
+        return RequestBody.fromBytes(bytes).toByteArray();
+    }
+
+    @Benchmark
+    public byte[] fromHeapByteBuffer() throws IOException {
+        return RequestBody.fromByteBuffer(heapBuffer).toByteArray();
+    }
+
+    @Benchmark
+    public byte[] fromDirectByteBuffer() throws IOException {
+        return RequestBody.fromByteBuffer(directBuffer).toByteArray();
+    }
+
+    @Benchmark
+    public byte[] readFully() throws IOException {
+        return RequestBody.readFully(new ByteArrayInputStream(bytes), bodySize);
+    }
+
+    /**
+     * Baseline: a stream copied into a growing {@link ByteArrayOutputStream}, then copied again
+     * by {@link ByteArrayOutputStream#toByteArray()}.
+     */
+    @Benchmark
+    public byte[] streamThroughByteArrayOutputStream() throws IOException {
+        try (InputStream in = new ByteArrayInputStream(bytes)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[RequestBody.CHUNK_SIZE];
+            int nbRead;
+            while ((nbRead = in.read(buf)) != -1) {
+                out.write(buf, 0, nbRead);
+            }
+            return out.toByteArray();
+        }
+    }
+}
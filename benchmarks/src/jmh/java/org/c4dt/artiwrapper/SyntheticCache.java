@@ -0,0 +1,70 @@
+package org.c4dt.artiwrapper;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic directory cache files for the benchmarks.
+ */
+final class SyntheticCache {
+    private SyntheticCache() {
+    }
+
+    /**
+     * Generate compressible pseudo-random text, similar to directory documents.
+     */
+    static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (i % 64 == 63) ? (byte) '\n' : (byte) ('a' + random.nextInt(16));
+        }
+        return data;
+    }
+
+    /**
+     * Get the contents of the cache files, totalling about the given size.
+     */
+    static Map<String, byte[]> files(int size) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(TorLibApi.CONSENSUS_FILENAME, text(size / 10, 1));
+        files.put(TorLibApi.MICRODESCRIPTORS_FILENAME, text(size - size / 10, 2));
+        files.put(TorLibApi.AUTHORITY_FILENAME, text(1024, 3));
+        files.put(TorLibApi.CERTIFICATE_FILENAME, text(4096, 4));
+        files.put(TorLibApi.CHURN_FILENAME, text(2048, 5));
+        return files;
+    }
+
+    /**
+     * Build a gzipped tar archive, as released for the directory cache.
+     */
+    static byte[] tgz(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(bytes))) {
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                TarArchiveEntry entry = new TarArchiveEntry(file.getKey());
+                entry.setSize(file.getValue().length);
+                tar.putArchiveEntry(entry);
+                tar.write(file.getValue());
+                tar.closeArchiveEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static void write(File file, byte[] data) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+}